@@ -0,0 +1,63 @@
+import benchmark.RandomiserTarget;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Connects {@code benchmark.RandomiserBenchmark} to the randomiser in the default package.
+ */
+public class DefaultRandomiserTarget implements RandomiserTarget {
+    private RouteGraph routeGraph;
+    private CupRules rules;
+    private RandomiserEngine engine;
+    private CupSolver solver;
+
+    @Override
+    public void load() throws IOException {
+        load(CupRules.DEFAULT_CUP_COUNT, CupRules.DEFAULT_CUP_LENGTH, false);
+    }
+
+    @Override
+    public void load(int cupCount, int cupLength, boolean repeatedLayouts) throws IOException {
+        routeGraph = Randomiser.GetRouteGraph();
+        rules = CupRules.standard(cupCount, cupLength).toBuilder().allowRepeatedLayouts(repeatedLayouts).build();
+        engine = new RandomiserEngine(routeGraph, new SolverMetrics(), RandomiserEngine.Sampling.SEARCH, rules);
+        solver = new CupSolver(new ChainTable(routeGraph, cupLength), rules.compile(routeGraph));
+    }
+
+    @Override
+    public boolean randomiseEndToEnd() throws IOException {
+        Randomiser.randomise();
+        return Randomiser.isComplete();
+    }
+
+    @Override
+    public Object randomiseWithEngine(long seed) {
+        return engine.randomise(seed);
+    }
+
+    @Override
+    public boolean attempt(SplittableRandom random) {
+        return solver.attempt(random, () -> false);
+    }
+
+    @Override
+    public int solve(long seed) {
+        return solver.solve(seed) ? solver.getAttempts() : 0;
+    }
+
+    @Override
+    public Object buildEngine() {
+        return new RandomiserEngine(routeGraph, new SolverMetrics(), RandomiserEngine.Sampling.SEARCH, rules);
+    }
+
+    @Override
+    public Object loadRoutes() throws IOException {
+        return RouteLoader.load(Randomiser.ROUTES_PATH);
+    }
+
+    @Override
+    public Object loadSnapshot() throws IOException {
+        return RouteGraphSnapshot.load(Randomiser.ROUTES_PATH, () -> RouteLoader.load(Randomiser.ROUTES_PATH));
+    }
+}
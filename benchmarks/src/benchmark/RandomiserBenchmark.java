@@ -0,0 +1,97 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hot paths of the randomiser.
+ * <p>
+ * Run from the root of the repository, so that "routes/routes.csv" can be found, and add {@code -prof gc} to the command line to measure the allocation rate of each benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RandomiserBenchmark {
+    private RandomiserTarget target;
+    private SplittableRandom seeds;
+
+    @Setup
+    public void load() throws IOException {
+        target = RandomiserTarget.create();
+        target.load();
+        seeds = new SplittableRandom(0);
+    }
+
+    /**
+     * Counts the attempts made and the sets of cups created, so that attempts-per-success can be found by dividing one by the other.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Attempts {
+        public long attempts;
+        public long successes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            attempts = 0;
+            successes = 0;
+        }
+    }
+
+    /**
+     * The full cost of {@code Randomiser.randomise()}, including loading the routes from disk.
+     */
+    @Benchmark
+    public boolean randomiseEndToEnd() throws IOException {
+        return target.randomiseEndToEnd();
+    }
+
+    /**
+     * The cost of creating a set of cups from an engine that has already been built.
+     */
+    @Benchmark
+    public Object randomiseWithEngine() {
+        return target.randomiseWithEngine(seeds.nextLong());
+    }
+
+    /**
+     * The cost of a single attempt at filling every cup, whether or not it succeeds.
+     */
+    @Benchmark
+    public boolean singleAttempt() {
+        return target.attempt(seeds.split());
+    }
+
+    /**
+     * Solves from a new seed each time and records how many attempts were needed, as a secondary metric.
+     */
+    @Benchmark
+    public int solve(Attempts attempts) {
+        int needed = target.solve(seeds.nextLong());
+        attempts.attempts += needed;
+        attempts.successes += needed > 0 ? 1 : 0;
+        return needed;
+    }
+
+    /**
+     * The cost of parsing "routes/routes.csv" and building a route graph from it.
+     */
+    @Benchmark
+    public Object loadRoutes() throws IOException {
+        return target.loadRoutes();
+    }
+
+    /**
+     * The cost of loading the route graph from its snapshot, which is how routes.csv is loaded once the snapshot is up to date.
+     */
+    @Benchmark
+    public Object loadSnapshot() throws IOException {
+        return target.loadSnapshot();
+    }
+}
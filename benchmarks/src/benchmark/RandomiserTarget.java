@@ -0,0 +1,86 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * The operations of the randomiser that are benchmarked.
+ * <p>
+ * The randomiser lives in the default package, which JMH benchmarks cannot import from, so {@code RandomiserBenchmark} calls it through this interface instead. It is implemented by {@code DefaultRandomiserTarget} in the default package.
+ */
+public interface RandomiserTarget {
+    /**
+     * Loads the route graph and creates the engine and solver used by the other operations, for sets of eight cups of four tracks under the standard rules.
+     * @throws IOException If the routes file cannot be read.
+     */
+    void load() throws IOException;
+
+    /**
+     * Loads the route graph and creates the engine and solver used by the other operations, for sets of the given shape under the standard rules.
+     * @param cupCount The number of cups in each set, including the Special Cup
+     * @param cupLength The number of tracks in each cup
+     * @param repeatedLayouts Whether a track may appear again with a layout it has already been raced with
+     * @throws IOException If the routes file cannot be read.
+     */
+    void load(int cupCount, int cupLength, boolean repeatedLayouts) throws IOException;
+
+    /**
+     * Runs {@code Randomiser.randomise()}, including loading the routes from disk.
+     * @return Whether every cup was filled.
+     * @throws IOException If the routes file cannot be read.
+     */
+    boolean randomiseEndToEnd() throws IOException;
+
+    /**
+     * Creates a set of cups with the engine created by {@code load()}.
+     * @param seed The seed to create the cups from
+     * @return The set of cups.
+     */
+    Object randomiseWithEngine(long seed);
+
+    /**
+     * Makes a single attempt at filling every cup with the solver created by {@code load()}.
+     * @param random The random number generator for the attempt
+     * @return Whether the attempt succeeded.
+     */
+    boolean attempt(SplittableRandom random);
+
+    /**
+     * Solves from a seed with the solver created by {@code load()}, retrying until an attempt succeeds.
+     * @param seed The seed to solve from
+     * @return The number of attempts that were needed, or 0 if no attempt could succeed.
+     */
+    int solve(long seed);
+
+    /**
+     * Builds a new engine for the route graph and shape loaded by {@code load()}, including its chain table.
+     * @return The engine.
+     */
+    Object buildEngine();
+
+    /**
+     * Parses "routes/routes.csv" and builds a route graph from it, ignoring any snapshot.
+     * @return The route graph.
+     * @throws IOException If the routes file cannot be read.
+     */
+    Object loadRoutes() throws IOException;
+
+    /**
+     * Loads the route graph from the snapshot next to "routes/routes.csv", as {@code Randomiser.GetRouteGraph()} does, building the snapshot first if it is missing or out of date.
+     * @return The route graph.
+     * @throws IOException If the routes file or its snapshot cannot be read.
+     */
+    Object loadSnapshot() throws IOException;
+
+    /**
+     * Creates the implementation of this interface from the default package.
+     * @return A new target, which must be loaded before it is used.
+     */
+    static RandomiserTarget create() {
+        try {
+            return (RandomiserTarget) Class.forName("DefaultRandomiserTarget").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("DefaultRandomiserTarget could not be created.", e);
+        }
+    }
+}
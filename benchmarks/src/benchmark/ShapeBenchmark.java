@@ -0,0 +1,65 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for how the cost of creating a set of cups grows with the number of cups and the number of tracks in each.
+ * <p>
+ * Each shape is written as cups by tracks, e.g. "12x4" for twelve cups of four tracks. The first four shapes add cups, and the last two add tracks to each cup.
+ * Repeated layouts are allowed in every shape, as the standard routes cannot fill more than 42 slots with a different layout each time, and this keeps every shape under the same rules.
+ * <p>
+ * Run from the root of the repository, so that "routes/routes.csv" can be found.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ShapeBenchmark {
+    @Param({"8x4", "10x4", "12x4", "14x4", "8x5", "8x6"})
+    public String shape;
+
+    private RandomiserTarget target;
+    private SplittableRandom seeds;
+
+    @Setup
+    public void load() throws IOException {
+        String[] dimensions = shape.split("x");
+        target = RandomiserTarget.create();
+        target.load(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), true);
+        seeds = new SplittableRandom(0);
+    }
+
+    /**
+     * The cost of creating a set of cups of this shape from an engine that has already been built.
+     */
+    @Benchmark
+    public Object randomiseWithEngine() {
+        return target.randomiseWithEngine(seeds.nextLong());
+    }
+
+    /**
+     * Solves from a new seed each time and records how many attempts were needed, as a secondary metric.
+     */
+    @Benchmark
+    public int solve(RandomiserBenchmark.Attempts attempts) {
+        int needed = target.solve(seeds.nextLong());
+        attempts.attempts += needed;
+        attempts.successes += needed > 0 ? 1 : 0;
+        return needed;
+    }
+
+    /**
+     * The cost of building an engine for this shape, which is dominated by finding every chain of its length.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object buildEngine() {
+        return target.buildEngine();
+    }
+}
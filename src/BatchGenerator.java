@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+
+/**
+ * Generates many sets of cups into a single {@code CupWriter}, using constant memory no matter how many sets are generated.
+ * <p>
+ * Worker threads create the sets while the calling thread writes them out in order. At most a fixed number of sets are in flight at once, so the workers wait for the writer whenever they get too far ahead.
+ * <p>
+ * Set {@code n} is always created from the {@code n}th seed drawn from the batch seed, and that seed is written alongside it in every format but text, so any set in a batch can be recreated on its own with {@code RandomiserEngine.randomise(long seed)}.
+ * <p>
+ * A batch can also be kept free of duplicates with a {@code DuplicateFilter}. A set that is already in the filter is skipped, and the next seed is drawn in its place. Sets are checked in the order of their seeds, so a batch is the same no matter how many threads create it.
+ */
+public class BatchGenerator {
+    private static final int SETS_IN_FLIGHT_PER_THREAD = 4;
+
+    private final RandomiserEngine engine;
+
+    /**
+     * Creates a new batch generator.
+     * @param engine The engine to create sets of cups with
+     */
+    public BatchGenerator(RandomiserEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Generates sets of cups and writes them to the given writer, in order, in its format. The writer is neither committed nor closed.
+     * @param count The number of sets to generate
+     * @param seed The seed that the seed of each set is drawn from
+     * @param threads The number of worker threads to create sets with
+     * @param output Where to write the sets
+     * @throws IOException If the output cannot be written to.
+     */
+    public void generate(long count, long seed, int threads, CupWriter output) throws IOException {
+        generate(count, seed, threads, output, null);
+    }
+
+    /**
+     * Generates sets of cups that are not already in a filter, and writes them to the given writer, in order, in its format. The writer is neither committed nor closed.
+     * @param count The number of sets to generate
+     * @param seed The seed that the seed of each set is drawn from
+     * @param threads The number of worker threads to create sets with
+     * @param output Where to write the sets
+     * @param duplicates The filter to add each set to, skipping any that are already in it, or {@code null} to write every set created
+     * @throws IOException If the output cannot be written to, or the filter rejects every set for so long that the route graph seems to allow no more.
+     */
+    public void generate(long count, long seed, int threads, CupWriter output, DuplicateFilter duplicates) throws IOException {
+        int workerCount = Math.max(threads, 1);
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        ArrayDeque<Future<CupSet>> inFlight = new ArrayDeque<>();
+        ArrayDeque<Long> inFlightSeeds = new ArrayDeque<>();
+        int maxInFlight = workerCount * SETS_IN_FLIGHT_PER_THREAD;
+        SplittableRandom seedRandom = new SplittableRandom(seed);
+        long written = 0;
+        try {
+            while (written < count) {
+                while (inFlight.size() < maxInFlight && written + inFlight.size() < count) {
+                    long setSeed = seedRandom.nextLong();
+                    inFlight.add(workers.submit(() -> engine.randomise(setSeed)));
+                    inFlightSeeds.add(setSeed);
+                }
+                long setSeed = inFlightSeeds.poll();
+                CupSet cups = awaitSet(inFlight.poll());
+                if (duplicates == null || duplicates.add(cups)) {
+                    output.write(setSeed, cups);
+                    written++;
+                } else if (duplicates.isExhausted()) {
+                    throw new IOException("Only " + duplicates.size() + " different sets of cups could be found.");
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a set of cups to be created.
+     * @param set The task creating the set
+     * @return The set of cups.
+     * @throws IOException If the thread was interrupted or the set could not be created.
+     */
+    private static CupSet awaitSet(Future<CupSet> set) throws IOException {
+        try {
+            return set.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch generation was interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("A set of cups could not be created.", e.getCause());
+        }
+    }
+}
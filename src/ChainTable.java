@@ -0,0 +1,310 @@
+import java.util.Arrays;
+
+/**
+ * An immutable table of every chain in a route graph, i.e. every cup that could appear in a set when the rules that span several cups are ignored.
+ * <p>
+ * A chain is a track reached by its route to itself, followed by one fewer tracks than the length of a cup, each reached by a route from the one before, with no track repeated.
+ * Each chain is packed into a single long holding the route used to reach each of its slots, which in turn gives the track in the slot and the layout it is raced with, so the longer the cups, the fewer bits each route is given.
+ * <p>
+ * Chains are indexed two ways, each as contiguous ranges of chain IDs, so that finding the chains that fit a cup is a lookup rather than a walk over the route graph:
+ * <ul>
+ * <li>By track and layout, holding every chain that races a track with a layout, in any position.</li>
+ * <li>By pair of tracks, holding every chain that uses both tracks, in any positions.</li>
+ * </ul>
+ */
+public final class ChainTable {
+    private final RouteGraph routeGraph;
+    private final int cupLength;
+    private final int routeBits;
+    private final long routeMask;
+    private final long[] chainRoutes;
+    private final long[] chainMasks;
+
+    private final int[] trackLayoutStarts;
+    private final int[] trackLayoutChains;
+
+    private final int[] trackPairStarts;
+    private final int[] trackPairChains;
+
+    /**
+     * Returns the most routes a route graph can have for its chains of the given length to be packed, as each route in a chain is given {@code 64 / cupLength} bits.
+     * This is 65,536 for chains of four tracks, 4,096 for five and 1,024 for six. A graph of {@code RouteGraph.MAX_TRACKS} tracks has at most 4,096 routes, so only chains of six tracks can run out.
+     * @param cupLength The number of tracks in each chain
+     * @return The most routes.
+     */
+    public static long getMaxRouteCount(int cupLength) {
+        return 1L << (Long.SIZE / cupLength);
+    }
+
+    /**
+     * Finds and indexes every chain of four tracks in the given route graph.
+     * @param routeGraph The route graph to find chains in
+     * @throws IllegalArgumentException If the route graph has more than 64 tracks, or more routes than fit in a packed chain.
+     */
+    public ChainTable(RouteGraph routeGraph) {
+        this(routeGraph, CupRules.DEFAULT_CUP_LENGTH);
+    }
+
+    /**
+     * Finds and indexes every chain of the given length in the given route graph.
+     * @param routeGraph The route graph to find chains in
+     * @param cupLength The number of tracks in each chain, from {@code CupRules.MIN_CUP_LENGTH} to {@code CupRules.MAX_CUP_LENGTH}
+     * @throws IllegalArgumentException If the length is out of range, or the route graph has more than 64 tracks, or more routes than fit in a packed chain.
+     */
+    public ChainTable(RouteGraph routeGraph, int cupLength) {
+        if (cupLength < CupRules.MIN_CUP_LENGTH || cupLength > CupRules.MAX_CUP_LENGTH) {
+            throw new IllegalArgumentException("A chain may have from " + CupRules.MIN_CUP_LENGTH + " to " + CupRules.MAX_CUP_LENGTH + " tracks, not " + cupLength + ".");
+        }
+        int trackCount = routeGraph.getTrackCount();
+        if (trackCount > RouteGraph.MAX_TRACKS) {
+            throw new IllegalArgumentException("Cups can only be created from up to " + RouteGraph.MAX_TRACKS + " tracks, but the routes have " + trackCount + ".");
+        }
+        this.cupLength = cupLength;
+        routeBits = Long.SIZE / cupLength;
+        routeMask = (1L << routeBits) - 1;
+        if (routeGraph.getRouteCount() > getMaxRouteCount(cupLength)) {
+            throw new IllegalArgumentException("Cups of " + cupLength + " tracks can only be created from up to " + getMaxRouteCount(cupLength) + " routes, but the routes have " + routeGraph.getRouteCount() + ". Please use shorter cups or fewer routes.");
+        }
+        this.routeGraph = routeGraph;
+
+        ChainBuffer chains = new ChainBuffer();
+        int[] routes = new int[cupLength];
+        int[] tracks = new int[cupLength];
+        for (int track = 0; track < trackCount; track++) {
+            int selfRoute = routeGraph.getSelfRoute(track);
+            if (selfRoute != RouteGraph.NONE) {
+                routes[0] = selfRoute;
+                tracks[0] = track;
+                findChains(1, routes, tracks, chains);
+            }
+        }
+        int chainCount = chains.count;
+        chainRoutes = Arrays.copyOf(chains.chains, chainCount);
+        chainMasks = Arrays.copyOf(chains.masks, chainCount);
+
+        int layoutCount = routeGraph.getLayoutCount();
+        int[] slotTracks = new int[chainCount * cupLength];
+        int[] slotKeys = new int[chainCount * cupLength];
+        for (int chain = 0, slot = 0; chain < chainCount; chain++) {
+            long packed = chainRoutes[chain];
+            for (int position = 0; position < cupLength; position++, slot++) {
+                int route = (int) (packed & routeMask);
+                packed >>>= routeBits;
+                slotTracks[slot] = routeGraph.getRouteDestination(route);
+                slotKeys[slot] = slotTracks[slot] * layoutCount + routeGraph.getRouteLayout(route);
+            }
+        }
+
+        trackLayoutStarts = new int[trackCount * layoutCount + 1];
+        for (int key : slotKeys) {
+            trackLayoutStarts[key + 1]++;
+        }
+        for (int key = 0; key < trackCount * layoutCount; key++) {
+            trackLayoutStarts[key + 1] += trackLayoutStarts[key];
+        }
+        trackLayoutChains = new int[slotKeys.length];
+        int[] nextIndex = Arrays.copyOf(trackLayoutStarts, trackCount * layoutCount);
+        for (int slot = 0; slot < slotKeys.length; slot++) {
+            trackLayoutChains[nextIndex[slotKeys[slot]]++] = slot / cupLength;
+        }
+
+        trackPairStarts = new int[trackCount * trackCount + 1];
+        for (int slot = 0; slot < slotTracks.length; slot++) {
+            int first = slot - slot % cupLength;
+            for (int other = first; other < first + cupLength; other++) {
+                if (other != slot) {
+                    trackPairStarts[slotTracks[slot] * trackCount + slotTracks[other] + 1]++;
+                }
+            }
+        }
+        for (int key = 0; key < trackCount * trackCount; key++) {
+            trackPairStarts[key + 1] += trackPairStarts[key];
+        }
+        trackPairChains = new int[trackPairStarts[trackCount * trackCount]];
+        nextIndex = Arrays.copyOf(trackPairStarts, trackCount * trackCount);
+        for (int slot = 0; slot < slotTracks.length; slot++) {
+            int first = slot - slot % cupLength;
+            for (int other = first; other < first + cupLength; other++) {
+                if (other != slot) {
+                    trackPairChains[nextIndex[slotTracks[slot] * trackCount + slotTracks[other]]++] = slot / cupLength;
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable array of packed chains and their track masks.
+     */
+    private static final class ChainBuffer {
+        private long[] chains = new long[1024];
+        private long[] masks = new long[1024];
+        private int count;
+
+        private void add(long chain, long mask) {
+            if (count == chains.length) {
+                chains = Arrays.copyOf(chains, count * 2);
+                masks = Arrays.copyOf(masks, count * 2);
+            }
+            chains[count] = chain;
+            masks[count++] = mask;
+        }
+    }
+
+    /**
+     * Adds every chain that continues from the given partial chain, packed into a long, along with its track mask.
+     * @param position The first position that has yet to be filled
+     */
+    private void findChains(int position, int[] routes, int[] tracks, ChainBuffer chains) {
+        if (position == cupLength) {
+            long packed = 0;
+            long mask = 0;
+            for (int slot = 0; slot < cupLength; slot++) {
+                packed |= (long) routes[slot] << (routeBits * slot);
+                mask |= 1L << tracks[slot];
+            }
+            chains.add(packed, mask);
+            return;
+        }
+        int origin = tracks[position - 1];
+        for (int i = 0; i < routeGraph.getOutgoingRouteCount(origin); i++) {
+            int route = routeGraph.getOutgoingRoute(origin, i);
+            int destination = routeGraph.getRouteDestination(route);
+            boolean repeated = false;
+            for (int previous = 0; previous < position; previous++) {
+                repeated |= tracks[previous] == destination;
+            }
+            if (!repeated) {
+                routes[position] = route;
+                tracks[position] = destination;
+                findChains(position + 1, routes, tracks, chains);
+            }
+        }
+    }
+
+    /**
+     * Returns the route graph that the chains were found in.
+     * @return The route graph.
+     */
+    public RouteGraph getRouteGraph() {
+        return routeGraph;
+    }
+
+    /**
+     * Returns the number of tracks in each chain.
+     * @return The length of a chain.
+     */
+    public int getCupLength() {
+        return cupLength;
+    }
+
+    /**
+     * Returns the number of chains. Chain IDs run from 0 up to (but not including) this number, ordered by starting track.
+     * @return The number of chains.
+     */
+    public int getChainCount() {
+        return chainRoutes.length;
+    }
+
+    /**
+     * Returns the route used to reach a slot of a chain. The route for the first slot is the route from its track to itself.
+     * @param chain The ID of the chain
+     * @param position The position in the chain
+     * @return The ID of the route.
+     */
+    public int getRoute(int chain, int position) {
+        return (int) ((chainRoutes[chain] >>> (routeBits * position)) & routeMask);
+    }
+
+    /**
+     * Returns the track in a slot of a chain.
+     * @param chain The ID of the chain
+     * @param position The position in the chain
+     * @return The ID of the track.
+     */
+    public int getTrack(int chain, int position) {
+        return routeGraph.getRouteDestination(getRoute(chain, position));
+    }
+
+    /**
+     * Returns the layout that the track in a slot of a chain is raced with.
+     * @param chain The ID of the chain
+     * @param position The position in the chain
+     * @return The ID of the layout.
+     */
+    public int getLayout(int chain, int position) {
+        return routeGraph.getRouteLayout(getRoute(chain, position));
+    }
+
+    /**
+     * Returns the tracks used by a chain as a bitmask, with bit {@code n} set if track {@code n} is in the chain.
+     * @param chain The ID of the chain
+     * @return The bitmask of tracks.
+     */
+    public long getTrackMask(int chain) {
+        return chainMasks[chain];
+    }
+
+    /**
+     * Returns the number of chains that use a track in any position.
+     * @param track The ID of the track
+     * @return The number of chains using the track.
+     */
+    public int getChainCountThrough(int track) {
+        int layoutCount = routeGraph.getLayoutCount();
+        return trackLayoutStarts[(track + 1) * layoutCount] - trackLayoutStarts[track * layoutCount];
+    }
+
+    /**
+     * Returns one of the chains that use a track in any position. These are ordered by the layout the track is raced with.
+     * @param track The ID of the track
+     * @param index The index of the chain, from 0 up to (but not including) {@code getChainCountThrough(track)}
+     * @return The ID of the chain.
+     */
+    public int getChainThrough(int track, int index) {
+        return trackLayoutChains[trackLayoutStarts[track * routeGraph.getLayoutCount()] + index];
+    }
+
+    /**
+     * Returns the number of chains that race a track with a particular layout.
+     * @param track The ID of the track
+     * @param layout The ID of the layout
+     * @return The number of chains racing the track with the layout.
+     */
+    public int getChainCountThrough(int track, int layout) {
+        int key = track * routeGraph.getLayoutCount() + layout;
+        return trackLayoutStarts[key + 1] - trackLayoutStarts[key];
+    }
+
+    /**
+     * Returns one of the chains that race a track with a particular layout.
+     * @param track The ID of the track
+     * @param layout The ID of the layout
+     * @param index The index of the chain, from 0 up to (but not including) {@code getChainCountThrough(track, layout)}
+     * @return The ID of the chain.
+     */
+    public int getChainThrough(int track, int layout, int index) {
+        return trackLayoutChains[trackLayoutStarts[track * routeGraph.getLayoutCount() + layout] + index];
+    }
+
+    /**
+     * Returns the number of chains that use both of two tracks.
+     * @param track The ID of one track
+     * @param otherTrack The ID of the other track
+     * @return The number of chains using both tracks.
+     */
+    public int getChainCountWithBoth(int track, int otherTrack) {
+        int key = track * routeGraph.getTrackCount() + otherTrack;
+        return trackPairStarts[key + 1] - trackPairStarts[key];
+    }
+
+    /**
+     * Returns one of the chains that use both of two tracks.
+     * @param track The ID of one track
+     * @param otherTrack The ID of the other track
+     * @param index The index of the chain, from 0 up to (but not including) {@code getChainCountWithBoth(track, otherTrack)}
+     * @return The ID of the chain.
+     */
+    public int getChainWithBoth(int track, int otherTrack, int index) {
+        return trackPairChains[trackPairStarts[track * routeGraph.getTrackCount() + otherTrack] + index];
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded cache of sets of cups, so that a seed that is asked for again, such as a replay or a shared link, does not run the search again.
+ * <p>
+ * Each set is keyed by its seed, the fingerprint of the route graph it was created from, how the engine chose it, and the fingerprint of the engine's rules, which together decide the set completely.
+ * Once the cache holds its capacity, the least recently used set is evicted to make room for each new one.
+ * <p>
+ * Sets of cups are immutable, so a cached set is returned as it is rather than copied. A set created from one route graph is returned for another graph with the same fingerprint, rebuilt against that graph.
+ * Whenever a set is asked for from a graph with a different fingerprint to the last one, i.e. whenever the routes file has changed, every set created from other graphs is dropped.
+ * <p>
+ * The cache is thread-safe. If two threads miss on the same seed at once, both create the set, which is the same either way.
+ * It can be saved to and loaded from a file, which holds each set packed by a {@code CupCodec} and ends with a CRC-32 of its contents, like a {@code RouteGraphSnapshot}.
+ */
+public final class CupCache {
+    private static final int MAGIC = 0x43555043;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 4;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private final int capacity;
+    private final LinkedHashMap<Key, CupSet> entries;
+    private long routes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * The key of a cached set of cups.
+     * @param seed The seed the set was created from
+     * @param routes The fingerprint of the route graph the set was created from
+     * @param sampling How the engine chose the set
+     * @param rules The fingerprint of the rules the set follows
+     */
+    private record Key(long seed, long routes, RandomiserEngine.Sampling sampling, long rules) {
+    }
+
+    /**
+     * Creates a new, empty cache.
+     * @param capacity The number of sets to hold before evicting the least recently used
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public CupCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of a cache must be positive.");
+        }
+        this.capacity = capacity;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CupSet> eldest) {
+                if (size() > CupCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the set of cups that an engine creates from a seed, from the cache if it holds one and from the engine otherwise.
+     * @param engine The engine to create the set with
+     * @param seed The seed to create the set from
+     * @return The set of cups, which is always the same as {@code engine.randomise(seed)}.
+     */
+    public CupSet get(RandomiserEngine engine, long seed) {
+        return get(engine, seed, 1);
+    }
+
+    /**
+     * Returns the set of cups that an engine creates from a seed, from the cache if it holds one and from the engine otherwise.
+     * @param engine The engine to create the set with
+     * @param seed The seed to create the set from
+     * @param parallelism The number of searches to race if the set has to be created
+     * @return The set of cups, which is always the same as {@code engine.randomiseInParallel(seed, parallelism)}.
+     */
+    public CupSet get(RandomiserEngine engine, long seed, int parallelism) {
+        RouteGraph routeGraph = engine.getRouteGraph();
+        Key key = new Key(seed, routeGraph.getFingerprint(), engine.getSampling(), engine.getRules().getFingerprint());
+        synchronized (this) {
+            invalidateOtherRoutes(key.routes);
+            CupSet cups = entries.get(key);
+            if (cups != null) {
+                hits++;
+                if (cups.getRouteGraph() != routeGraph) {
+                    cups = rebind(cups, routeGraph);
+                    entries.put(key, cups);
+                }
+                return cups;
+            }
+            misses++;
+        }
+        CupSet cups = engine.randomiseInParallel(seed, parallelism);
+        synchronized (this) {
+            if (key.routes == routes) {
+                entries.put(key, cups);
+            }
+        }
+        return cups;
+    }
+
+    /**
+     * Drops every set created from a route graph with a different fingerprint, if the fingerprint has changed since the last call.
+     * @param fingerprint The fingerprint of the route graph being asked for
+     */
+    private void invalidateOtherRoutes(long fingerprint) {
+        if (fingerprint == routes) {
+            return;
+        }
+        routes = fingerprint;
+        Iterator<Key> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().routes != fingerprint) {
+                keys.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a set of cups against another route graph with the same fingerprint, so that its routes refer to the same tracks.
+     * @return The rebuilt set.
+     */
+    private static CupSet rebind(CupSet cups, RouteGraph routeGraph) {
+        int[][] slotRoutes = new int[cups.getCupCount()][cups.getCupLength()];
+        for (int cup = 0; cup < slotRoutes.length; cup++) {
+            for (int position = 0; position < slotRoutes[cup].length; position++) {
+                slotRoutes[cup][position] = cups.getRoute(cup, position);
+            }
+        }
+        return new CupSet(routeGraph, slotRoutes);
+    }
+
+    /**
+     * Drops every set from the cache. The counters are kept.
+     */
+    public synchronized void clear() {
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of sets the cache holds before evicting the least recently used.
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of sets the cache holds.
+     * @return The number of sets.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of sets so far that were returned from the cache.
+     * @return The number of hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of sets so far that had to be created by an engine.
+     * @return The number of misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of sets so far that were evicted to make room for newer ones.
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of sets so far that were dropped because the routes changed, or by {@code clear()}.
+     * @return The number of invalidations.
+     */
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * Saves every set in the cache to a file, from least to most recently used. The file is written to a temporary file first and then moved into place, so that readers never see a partly written cache. It has the permissions of an ordinary new file.
+     * @param path The path to save the cache to
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        ByteBuffer buffer;
+        synchronized (this) {
+            // Every set in the cache is from a graph with the current fingerprint, so they can all share one codec.
+            CupCodec codec = entries.isEmpty() ? null : new CupCodec(entries.values().iterator().next().getRouteGraph());
+            int size = HEADER_SIZE + CHECKSUM_SIZE;
+            for (CupSet cups : entries.values()) {
+                size += 8 + 8 + 4 + 8 + 4 + 4 + 4 + 8 * codec.getWordCount(cups.getCupCount(), cups.getCupLength());
+            }
+            buffer = ByteBuffer.allocate(size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(entries.size());
+            for (Map.Entry<Key, CupSet> entry : entries.entrySet()) {
+                Key key = entry.getKey();
+                CupSet cups = entry.getValue();
+                long[] words = codec.encode(cups);
+                buffer.putLong(key.seed).putLong(key.routes).putInt(key.sampling.ordinal()).putLong(key.rules);
+                buffer.putInt(cups.getCupCount()).putInt(cups.getCupLength()).putInt(words.length);
+                for (long word : words) {
+                    buffer.putLong(word);
+                }
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(checksum.getValue());
+        buffer.flip();
+
+        Path temporary = CupWriter.createTemporaryFile(path);
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Loads the sets saved in a file into the cache, as the most recently used sets.
+     * Only sets created from a route graph with the same fingerprint as the given one are loaded, so sets saved before the routes file changed are ignored. Any sets already in the cache from other route graphs are dropped.
+     * @param path The path of the saved cache
+     * @param routeGraph The route graph to load sets for
+     * @return The number of sets loaded, which is 0 if the file is missing or damaged.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public int load(Path path, RouteGraph routeGraph) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + CHECKSUM_SIZE || size > Integer.MAX_VALUE) {
+                return 0;
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return 0;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        buffer.flip();
+        int size = buffer.limit();
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), 0, size - CHECKSUM_SIZE);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || checksum.getValue() != buffer.getLong(size - CHECKSUM_SIZE)) {
+            return 0;
+        }
+        buffer.limit(size - CHECKSUM_SIZE);
+
+        RandomiserEngine.Sampling[] samplings = RandomiserEngine.Sampling.values();
+        CupCodec codec = new CupCodec(routeGraph);
+        long fingerprint = routeGraph.getFingerprint();
+        int loaded = 0;
+        try {
+            int count = buffer.getInt();
+            synchronized (this) {
+                invalidateOtherRoutes(fingerprint);
+                for (int i = 0; i < count; i++) {
+                    long seed = buffer.getLong();
+                    long entryRoutes = buffer.getLong();
+                    int sampling = buffer.getInt();
+                    long rules = buffer.getLong();
+                    int cupCount = buffer.getInt();
+                    int cupLength = buffer.getInt();
+                    int wordCount = buffer.getInt();
+                    if (wordCount < 0 || wordCount > buffer.remaining() / 8) {
+                        break;
+                    }
+                    long[] words = new long[wordCount];
+                    for (int word = 0; word < words.length; word++) {
+                        words[word] = buffer.getLong();
+                    }
+                    if (entryRoutes == fingerprint && sampling >= 0 && sampling < samplings.length && words.length == codec.getWordCount(cupCount, cupLength)) {
+                        entries.put(new Key(seed, entryRoutes, samplings[sampling], rules), codec.decode(words, 0, cupCount, cupLength));
+                        loaded++;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // A damaged file with a valid checksum is not worth failing over, so the sets read before the damage are kept.
+        }
+        return loaded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Cache: " + entries.size() + " of " + capacity + " sets (hits " + hits + ", misses " + misses + ", evictions " + evictions + ", invalidations " + invalidations + ")" + System.lineSeparator();
+    }
+}
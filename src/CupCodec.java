@@ -0,0 +1,292 @@
+import java.io.*;
+
+/**
+ * Packs sets of cups into a few longs each, for storing, caching and sending them.
+ * <p>
+ * There is only one route from a track to another, and the first slot of a cup always uses the route from its track to itself, so a set is decided completely by the tracks in its slots, and the layouts need no bits of their own.
+ * Each track ID takes just enough bits to hold the highest ID in the route graph, i.e. 5 bits for up to 32 tracks. The slots are packed in order, cup by cup, as many to a long as fit whole, so 32 slots of 5 bits take 3 longs rather than the kilobytes of a set of maps.
+ * <p>
+ * Since track IDs belong to a route graph, a codec is created for one graph, and packed sets can only be unpacked by a codec for a graph with the same fingerprint.
+ * Two sets from the same graph are equal exactly when their packed words are, so they can be compared, hashed or sorted without unpacking them.
+ * <p>
+ * A stream of packed sets, as written by {@code writeHeader()} and {@code write()} and read by a {@code CupCodec.Reader}, starts with a header holding {@code MAGIC}, {@code VERSION}, the graph's fingerprint, the bits per track and the size of each set.
+ * Each set then follows as its seed and its packed words, all big-endian. An empty stream holds no sets.
+ */
+public final class CupCodec {
+    public static final int MAGIC = 0x43555053;
+    public static final int VERSION = 1;
+
+    private final RouteGraph routeGraph;
+    private final int trackBits;
+    private final int slotsPerWord;
+    private final long trackMask;
+
+    /**
+     * A set of cups read from a stream, with the seed it was created from.
+     * @param seed The seed the set was created from
+     * @param cups The set of cups
+     */
+    public record Entry(long seed, CupSet cups) {
+    }
+
+    /**
+     * Creates a new codec for sets of cups from the given route graph.
+     * @param routeGraph The route graph the sets belong to
+     */
+    public CupCodec(RouteGraph routeGraph) {
+        this.routeGraph = routeGraph;
+        trackBits = Math.max(32 - Integer.numberOfLeadingZeros(routeGraph.getTrackCount() - 1), 1);
+        slotsPerWord = Long.SIZE / trackBits;
+        trackMask = (1L << trackBits) - 1;
+    }
+
+    /**
+     * Returns the route graph that this codec packs sets from.
+     * @return The route graph.
+     */
+    public RouteGraph getRouteGraph() {
+        return routeGraph;
+    }
+
+    /**
+     * Returns the number of bits each track takes.
+     * @return The number of bits.
+     */
+    public int getTrackBits() {
+        return trackBits;
+    }
+
+    /**
+     * Returns the number of longs a packed set of the given size takes.
+     * @param cupCount The number of cups in the set
+     * @param cupLength The number of tracks in each cup
+     * @return The number of longs.
+     */
+    public int getWordCount(int cupCount, int cupLength) {
+        return (cupCount * cupLength + slotsPerWord - 1) / slotsPerWord;
+    }
+
+    /**
+     * Packs a set of cups.
+     * @param cups The set of cups
+     * @return The packed set.
+     * @throws IllegalArgumentException If the set is from a route graph with a different fingerprint.
+     */
+    public long[] encode(CupSet cups) {
+        long[] words = new long[getWordCount(cups.getCupCount(), cups.getCupLength())];
+        encode(cups, words, 0);
+        return words;
+    }
+
+    /**
+     * Packs a set of cups into part of an array, so that many sets can be packed into one array without creating any others.
+     * @param cups The set of cups
+     * @param words The array to pack the set into. Its words from {@code offset} are overwritten.
+     * @param offset The index of the first word to pack the set into
+     * @throws IllegalArgumentException If the set is from a route graph with a different fingerprint.
+     */
+    public void encode(CupSet cups, long[] words, int offset) {
+        if (cups.getRouteGraph() != routeGraph && cups.getRouteGraph().getFingerprint() != routeGraph.getFingerprint()) {
+            throw new IllegalArgumentException("The set of cups is from a different route graph.");
+        }
+        int wordCount = getWordCount(cups.getCupCount(), cups.getCupLength());
+        for (int word = 0; word < wordCount; word++) {
+            words[offset + word] = 0;
+        }
+        int slot = 0;
+        for (int cup = 0; cup < cups.getCupCount(); cup++) {
+            for (int position = 0; position < cups.getCupLength(); position++, slot++) {
+                words[offset + slot / slotsPerWord] |= (long) cups.getTrack(cup, position) << (slot % slotsPerWord * trackBits);
+            }
+        }
+    }
+
+    /**
+     * Packs a set of cups with its regular cups sorted into a fixed order, so that two sets that differ only in which regular cup is which are packed the same.
+     * The Special Cup, which is always the last cup, is packed last as usual. The regular cups are sorted by their tracks, comparing the first track of each, then the second, and so on.
+     * @param cups The set of cups
+     * @param words The array to pack the set into. Its words from {@code offset} are overwritten.
+     * @param offset The index of the first word to pack the set into
+     * @throws IllegalArgumentException If the set is from a route graph with a different fingerprint.
+     */
+    public void encodeUnordered(CupSet cups, long[] words, int offset) {
+        if (cups.getRouteGraph() != routeGraph && cups.getRouteGraph().getFingerprint() != routeGraph.getFingerprint()) {
+            throw new IllegalArgumentException("The set of cups is from a different route graph.");
+        }
+        int cupCount = cups.getCupCount();
+        int[] order = new int[cupCount];
+        for (int cup = 0; cup < cupCount; cup++) {
+            int sorted = cup;
+            // An insertion sort, as there are only a handful of cups. The Special Cup is never moved.
+            while (cup < cupCount - 1 && sorted > 0 && compareCups(cups, order[sorted - 1], cup) > 0) {
+                order[sorted] = order[sorted - 1];
+                sorted--;
+            }
+            order[sorted] = cup;
+        }
+        int wordCount = getWordCount(cupCount, cups.getCupLength());
+        for (int word = 0; word < wordCount; word++) {
+            words[offset + word] = 0;
+        }
+        int slot = 0;
+        for (int cup : order) {
+            for (int position = 0; position < cups.getCupLength(); position++, slot++) {
+                words[offset + slot / slotsPerWord] |= (long) cups.getTrack(cup, position) << (slot % slotsPerWord * trackBits);
+            }
+        }
+    }
+
+    /**
+     * Compares two cups by their tracks, comparing the first track of each, then the second, and so on.
+     * @return A negative number, zero or a positive number as the first cup comes before, is the same as or comes after the second.
+     */
+    private static int compareCups(CupSet cups, int first, int second) {
+        for (int position = 0; position < cups.getCupLength(); position++) {
+            int difference = cups.getTrack(first, position) - cups.getTrack(second, position);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Unpacks a set of cups.
+     * @param words The array holding the packed set
+     * @param offset The index of the first word of the set
+     * @param cupCount The number of cups in the set
+     * @param cupLength The number of tracks in each cup
+     * @return The set of cups.
+     * @throws IllegalArgumentException If the words do not hold a set of cups from this codec's route graph, i.e. a track ID is out of range or two neighbouring tracks have no route between them.
+     */
+    public CupSet decode(long[] words, int offset, int cupCount, int cupLength) {
+        int[][] slotRoutes = new int[cupCount][cupLength];
+        int slot = 0;
+        for (int cup = 0; cup < cupCount; cup++) {
+            int previous = RouteGraph.NONE;
+            for (int position = 0; position < cupLength; position++, slot++) {
+                int track = (int) (words[offset + slot / slotsPerWord] >>> (slot % slotsPerWord * trackBits) & trackMask);
+                if (track >= routeGraph.getTrackCount()) {
+                    throw new IllegalArgumentException("Track " + track + " does not exist.");
+                }
+                int route = routeGraph.getRoute(position == 0 ? track : previous, track);
+                if (route == RouteGraph.NONE) {
+                    throw new IllegalArgumentException("There is no route to " + routeGraph.getTrackName(track) + " in cup " + cup + ", position " + position + ".");
+                }
+                slotRoutes[cup][position] = route;
+                previous = track;
+            }
+        }
+        return new CupSet(routeGraph, slotRoutes);
+    }
+
+    /**
+     * Writes the header of a stream of packed sets.
+     * @param output Where to write the header
+     * @param cupCount The number of cups in each set that will be written
+     * @param cupLength The number of tracks in each cup
+     * @throws IOException If the output cannot be written to.
+     */
+    public void writeHeader(DataOutput output, int cupCount, int cupLength) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(routeGraph.getFingerprint());
+        output.writeByte(trackBits);
+        output.writeByte(cupCount);
+        output.writeByte(cupLength);
+    }
+
+    /**
+     * Writes a packed set of cups, along with its seed, to a stream whose header has been written.
+     * @param output Where to write the set
+     * @param seed The seed the set was created from
+     * @param cups The set of cups, which must have the size given in the header
+     * @throws IOException If the output cannot be written to.
+     */
+    public void write(DataOutput output, long seed, CupSet cups) throws IOException {
+        output.writeLong(seed);
+        for (long word : encode(cups)) {
+            output.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads packed sets of cups, one at a time, from a stream written by {@code writeHeader()} and {@code write()}.
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream input;
+        private final CupCodec codec;
+        private final int cupCount;
+        private final int cupLength;
+        private final long[] words;
+
+        /**
+         * Creates a new reader and reads the header of the stream.
+         * @param input The stream to read from, which is closed with the reader
+         * @param routeGraph The route graph to unpack the sets against
+         * @throws IOException If the stream cannot be read, or does not start with a valid header for a graph with the same fingerprint.
+         */
+        public Reader(InputStream input, RouteGraph routeGraph) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(input));
+            codec = new CupCodec(routeGraph);
+            int magic;
+            try {
+                magic = this.input.readInt();
+            } catch (EOFException e) {
+                // An empty stream holds no sets.
+                cupCount = 0;
+                cupLength = 0;
+                words = null;
+                return;
+            }
+            if (magic != MAGIC) {
+                throw new IOException("The stream does not hold packed sets of cups.");
+            }
+            int version = this.input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Packed sets of cups version " + version + " is not supported.");
+            }
+            if (this.input.readLong() != routeGraph.getFingerprint() || this.input.readUnsignedByte() != codec.trackBits) {
+                throw new IOException("The packed sets of cups were created from a different route graph.");
+            }
+            cupCount = this.input.readUnsignedByte();
+            cupLength = this.input.readUnsignedByte();
+            if (cupCount == 0 || cupLength == 0) {
+                throw new IOException("The packed sets of cups have no slots.");
+            }
+            words = new long[codec.getWordCount(cupCount, cupLength)];
+        }
+
+        /**
+         * Reads the next set of cups.
+         * @return The set of cups and its seed, or {@code null} if every set has been read.
+         * @throws IOException If the stream cannot be read, ends part of the way through a set, or holds a set that is not valid for the route graph.
+         */
+        public Entry read() throws IOException {
+            if (words == null) {
+                return null;
+            }
+            input.mark(1);
+            if (input.read() < 0) {
+                return null;
+            }
+            input.reset();
+            try {
+                long seed = input.readLong();
+                for (int word = 0; word < words.length; word++) {
+                    words[word] = input.readLong();
+                }
+                return new Entry(seed, codec.decode(words, 0, cupCount, cupLength));
+            } catch (EOFException e) {
+                throw new IOException("The stream ends part of the way through a packed set of cups.", e);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("A packed set of cups is damaged: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
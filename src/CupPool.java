@@ -0,0 +1,238 @@
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * A pool of sets of cups created ahead of time, so that a request for a random set can be answered straight away instead of waiting for a search.
+ * <p>
+ * The pool holds a fixed-size ring buffer of finished sets, each with the seed it was created from. Background producer threads create sets from random seeds and add them to the buffer, reserving a slot before each set so that they never create more than fits.
+ * They wait whenever every slot is full or reserved, so a pool that is not being drawn from costs nothing once it has filled.
+ * Taking a set from the pool removes the oldest one in constant time. If the pool has run dry, {@code take()} creates a set on the calling thread instead, and counts it with {@code getEmptyCount()}.
+ * <p>
+ * A pool can be given a supplier of engines, such as a {@code RouteWatcher}, instead of a single engine. Each set is then created with the engine supplied when it was started, and sets created from a route graph that has since been replaced are dropped when they reach the front of the pool.
+ * <p>
+ * {@code getFillLevel()} and {@code getRefillRate()} show whether the pool is sized for its traffic: if sets are taken faster than the refill rate, the pool will keep running dry however large it is, and if it rarely falls below full, it can be made smaller.
+ */
+public final class CupPool implements AutoCloseable {
+    /**
+     * A set of cups from the pool, with the seed it was created from.
+     * @param seed The seed the set was created from, which recreates it with {@code RandomiserEngine.randomise(long seed)}
+     * @param cups The set of cups
+     */
+    public record Entry(long seed, CupSet cups) {
+    }
+
+    private final Supplier<RandomiserEngine> engines;
+    private final long[] seeds;
+    private final CupSet[] sets;
+    private final Thread[] producers;
+    private int head;
+    private int count;
+    private int reserved;
+    private boolean closed;
+
+    private long produced;
+    private long producingNanos;
+    private long taken;
+    private long empty;
+    private long stale;
+    private long failed;
+
+    /**
+     * Creates a new pool and starts filling it in the background.
+     * @param engine The engine to create sets of cups with
+     * @param capacity The number of sets the pool holds when full
+     * @param producerCount The number of background threads creating sets
+     * @throws IllegalArgumentException If the capacity or the number of producers is not positive.
+     */
+    public CupPool(RandomiserEngine engine, int capacity, int producerCount) {
+        this(() -> engine, capacity, producerCount);
+    }
+
+    /**
+     * Creates a new pool that creates its sets with whichever engine is current, and starts filling it in the background.
+     * @param engines Supplies the engine to create each set of cups with
+     * @param capacity The number of sets the pool holds when full
+     * @param producerCount The number of background threads creating sets
+     * @throws IllegalArgumentException If the capacity or the number of producers is not positive.
+     */
+    public CupPool(Supplier<RandomiserEngine> engines, int capacity, int producerCount) {
+        if (capacity <= 0 || producerCount <= 0) {
+            throw new IllegalArgumentException("A pool must have a positive capacity and at least one producer.");
+        }
+        this.engines = engines;
+        seeds = new long[capacity];
+        sets = new CupSet[capacity];
+        producers = new Thread[producerCount];
+        for (int i = 0; i < producerCount; i++) {
+            producers[i] = new Thread(this::produce, "CupPool producer " + i);
+            producers[i].setDaemon(true);
+            producers[i].start();
+        }
+    }
+
+    /**
+     * Creates sets of cups and adds them to the pool until it is closed, waiting whenever it is full.
+     * A set that cannot be created is reported and counted with {@code getFailedCount()}, and its slot is released so that the producer can carry on.
+     */
+    private void produce() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (count + reserved == sets.length && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    reserved++;
+                }
+                long startTime = System.nanoTime();
+                long seed = ThreadLocalRandom.current().nextLong();
+                CupSet cups = null;
+                try {
+                    cups = engines.get().randomise(seed);
+                } catch (RuntimeException e) {
+                    System.out.println("The pool could not create a set of cups from seed " + seed + ": " + e.getMessage());
+                } finally {
+                    long duration = System.nanoTime() - startTime;
+                    synchronized (this) {
+                        reserved--;
+                        if (cups != null) {
+                            produced++;
+                            producingNanos += duration;
+                            int tail = (head + count) % sets.length;
+                            seeds[tail] = seed;
+                            sets[tail] = cups;
+                            count++;
+                        } else {
+                            failed++;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the oldest set of cups from the pool, or creates one on the calling thread if the pool is empty.
+     * @return The set of cups and its seed.
+     */
+    public Entry take() {
+        Entry entry = poll();
+        if (entry != null) {
+            return entry;
+        }
+        synchronized (this) {
+            empty++;
+        }
+        long seed = ThreadLocalRandom.current().nextLong();
+        return new Entry(seed, engines.get().randomise(seed));
+    }
+
+    /**
+     * Takes the oldest set of cups from the pool, if there is one, dropping any sets ahead of it that were created from a route graph that has since been replaced.
+     * @return The set of cups and its seed, or {@code null} if the pool is empty.
+     */
+    public synchronized Entry poll() {
+        RouteGraph routeGraph = engines.get().getRouteGraph();
+        while (count > 0) {
+            Entry entry = new Entry(seeds[head], sets[head]);
+            sets[head] = null;
+            head = (head + 1) % sets.length;
+            count--;
+            notify();
+            if (entry.cups().getRouteGraph() == routeGraph) {
+                taken++;
+                return entry;
+            }
+            stale++;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of sets the pool holds when full.
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return sets.length;
+    }
+
+    /**
+     * Returns the number of sets ready in the pool.
+     * @return The number of sets.
+     */
+    public synchronized int getFillLevel() {
+        return count;
+    }
+
+    /**
+     * Returns the number of sets taken from the pool so far, not counting those created by {@code take()} when it was empty.
+     * @return The number of sets taken.
+     */
+    public synchronized long getTakenCount() {
+        return taken;
+    }
+
+    /**
+     * Returns the number of calls to {@code take()} so far that found the pool empty.
+     * @return The number of times the pool was empty.
+     */
+    public synchronized long getEmptyCount() {
+        return empty;
+    }
+
+    /**
+     * Returns the number of sets dropped from the pool so far because their route graph had been replaced.
+     * @return The number of stale sets.
+     */
+    public synchronized long getStaleCount() {
+        return stale;
+    }
+
+    /**
+     * Returns the number of sets created by the producers so far.
+     * @return The number of sets created.
+     */
+    public synchronized long getProducedCount() {
+        return produced;
+    }
+
+    /**
+     * Returns the number of sets the producers failed to create so far.
+     * @return The number of failures.
+     */
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Returns the rate at which the producers refill the pool while they are working, i.e. not counting the time they spend waiting for it to have room.
+     * @return The refill rate in sets per second, or 0 if no set has been created yet.
+     */
+    public synchronized double getRefillRate() {
+        return producingNanos == 0 ? 0 : produced * producers.length * 1e9 / producingNanos;
+    }
+
+    /**
+     * Stops the producers. Sets already in the pool can still be taken.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Thread producer : producers) {
+            producer.interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Pool: " + count + " of " + sets.length + " sets ready (taken " + taken + ", empty " + empty + ", stale " + stale + ", produced " + produced + ", failed " + failed + ", refill rate " + String.format(Locale.ROOT, "%.1f", getRefillRate()) + " sets per second)" + System.lineSeparator();
+    }
+}
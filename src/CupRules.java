@@ -0,0 +1,542 @@
+import java.util.*;
+
+/**
+ * A declarative set of rules that every set of cups must follow, on top of the rules described in {@code Randomiser}, so that house-rule events can be run without changing the solver.
+ * <p>
+ * Four kinds of rule are supported:
+ * <ul>
+ * <li>Pins, which fix the track in a slot of a cup. The standard rules pin Peach Stadium and Rainbow Road to the last two slots of the Special Cup.</li>
+ * <li>Banned routes, which may not be used to reach any slot, including the route from a track to itself that opens a cup.</li>
+ * <li>Limits on how many times a track may appear, from 0 to {@code CupSolver.MAX_USES}. A track limited to 0 appearances is left out altogether, and no longer has to appear at least once.</li>
+ * <li>Whether a track may appear again with a layout it has already been raced with. This is not allowed by default, which limits each track to one slot for each layout it can be reached with, and so limits how many slots can be filled.</li>
+ * </ul>
+ * Rules also set the shape of a set of cups: how many cups it has and how many tracks are in each, from the game's eight cups of four tracks up to {@code MAX_CUP_COUNT} cups of {@code MAX_CUP_LENGTH} tracks. The last cup is always the Special Cup.
+ * <p>
+ * Rules are written with track names, so that the same rules can be applied to any route graph, such as a routes file that has been reloaded.
+ * Before they are used, they are compiled against a route graph into a {@code Compiled} form that holds them as bitmasks over route IDs and track IDs, so checking them costs the solver a mask operation per route or track it looks at, however many rules there are.
+ * <p>
+ * Rules are immutable and built with a {@code Builder}. Two sets of rules that say the same thing are equal and have the same fingerprint, however they were built.
+ */
+public final class CupRules {
+    public static final int DEFAULT_CUP_COUNT = 8;
+    public static final int DEFAULT_CUP_LENGTH = 4;
+    public static final int MIN_CUP_COUNT = 2;
+    public static final int MAX_CUP_COUNT = 16;
+    public static final int MIN_CUP_LENGTH = 2;
+    /**
+     * The longest cups that can be created. Every possible cup is held in a {@code ChainTable}, and each extra track multiplies the number of them by around five, to 240,000 for cups of six tracks.
+     */
+    public static final int MAX_CUP_LENGTH = 6;
+
+    /**
+     * The rules described in {@code Randomiser}, with nothing added.
+     */
+    public static final CupRules STANDARD = standard(DEFAULT_CUP_COUNT, DEFAULT_CUP_LENGTH);
+
+    private final int cupCount;
+    private final int cupLength;
+    private final String[] pins;
+    private final TreeSet<BannedRoute> bannedRoutes;
+    private final int maxAppearances;
+    private final TreeMap<String, Integer> trackMaxAppearances;
+    private final boolean repeatedLayouts;
+    private final long fingerprint;
+
+    /**
+     * A route that may not be used.
+     * @param origin The name of the track the route starts from
+     * @param destination The name of the track the route leads to
+     */
+    private record BannedRoute(String origin, String destination) implements Comparable<BannedRoute> {
+        @Override
+        public int compareTo(BannedRoute other) {
+            int difference = origin.compareTo(other.origin);
+            return difference != 0 ? difference : destination.compareTo(other.destination);
+        }
+    }
+
+    private CupRules(Builder builder) {
+        cupCount = builder.cupCount;
+        cupLength = builder.cupLength;
+        pins = builder.pins.clone();
+        bannedRoutes = new TreeSet<>(builder.bannedRoutes);
+        maxAppearances = builder.maxAppearances;
+        trackMaxAppearances = new TreeMap<>(builder.trackMaxAppearances);
+        repeatedLayouts = builder.repeatedLayouts;
+        fingerprint = computeFingerprint();
+    }
+
+    /**
+     * Returns the rules described in {@code Randomiser} for sets of cups of a different shape, in which the Special Cup ends with Peach Stadium and then Rainbow Road.
+     * @param cupCount The number of cups, from {@code MIN_CUP_COUNT} to {@code MAX_CUP_COUNT}
+     * @param cupLength The number of tracks in each cup, from {@code MIN_CUP_LENGTH} to {@code MAX_CUP_LENGTH}
+     * @return The rules.
+     * @throws IllegalArgumentException If the number of cups or their length is out of range.
+     */
+    public static CupRules standard(int cupCount, int cupLength) {
+        return builder(cupCount, cupLength).pin(cupCount - 1, cupLength - 2, "Peach Stadium").pin(cupCount - 1, cupLength - 1, "Rainbow Road").build();
+    }
+
+    /**
+     * Creates a new builder for sets of eight cups of four tracks, with no rules of its own, in which the Special Cup is not pinned either.
+     * @return The builder.
+     */
+    public static Builder builder() {
+        return builder(DEFAULT_CUP_COUNT, DEFAULT_CUP_LENGTH);
+    }
+
+    /**
+     * Creates a new builder for sets of cups of the given shape, with no rules of its own, in which the Special Cup is not pinned either.
+     * @param cupCount The number of cups, from {@code MIN_CUP_COUNT} to {@code MAX_CUP_COUNT}
+     * @param cupLength The number of tracks in each cup, from {@code MIN_CUP_LENGTH} to {@code MAX_CUP_LENGTH}
+     * @return The builder.
+     * @throws IllegalArgumentException If the number of cups or their length is out of range.
+     */
+    public static Builder builder(int cupCount, int cupLength) {
+        if (cupCount < MIN_CUP_COUNT || cupCount > MAX_CUP_COUNT) {
+            throw new IllegalArgumentException("A set may have from " + MIN_CUP_COUNT + " to " + MAX_CUP_COUNT + " cups, not " + cupCount + ".");
+        }
+        if (cupLength < MIN_CUP_LENGTH || cupLength > MAX_CUP_LENGTH) {
+            throw new IllegalArgumentException("A cup may have from " + MIN_CUP_LENGTH + " to " + MAX_CUP_LENGTH + " tracks, not " + cupLength + ".");
+        }
+        return new Builder(cupCount, cupLength);
+    }
+
+    /**
+     * Creates a new builder holding these rules, so that rules can be added to them, such as house rules on top of {@code STANDARD}.
+     * @return The builder.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder(cupCount, cupLength);
+        System.arraycopy(pins, 0, builder.pins, 0, pins.length);
+        builder.bannedRoutes.addAll(bannedRoutes);
+        builder.maxAppearances = maxAppearances;
+        builder.trackMaxAppearances.putAll(trackMaxAppearances);
+        builder.repeatedLayouts = repeatedLayouts;
+        return builder;
+    }
+
+    /**
+     * Returns the number of cups in every set.
+     * @return The number of cups, the last of which is the Special Cup.
+     */
+    public int getCupCount() {
+        return cupCount;
+    }
+
+    /**
+     * Returns the number of tracks in every cup.
+     * @return The number of tracks in a cup.
+     */
+    public int getCupLength() {
+        return cupLength;
+    }
+
+    /**
+     * Returns the name of the track pinned to a slot.
+     * @param cup The index of the cup, where the last cup is the Special Cup
+     * @param position The position in the cup
+     * @return The name of the track, or {@code null} if the slot is not pinned.
+     */
+    public String getPin(int cup, int position) {
+        return pins[cup * cupLength + position];
+    }
+
+    /**
+     * Returns the number of times a track may appear in a set of cups.
+     * @param track The name of the track
+     * @return The number of appearances allowed, from 0 to {@code CupSolver.MAX_USES}.
+     */
+    public int getMaxAppearances(String track) {
+        return trackMaxAppearances.getOrDefault(track, maxAppearances);
+    }
+
+    /**
+     * Returns whether a track may appear again with a layout it has already been raced with.
+     * @return {@code true} if layouts may be repeated.
+     */
+    public boolean allowsRepeatedLayouts() {
+        return repeatedLayouts;
+    }
+
+    /**
+     * Returns whether a route has been banned.
+     * @param origin The name of the track the route starts from
+     * @param destination The name of the track the route leads to
+     * @return {@code true} if the route may not be used.
+     */
+    public boolean isBanned(String origin, String destination) {
+        return bannedRoutes.contains(new BannedRoute(origin, destination));
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the rules, which is the same for any two sets of rules that are equal.
+     * @return The fingerprint.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Hashes the shape of the cups and every pin, banned route and limit with 64-bit FNV-1a, in a fixed order.
+     * @return The fingerprint.
+     */
+    private long computeFingerprint() {
+        long hash = 0xCBF29CE484222325L;
+        hash = fingerprint(hash, cupCount + "x" + cupLength);
+        for (String pin : pins) {
+            hash = fingerprint(hash, pin == null ? "" : pin);
+        }
+        for (BannedRoute route : bannedRoutes) {
+            hash = fingerprint(hash, route.origin);
+            hash = fingerprint(hash, route.destination);
+        }
+        hash = fingerprint(hash, Integer.toString(maxAppearances));
+        for (Map.Entry<String, Integer> limit : trackMaxAppearances.entrySet()) {
+            hash = fingerprint(hash, limit.getKey());
+            hash = fingerprint(hash, limit.getValue().toString());
+        }
+        return fingerprint(hash, Boolean.toString(repeatedLayouts));
+    }
+
+    private static long fingerprint(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        return (hash ^ 0xFF) * 0x100000001B3L;
+    }
+
+    /**
+     * Compiles the rules against a route graph.
+     * @param routeGraph The route graph to compile the rules for
+     * @return The compiled rules.
+     * @throws IllegalArgumentException If a track named by the rules is not in the route graph, a banned route does not exist, the graph has more than 64 tracks, or the tracks allowed cannot fill every slot.
+     */
+    public Compiled compile(RouteGraph routeGraph) {
+        return new Compiled(this, routeGraph);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CupRules rules)) {
+            return false;
+        }
+        return cupCount == rules.cupCount && cupLength == rules.cupLength && Arrays.equals(pins, rules.pins) && bannedRoutes.equals(rules.bannedRoutes) && maxAppearances == rules.maxAppearances && trackMaxAppearances.equals(rules.trackMaxAppearances) && repeatedLayouts == rules.repeatedLayouts;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(fingerprint);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Cups: ").append(cupCount).append(" of ").append(cupLength).append(" tracks").append(System.lineSeparator());
+        for (int slot = 0; slot < pins.length; slot++) {
+            if (pins[slot] != null) {
+                builder.append("Pin: ").append(CupSet.getCupName(slot / cupLength, cupCount)).append(" Cup, track ").append(slot % cupLength + 1).append(" is ").append(pins[slot]).append(System.lineSeparator());
+            }
+        }
+        for (BannedRoute route : bannedRoutes) {
+            builder.append("Banned: ").append(route.origin).append(" to ").append(route.destination).append(System.lineSeparator());
+        }
+        builder.append("Max appearances: ").append(maxAppearances).append(System.lineSeparator());
+        for (Map.Entry<String, Integer> limit : trackMaxAppearances.entrySet()) {
+            builder.append("Max appearances: ").append(limit.getKey()).append(" ").append(limit.getValue()).append(System.lineSeparator());
+        }
+        if (repeatedLayouts) {
+            builder.append("Repeated layouts: allowed").append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Builds a set of rules. Every method returns the builder, so that calls can be chained.
+     */
+    public static final class Builder {
+        private final int cupCount;
+        private final int cupLength;
+        private final String[] pins;
+        private final TreeSet<BannedRoute> bannedRoutes = new TreeSet<>();
+        private int maxAppearances = CupSolver.MAX_USES;
+        private final TreeMap<String, Integer> trackMaxAppearances = new TreeMap<>();
+        private boolean repeatedLayouts;
+
+        private Builder(int cupCount, int cupLength) {
+            this.cupCount = cupCount;
+            this.cupLength = cupLength;
+            pins = new String[cupCount * cupLength];
+        }
+
+        /**
+         * Returns the number of cups in every set, as given when the builder was created.
+         * @return The number of cups.
+         */
+        public int getCupCount() {
+            return cupCount;
+        }
+
+        /**
+         * Returns the number of tracks in every cup, as given when the builder was created.
+         * @return The number of tracks in a cup.
+         */
+        public int getCupLength() {
+            return cupLength;
+        }
+
+        /**
+         * Pins a track to a slot, replacing any track already pinned there.
+         * The regular cups keep their pinned tracks when they are given their names, so a track pinned to cup 0 always appears in the Mushroom Cup.
+         * @param cup The index of the cup, where the last cup is the Special Cup
+         * @param position The position in the cup
+         * @param track The name of the track
+         * @return This builder.
+         * @throws IllegalArgumentException If the cup or position is out of range.
+         */
+        public Builder pin(int cup, int position, String track) {
+            pins[checkSlot(cup, position)] = Objects.requireNonNull(track);
+            return this;
+        }
+
+        /**
+         * Removes the pin from a slot, if it has one.
+         * @param cup The index of the cup, where the last cup is the Special Cup
+         * @param position The position in the cup
+         * @return This builder.
+         * @throws IllegalArgumentException If the cup or position is out of range.
+         */
+        public Builder unpin(int cup, int position) {
+            pins[checkSlot(cup, position)] = null;
+            return this;
+        }
+
+        private int checkSlot(int cup, int position) {
+            if (cup < 0 || cup >= cupCount || position < 0 || position >= cupLength) {
+                throw new IllegalArgumentException("There is no slot " + position + " in cup " + cup + ".");
+            }
+            return cup * cupLength + position;
+        }
+
+        /**
+         * Bans a route. Banning the route from a track to itself stops the track from opening a cup.
+         * @param origin The name of the track the route starts from
+         * @param destination The name of the track the route leads to
+         * @return This builder.
+         */
+        public Builder banRoute(String origin, String destination) {
+            bannedRoutes.add(new BannedRoute(Objects.requireNonNull(origin), Objects.requireNonNull(destination)));
+            return this;
+        }
+
+        /**
+         * Limits how many times every track without a limit of its own may appear.
+         * @param max The number of appearances allowed, from 0 to {@code CupSolver.MAX_USES}
+         * @return This builder.
+         * @throws IllegalArgumentException If the limit is out of range.
+         */
+        public Builder maxAppearances(int max) {
+            maxAppearances = checkAppearances(max);
+            return this;
+        }
+
+        /**
+         * Limits how many times a track may appear, replacing any limit it already has.
+         * @param track The name of the track
+         * @param max The number of appearances allowed, from 0 to {@code CupSolver.MAX_USES}
+         * @return This builder.
+         * @throws IllegalArgumentException If the limit is out of range.
+         */
+        public Builder maxAppearances(String track, int max) {
+            trackMaxAppearances.put(Objects.requireNonNull(track), checkAppearances(max));
+            return this;
+        }
+
+        /**
+         * Sets whether a track may appear again with a layout it has already been raced with, which is needed to fill more slots than there are layouts.
+         * @param allowed {@code true} to allow layouts to be repeated
+         * @return This builder.
+         */
+        public Builder allowRepeatedLayouts(boolean allowed) {
+            repeatedLayouts = allowed;
+            return this;
+        }
+
+        private static int checkAppearances(int max) {
+            if (max < 0 || max > CupSolver.MAX_USES) {
+                throw new IllegalArgumentException("A track may appear from 0 to " + CupSolver.MAX_USES + " times, not " + max + ".");
+            }
+            return max;
+        }
+
+        /**
+         * Builds the rules.
+         * @return The rules.
+         * @throws IllegalArgumentException If a track is pinned twice in one cup, or pinned more times than it may appear.
+         */
+        public CupRules build() {
+            HashMap<String, Integer> pinCounts = new HashMap<>();
+            for (int cup = 0; cup < cupCount; cup++) {
+                HashSet<String> cupPins = new HashSet<>();
+                for (int position = 0; position < cupLength; position++) {
+                    String track = pins[cup * cupLength + position];
+                    if (track == null) {
+                        continue;
+                    }
+                    if (!cupPins.add(track)) {
+                        throw new IllegalArgumentException(track + " is pinned twice in the " + CupSet.getCupName(cup, cupCount) + " Cup.");
+                    }
+                    pinCounts.merge(track, 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<String, Integer> pinCount : pinCounts.entrySet()) {
+                if (pinCount.getValue() > trackMaxAppearances.getOrDefault(pinCount.getKey(), maxAppearances)) {
+                    throw new IllegalArgumentException(pinCount.getKey() + " is pinned more times than it may appear.");
+                }
+            }
+            return new CupRules(this);
+        }
+    }
+
+    /**
+     * A set of rules compiled against one route graph, as checked by {@code CupSolver}.
+     * <p>
+     * Banned routes are held as a bitmask over route IDs, and the tracks that must appear as a bitmask over track IDs, so that each check is a shift and a mask.
+     * The number of appearances allowed for each track and the track pinned to each slot are held in arrays indexed by track ID and slot.
+     */
+    public static final class Compiled {
+        private final CupRules rules;
+        private final RouteGraph routeGraph;
+        private final long[] allowedRoutes;
+        private final long requiredTracks;
+        private final int[] maxUses;
+        private final int[] pinnedTracks;
+
+        private Compiled(CupRules rules, RouteGraph routeGraph) {
+            this.rules = rules;
+            this.routeGraph = routeGraph;
+            int trackCount = routeGraph.getTrackCount();
+            if (trackCount > RouteGraph.MAX_TRACKS) {
+                throw new IllegalArgumentException("Rules can only be compiled for up to " + RouteGraph.MAX_TRACKS + " tracks, but the routes have " + trackCount + ".");
+            }
+
+            maxUses = new int[trackCount];
+            for (int track = 0; track < trackCount; track++) {
+                maxUses[track] = rules.maxAppearances;
+            }
+            for (Map.Entry<String, Integer> limit : rules.trackMaxAppearances.entrySet()) {
+                maxUses[getTrackId(routeGraph, limit.getKey())] = limit.getValue();
+            }
+
+            allowedRoutes = new long[(routeGraph.getRouteCount() + Long.SIZE - 1) / Long.SIZE];
+            for (int route = 0; route < routeGraph.getRouteCount(); route++) {
+                allowedRoutes[route / Long.SIZE] |= 1L << route;
+            }
+            for (BannedRoute banned : rules.bannedRoutes) {
+                int route = routeGraph.getRoute(getTrackId(routeGraph, banned.origin), getTrackId(routeGraph, banned.destination));
+                if (route == RouteGraph.NONE) {
+                    throw new IllegalArgumentException("There is no route from " + banned.origin + " to " + banned.destination + " to ban.");
+                }
+                allowedRoutes[route / Long.SIZE] &= ~(1L << route);
+            }
+
+            int slotCount = rules.pins.length;
+            pinnedTracks = new int[slotCount];
+            for (int slot = 0; slot < slotCount; slot++) {
+                pinnedTracks[slot] = rules.pins[slot] == null ? RouteGraph.NONE : getTrackId(routeGraph, rules.pins[slot]);
+            }
+
+            // A track has to appear if it may appear at all and some allowed route leads to it.
+            long required = 0;
+            int[] layouts = new int[trackCount];
+            for (int route = 0; route < routeGraph.getRouteCount(); route++) {
+                int destination = routeGraph.getRouteDestination(route);
+                if (isRouteAllowed(route) && maxUses[destination] > 0) {
+                    required |= 1L << destination;
+                    layouts[destination] |= 1 << routeGraph.getRouteLayout(route);
+                }
+            }
+            requiredTracks = required;
+            int capacity = 0;
+            for (int track = 0; track < trackCount; track++) {
+                if ((required & (1L << track)) != 0) {
+                    capacity += rules.repeatedLayouts ? maxUses[track] : Math.min(maxUses[track], Integer.bitCount(layouts[track]));
+                }
+            }
+            if (Long.bitCount(required) > slotCount) {
+                throw new IllegalArgumentException(Long.bitCount(required) + " tracks have to appear, but there are only " + slotCount + " slots.");
+            }
+            if (capacity < slotCount) {
+                throw new IllegalArgumentException("The tracks allowed by the rules can fill at most " + capacity + " slots, but there are " + slotCount + (rules.repeatedLayouts ? "." : ". Allowing repeated layouts may let them fill more."));
+            }
+        }
+
+        private static int getTrackId(RouteGraph routeGraph, String track) {
+            int id = routeGraph.getTrackId(track);
+            if (id == RouteGraph.NONE) {
+                throw new IllegalArgumentException("Track " + track + " is named by the rules, but is not in the route graph.");
+            }
+            return id;
+        }
+
+        /**
+         * Returns the rules that were compiled.
+         * @return The rules.
+         */
+        public CupRules getRules() {
+            return rules;
+        }
+
+        /**
+         * Returns the route graph that the rules were compiled against.
+         * @return The route graph.
+         */
+        public RouteGraph getRouteGraph() {
+            return routeGraph;
+        }
+
+        /**
+         * Returns whether a route may be used.
+         * @param route The ID of the route
+         * @return {@code true} if the route is not banned.
+         */
+        public boolean isRouteAllowed(int route) {
+            return (allowedRoutes[route >>> 6] & (1L << route)) != 0;
+        }
+
+        /**
+         * Returns whether a track may appear again with a layout it has already been raced with.
+         * @return {@code true} if layouts may be repeated.
+         */
+        public boolean allowsRepeatedLayouts() {
+            return rules.repeatedLayouts;
+        }
+
+        /**
+         * Returns the tracks that must appear at least once as a bitmask, with bit {@code n} set if track {@code n} must appear.
+         * @return The bitmask of tracks.
+         */
+        public long getRequiredTracks() {
+            return requiredTracks;
+        }
+
+        /**
+         * Returns the number of times a track may appear.
+         * @param track The ID of the track
+         * @return The number of appearances allowed.
+         */
+        public int getMaxUses(int track) {
+            return maxUses[track];
+        }
+
+        /**
+         * Returns the track pinned to a slot.
+         * @param cup The index of the cup, where the last cup is the Special Cup
+         * @param position The position in the cup
+         * @return The ID of the track, or {@code RouteGraph.NONE} if the slot is not pinned.
+         */
+        public int getPinnedTrack(int cup, int position) {
+            return pinnedTracks[cup * rules.cupLength + position];
+        }
+    }
+}
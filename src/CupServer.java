@@ -0,0 +1,249 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * A small HTTP server that creates sets of cups on demand, so that other tools can use the randomiser without starting a new JVM for every set.
+ * <p>
+ * The server is built on the JDK's own {@code HttpServer}, with each request handled on its own virtual thread. Every request shares one {@code RandomiserEngine}, and so one route graph that is loaded before the server starts.
+ * A server can instead be given a supplier of engines, such as a {@code RouteWatcher}, in which case each request takes the current engine when it starts and uses it throughout, so a request being handled when the engine is replaced finishes on the old route graph.
+ * A server can also be given a {@code CupCache}, so that seeds asked for again are answered without a search, and a {@code CupPool}, so that requests without a seed are answered with a set created ahead of time.
+ * It answers two paths, and only to {@code GET} requests:
+ * <ul>
+ * <li>{@code /cups?seed=S&format=json|csv|txt|bin}: creates a set of cups from the seed, or takes one from the pool if no seed is given and the server has a pool, or creates one from a random seed otherwise, and returns it in the same form as a {@code CupWriter} holding just that set. The format defaults to JSON.</li>
+ * <li>{@code /metrics}: returns the engine's metrics as plain text, including the latency of every request handled so far and the counters of its cache and pool, if it has them.</li>
+ * </ul>
+ * Any other path is answered with 404, any other method with 405, and an invalid seed or format with 400.
+ */
+public final class CupServer implements AutoCloseable {
+    private static final int BACKLOG = 1024;
+
+    static {
+        // The JDK's server writes a response's headers and body separately, so without this the body of a kept-alive response waits for the client's delayed ACK, which adds about 40ms.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final Supplier<RandomiserEngine> engines;
+    private final CupCache cache;
+    private final CupPool pool;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new server listening on the loopback address, without starting it.
+     * @param engine The engine to create sets of cups with, which is shared by every request
+     * @param port The port to listen on, or 0 for any free port
+     * @throws IOException If the server cannot listen on the port.
+     */
+    public CupServer(RandomiserEngine engine, int port) throws IOException {
+        this(engine, port, null);
+    }
+
+    /**
+     * Creates a new server listening on the loopback address that takes sets of cups from a cache where it can, without starting it.
+     * @param engine The engine to create sets of cups with, which is shared by every request
+     * @param port The port to listen on, or 0 for any free port
+     * @param cache The cache to take sets of cups from and add them to, or {@code null} to create every set with the engine
+     * @throws IOException If the server cannot listen on the port.
+     */
+    public CupServer(RandomiserEngine engine, int port, CupCache cache) throws IOException {
+        this(engine, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), cache);
+    }
+
+    /**
+     * Creates a new server listening on the given address that takes sets of cups from a cache where it can, without starting it.
+     * @param engine The engine to create sets of cups with, which is shared by every request
+     * @param address The address to listen on
+     * @param cache The cache to take sets of cups from and add them to, or {@code null} to create every set with the engine
+     * @throws IOException If the server cannot listen on the address.
+     */
+    public CupServer(RandomiserEngine engine, InetSocketAddress address, CupCache cache) throws IOException {
+        this(engine, address, cache, null);
+    }
+
+    /**
+     * Creates a new server listening on the given address that takes sets of cups from a cache and a pool where it can, without starting it.
+     * @param engine The engine to create sets of cups with, which is shared by every request
+     * @param address The address to listen on
+     * @param cache The cache to take seeded sets of cups from and add them to, or {@code null} to create every seeded set with the engine
+     * @param pool The pool to take sets of cups from when no seed is given, or {@code null} to create them with the engine. The pool is not closed with the server.
+     * @throws IOException If the server cannot listen on the address.
+     */
+    public CupServer(RandomiserEngine engine, InetSocketAddress address, CupCache cache, CupPool pool) throws IOException {
+        this(() -> engine, address, cache, pool);
+    }
+
+    /**
+     * Creates a new server listening on the given address that creates sets of cups with whichever engine is current, and takes them from a cache and a pool where it can, without starting it.
+     * @param engines Supplies the engine to handle each request with, which is taken once when the request starts
+     * @param address The address to listen on
+     * @param cache The cache to take seeded sets of cups from and add them to, or {@code null} to create every seeded set with the engine
+     * @param pool The pool to take sets of cups from when no seed is given, or {@code null} to create them with the engine. The pool is not closed with the server.
+     * @throws IOException If the server cannot listen on the address.
+     */
+    public CupServer(Supplier<RandomiserEngine> engines, InetSocketAddress address, CupCache cache, CupPool pool) throws IOException {
+        this.engines = engines;
+        this.cache = cache;
+        this.pool = pool;
+        server = HttpServer.create(address, BACKLOG);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/cups", this::handleCups);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Starts handling requests in the background.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the address the server is listening on, which includes the port chosen if it was created with port 0.
+     * @return The address.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops the server straight away, abandoning any requests still being handled.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Handles a request for a set of cups.
+     * @param exchange The request and its response
+     */
+    private void handleCups(HttpExchange exchange) throws IOException {
+        long startTime = System.nanoTime();
+        RandomiserEngine engine = engines.get();
+        try (exchange) {
+            if (!checkRequest(exchange, "/cups")) {
+                return;
+            }
+            Long seed = null;
+            CupWriter.Format format = CupWriter.Format.JSON_LINES;
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), StandardCharsets.UTF_8);
+                    String value = equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                    if (name.equals("seed")) {
+                        try {
+                            seed = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            send(exchange, 400, "text/plain", "Invalid seed: " + value);
+                            return;
+                        }
+                    } else if (name.equals("format")) {
+                        format = value.equalsIgnoreCase("json") ? CupWriter.Format.JSON_LINES : value.equalsIgnoreCase("bin") ? CupWriter.Format.BINARY : CupWriter.Format.fromName(value);
+                        if (format == null) {
+                            send(exchange, 400, "text/plain", "Invalid format: " + value + ". Use json, csv, txt or bin.");
+                            return;
+                        }
+                    }
+                }
+            }
+
+            CupSet cups;
+            if (seed == null && pool != null) {
+                CupPool.Entry entry = pool.take();
+                seed = entry.seed();
+                cups = entry.cups();
+            } else {
+                if (seed == null) {
+                    seed = ThreadLocalRandom.current().nextLong();
+                }
+                cups = cache != null ? cache.get(engine, seed) : engine.randomise(seed);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+            CupWriter writer = new CupWriter(body, format);
+            writer.write(seed, cups);
+            writer.commit();
+            String contentType = switch (format) {
+                case TEXT -> "text/plain; charset=utf-8";
+                case CSV, CUP_ROWS -> "text/csv; charset=utf-8";
+                case JSON_LINES -> "application/json; charset=utf-8";
+                case BINARY -> "application/octet-stream";
+            };
+            send(exchange, 200, contentType, body.toByteArray());
+        } finally {
+            engine.getMetrics().recordLatency(SolverMetrics.Phase.REQUEST, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Handles a request for the engine's metrics.
+     * @param exchange The request and its response
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (checkRequest(exchange, "/metrics")) {
+                send(exchange, 200, "text/plain", engines.get().getMetrics().snapshot().toString() + (cache != null ? cache.toString() : "") + (pool != null ? pool.toString() : ""));
+            }
+        }
+    }
+
+    /**
+     * Checks that a request is a {@code GET} for exactly the given path, and answers it with an error if not.
+     * @param exchange The request and its response
+     * @param path The path that the request's context was created for
+     * @return {@code true} if the request should be handled.
+     */
+    private static boolean checkRequest(HttpExchange exchange, String path) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals(path)) {
+            send(exchange, 404, "text/plain", "Not found.");
+            return false;
+        }
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            send(exchange, 405, "text/plain", "Only GET is supported.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a complete response.
+     * @param exchange The request to respond to
+     * @param status The HTTP status code
+     * @param contentType The media type of the body, which is always sent as UTF-8
+     * @param body The body
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        send(exchange, status, contentType + "; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a complete response.
+     * @param exchange The request to respond to
+     * @param status The HTTP status code
+     * @param contentType The content type of the body, including its character set if it is text
+     * @param bytes The body
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
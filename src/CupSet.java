@@ -0,0 +1,157 @@
+import java.util.*;
+
+/**
+ * An immutable set of random cups, as created by {@code RandomiserEngine}.
+ * <p>
+ * Each slot is stored as the ID of the route used to reach it, which identifies both the track in the slot and the layout it is raced with. The first slot of each cup holds the route from the track to itself.
+ */
+public final class CupSet {
+    public static final String[] CUP_NAMES = {"Mushroom", "Flower", "Star", "Shell", "Banana", "Leaf", "Lightning", "Special"};
+
+    private final RouteGraph routeGraph;
+    private final int[][] slotRoutes;
+
+    /**
+     * Creates a new set of cups. The routes are copied, so later changes to the provided array have no effect.
+     * @param routeGraph The route graph the routes belong to
+     * @param slotRoutes The ID of the route used to reach each slot, indexed by cup and then by position
+     */
+    public CupSet(RouteGraph routeGraph, int[][] slotRoutes) {
+        this.routeGraph = routeGraph;
+        this.slotRoutes = new int[slotRoutes.length][];
+        for (int cup = 0; cup < slotRoutes.length; cup++) {
+            this.slotRoutes[cup] = slotRoutes[cup].clone();
+        }
+    }
+
+    /**
+     * Returns the route graph that this set of cups was created from.
+     * @return The route graph.
+     */
+    public RouteGraph getRouteGraph() {
+        return routeGraph;
+    }
+
+    /**
+     * Returns the number of cups in the set.
+     * @return The number of cups.
+     */
+    public int getCupCount() {
+        return slotRoutes.length;
+    }
+
+    /**
+     * Returns the number of tracks in each cup.
+     * @return The number of tracks in each cup.
+     */
+    public int getCupLength() {
+        return slotRoutes[0].length;
+    }
+
+    /**
+     * Returns the name of a cup, such as "Mushroom".
+     * @param cup The index of the cup
+     * @return The name of the cup.
+     */
+    public String getCupName(int cup) {
+        return getCupName(cup, getCupCount());
+    }
+
+    /**
+     * Returns the name of a cup in a set with the given number of cups.
+     * The last cup is always the Special Cup, and the cups before it take the other names in {@code CUP_NAMES} in order. In a set with more cups than there are names, the extra cups are named by their number, such as "8".
+     * @param cup The index of the cup
+     * @param cupCount The number of cups in the set
+     * @return The name of the cup.
+     */
+    public static String getCupName(int cup, int cupCount) {
+        if (cup == cupCount - 1) {
+            return CUP_NAMES[CUP_NAMES.length - 1];
+        }
+        return cup < CUP_NAMES.length - 1 ? CUP_NAMES[cup] : Integer.toString(cup + 1);
+    }
+
+    /**
+     * Returns the ID of the route used to reach a slot.
+     * @param cup The index of the cup
+     * @param position The position in the cup
+     * @return The ID of the route.
+     */
+    public int getRoute(int cup, int position) {
+        return slotRoutes[cup][position];
+    }
+
+    /**
+     * Returns the ID of the track in a slot.
+     * @param cup The index of the cup
+     * @param position The position in the cup
+     * @return The ID of the track.
+     */
+    public int getTrack(int cup, int position) {
+        return routeGraph.getRouteDestination(slotRoutes[cup][position]);
+    }
+
+    /**
+     * Returns the name of the track in a slot.
+     * @param cup The index of the cup
+     * @param position The position in the cup
+     * @return The name of the track.
+     */
+    public String getTrackName(int cup, int position) {
+        return routeGraph.getTrackName(getTrack(cup, position));
+    }
+
+    /**
+     * Returns a cup as an unmodifiable map of positions to track names.
+     * @param cup The index of the cup
+     * @return The cup in Map form.
+     */
+    public Map<Integer, String> getCup(int cup) {
+        HashMap<Integer, String> cupMap = new HashMap<>();
+        for (int position = 0; position < getCupLength(); position++) {
+            cupMap.put(position, getTrackName(cup, position));
+        }
+        return Collections.unmodifiableMap(cupMap);
+    }
+
+    /**
+     * Returns every cup as an unmodifiable map of cup names to cups, as provided by {@code getCup(int)}.
+     * @return Every cup in Map form.
+     */
+    public Map<String, Map<Integer, String>> getAllCups() {
+        HashMap<String, Map<Integer, String>> cups = new HashMap<>();
+        for (int cup = 0; cup < getCupCount(); cup++) {
+            cups.put(getCupName(cup), getCup(cup));
+        }
+        return Collections.unmodifiableMap(cups);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof CupSet cupSet) {
+            return routeGraph == cupSet.routeGraph && Arrays.deepEquals(slotRoutes, cupSet.slotRoutes);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.deepHashCode(slotRoutes);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int cup = 0; cup < getCupCount(); cup++) {
+            builder.append(getCupName(cup)).append(" Cup: ");
+            for (int position = 0; position < getCupLength(); position++) {
+                if (position > 0) {
+                    builder.append(", ");
+                }
+                builder.append(getTrackName(cup, position));
+            }
+            builder.append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+}
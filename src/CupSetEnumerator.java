@@ -0,0 +1,692 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Counts and lists every valid cup and every valid set of cups that a route graph allows, under the rules described in {@code Randomiser}.
+ * <p>
+ * A chain is a single valid cup: a track reached by its route to itself, followed by three more tracks each reached by a route from the one before, with no track repeated.
+ * Every chain is read from a {@code ChainTable} up front, which takes a few milliseconds.
+ * Only sets of {@code CupRules.DEFAULT_CUP_COUNT} cups of {@code CupRules.DEFAULT_CUP_LENGTH} tracks are counted.
+ * <p>
+ * Sets of cups are counted without listing them. The Special Cup is filled with each of its possible chains in turn, and the other cups are then filled one chain at a time.
+ * Each step picks the chain holding a single track, chosen by a fixed rule: the track with the fewest chains that is still unused, or that has been used once but is waiting for its second use.
+ * A track used twice is marked as either its first or its second use each time it is placed, and the track picked for a step is always given its first use. So every set of cups is reached in exactly one way, and the number of sets reachable from a state depends only on that state.
+ * That state is a bitmask of the tracks used so far, the number of tracks used twice, and the track and layout of each track still waiting for its second use, which all fit into a single long.
+ * <p>
+ * The number of sets reachable from each state is memoised in a fixed-size table shared by every thread, so memory use is bounded no matter how long counting takes.
+ * When two states land in the same entry, the newer one replaces the older, which then has to be counted again if it is reached again.
+ * Each entry is stored as its count and its key XORed with its count, so an entry torn by two threads writing at once is detected and ignored rather than trusted.
+ * <p>
+ * Counting is split across a fork/join pool, first by the chain in the Special Cup and then by the first of the other chains.
+ * With the standard routes it visits billions of states, so it is best left running on a spare machine, and it can be cancelled.
+ * <p>
+ * Sets of cups are counted, and listed, ignoring the order of the seven cups other than the Special Cup. Multiply by 5040 (7!) for the number of ordered sets.
+ * <p>
+ * The same states are also walked at random by {@code UniformSampler}, through a {@code Proposer}, to draw sets of cups uniformly.
+ */
+public final class CupSetEnumerator {
+    /**
+     * The number of entries in the memo table when none is given, which takes 64 MiB.
+     */
+    public static final int DEFAULT_MEMO_CAPACITY = 1 << 22;
+
+    private static final int NONE = RouteGraph.NONE;
+    private static final int CUP_COUNT = CupRules.DEFAULT_CUP_COUNT;
+    private static final int CUP_LENGTH = CupRules.DEFAULT_CUP_LENGTH;
+    private static final int SPECIAL_CUP = CUP_COUNT - 1;
+    private static final int MAX_DUPLICATES = 2;
+    private static final int PENDING_BITS = 12;
+    private static final int PENDING_MASK = (1 << PENDING_BITS) - 1;
+    private static final int CANCEL_CHECK_INTERVAL = 4095;
+
+    private final RouteGraph routeGraph;
+    private final int chainCount;
+    private final int[] chainRoutes;
+    private final int[] chainTracks;
+    private final int[] chainLayouts;
+    private final int[][] chainsByTrack;
+    private final int[] specialChains;
+
+    private final int requiredMask;
+    private final int duplicates;
+    private final int[] selectionRanks;
+    private final int[] tracksByRank;
+
+    private final int memoShift;
+    private final long[] memoKeys;
+    private final long[] memoCounts;
+
+    /**
+     * Creates a new enumerator for the given route graph, with a memo table of {@code DEFAULT_MEMO_CAPACITY} entries.
+     * @param routeGraph The route graph to build cups from
+     * @throws IllegalArgumentException If the route graph has more than 32 tracks, or so few that more than two tracks would have to be used twice.
+     */
+    public CupSetEnumerator(RouteGraph routeGraph) {
+        this(routeGraph, DEFAULT_MEMO_CAPACITY);
+    }
+
+    /**
+     * Creates a new enumerator for the given route graph. Every chain in the graph is found straight away.
+     * @param routeGraph The route graph to build cups from
+     * @param memoCapacity The number of entries in the memo table, which is rounded down to a power of two. Each entry takes 16 bytes.
+     * @throws IllegalArgumentException If the route graph has more than 32 tracks, or so few that more than two tracks would have to be used twice, or if the memo capacity is less than 1.
+     */
+    public CupSetEnumerator(RouteGraph routeGraph, int memoCapacity) {
+        int trackCount = routeGraph.getTrackCount();
+        if (trackCount > Integer.SIZE) {
+            throw new IllegalArgumentException("Cup sets can only be counted for up to " + Integer.SIZE + " tracks.");
+        }
+        if (memoCapacity < 1) {
+            throw new IllegalArgumentException("The memo table must have at least one entry.");
+        }
+        this.routeGraph = routeGraph;
+
+        int required = 0;
+        for (int track = 0; track < trackCount; track++) {
+            if (routeGraph.getIncomingRouteCount(track) > 0) {
+                required |= 1 << track;
+            }
+        }
+        requiredMask = required;
+        duplicates = CUP_COUNT * CUP_LENGTH - Integer.bitCount(required);
+        if (duplicates > MAX_DUPLICATES) {
+            throw new IllegalArgumentException("Cup sets can only be counted when at most " + MAX_DUPLICATES + " tracks have to be used twice, but this route graph needs " + duplicates + ".");
+        }
+
+        ChainTable chainTable = new ChainTable(routeGraph);
+        chainCount = chainTable.getChainCount();
+        chainRoutes = new int[chainCount * CUP_LENGTH];
+        chainTracks = new int[chainCount * CUP_LENGTH];
+        chainLayouts = new int[chainCount * CUP_LENGTH];
+        int[] trackChainCounts = new int[trackCount];
+        for (int chain = 0; chain < chainCount; chain++) {
+            for (int position = 0; position < CUP_LENGTH; position++) {
+                int index = chain * CUP_LENGTH + position;
+                chainRoutes[index] = chainTable.getRoute(chain, position);
+                chainTracks[index] = chainTable.getTrack(chain, position);
+                chainLayouts[index] = chainTable.getLayout(chain, position);
+                trackChainCounts[chainTracks[index]]++;
+            }
+        }
+        chainsByTrack = new int[trackCount][];
+        for (int track = 0; track < trackCount; track++) {
+            chainsByTrack[track] = new int[trackChainCounts[track]];
+            trackChainCounts[track] = 0;
+        }
+        for (int index = 0; index < chainTracks.length; index++) {
+            int track = chainTracks[index];
+            chainsByTrack[track][trackChainCounts[track]++] = index / CUP_LENGTH;
+        }
+
+        int rainbowRoad = routeGraph.getTrackId("Rainbow Road");
+        int peachStadium = routeGraph.getTrackId("Peach Stadium");
+        int[] special = new int[chainCount];
+        int specialCount = 0;
+        for (int chain = 0; chain < chainCount; chain++) {
+            int last = chain * CUP_LENGTH + CUP_LENGTH - 1;
+            if (rainbowRoad != NONE && chainTracks[last] == rainbowRoad && chainTracks[last - 1] == peachStadium) {
+                special[specialCount++] = chain;
+            }
+        }
+        specialChains = Arrays.copyOf(special, specialCount);
+
+        Integer[] order = new Integer[trackCount];
+        for (int track = 0; track < trackCount; track++) {
+            order[track] = track;
+        }
+        Arrays.sort(order, Comparator.comparingInt(track -> chainsByTrack[track].length));
+        selectionRanks = new int[trackCount];
+        tracksByRank = new int[trackCount];
+        for (int rank = 0; rank < trackCount; rank++) {
+            selectionRanks[order[rank]] = rank;
+            tracksByRank[rank] = order[rank];
+        }
+
+        int memoBits = 31 - Integer.numberOfLeadingZeros(memoCapacity);
+        memoShift = Long.SIZE - memoBits;
+        memoKeys = new long[1 << memoBits];
+        memoCounts = new long[1 << memoBits];
+    }
+
+    /**
+     * Returns the route graph that this enumerator builds cups from.
+     * @return The route graph.
+     */
+    public RouteGraph getRouteGraph() {
+        return routeGraph;
+    }
+
+    /**
+     * Returns the number of chains, i.e. the number of different cups that could appear in a set, ignoring the rules that span several cups.
+     * @return The number of chains.
+     */
+    public int getChainCount() {
+        return chainCount;
+    }
+
+    /**
+     * Returns the number of chains that could fill the Special Cup, i.e. those ending in Peach Stadium and then Rainbow Road.
+     * @return The number of chains for the Special Cup.
+     */
+    public int getSpecialChainCount() {
+        return specialChains.length;
+    }
+
+    /**
+     * Counts the chains that start at each track.
+     * @return A map of each track name to the number of chains starting there, in order of track ID. Tracks without a route to themselves are included with a count of 0.
+     */
+    public Map<String, Integer> countChainsByStartingTrack() {
+        int[] counts = new int[routeGraph.getTrackCount()];
+        for (int chain = 0; chain < chainCount; chain++) {
+            counts[chainTracks[chain * CUP_LENGTH]]++;
+        }
+        LinkedHashMap<String, Integer> chainCounts = new LinkedHashMap<>();
+        for (int track = 0; track < counts.length; track++) {
+            chainCounts.put(routeGraph.getTrackName(track), counts[track]);
+        }
+        return chainCounts;
+    }
+
+    /**
+     * Passes every chain to the given action, ordered by starting track.
+     * @param action Called with the ID of the route used to reach each slot of the chain. A new array is passed each time.
+     */
+    public void forEachChain(Consumer<int[]> action) {
+        for (int chain = 0; chain < chainCount; chain++) {
+            action.accept(Arrays.copyOfRange(chainRoutes, chain * CUP_LENGTH, (chain + 1) * CUP_LENGTH));
+        }
+    }
+
+    /**
+     * Counts every valid set of cups, ignoring the order of the cups other than the Special Cup.
+     * @param parallelism The number of threads to count with
+     * @return The number of valid sets of cups.
+     * @throws ArithmeticException If there are more sets of cups than fit in a long.
+     */
+    public long countCupSets(int parallelism) {
+        return countCupSets(parallelism, () -> false);
+    }
+
+    /**
+     * Counts every valid set of cups, ignoring the order of the cups other than the Special Cup. The memo table is kept afterwards, so counting again is faster.
+     * @param parallelism The number of threads to count with
+     * @param cancelled Checked every few thousand states. Once it returns {@code true}, counting stops.
+     * @return The number of valid sets of cups.
+     * @throws CancellationException If counting was cancelled.
+     * @throws ArithmeticException If there are more sets of cups than fit in a long.
+     */
+    public long countCupSets(int parallelism, BooleanSupplier cancelled) {
+        ArrayList<CountTask> tasks = new ArrayList<>();
+        for (int special : specialChains) {
+            Search search = new Search(cancelled, new ArrayList<>());
+            search.assign(special, 0, 0, 0, 0, NONE);
+            for (long state : search.states) {
+                int mask = (int) state;
+                int dups = (int) (state >>> 32) & 3;
+                long pending = state >>> 34;
+                int selected = getSelectedTrack(mask, pending);
+                for (int chain : chainsByTrack[selected]) {
+                    tasks.add(new CountTask(chain, mask, dups, pending, selected, cancelled));
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(parallelism, 1));
+        try {
+            return pool.invoke(new RecursiveTask<Long>() {
+                @Override
+                protected Long compute() {
+                    long count = 0;
+                    for (CountTask task : ForkJoinTask.invokeAll(tasks)) {
+                        count = Math.addExact(count, task.join());
+                    }
+                    return count;
+                }
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Passes every valid set of cups to the given action, one at a time, until the action returns {@code false}.
+     * The seven cups other than the Special Cup are filled in the order their chains are chosen, and each unordered set is only passed once.
+     * <p>
+     * Only the current set is held in memory. Once every set following from a state has been listed, the number listed is stored in the memo table, so states that lead nowhere are skipped when they are reached again and later counts can reuse the numbers.
+     * @param action Called with each set of cups. Returns {@code true} to carry on, or {@code false} to stop.
+     * @return {@code true} if every set was passed to the action, or {@code false} if the action stopped early.
+     */
+    public boolean forEachCupSet(Predicate<CupSet> action) {
+        Lister lister = new Lister(action);
+        for (int special : specialChains) {
+            lister.cups[SPECIAL_CUP] = special;
+            if (!lister.place(special, SPECIAL_CUP, 0, 0, 0, 0, NONE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a proposer that draws random sets of cups from this enumerator, for {@code UniformSampler}. Each proposer may only be used by one thread at a time, but any number can share the enumerator.
+     * @return The proposer.
+     */
+    Proposer newProposer() {
+        return new Proposer();
+    }
+
+    /**
+     * Returns the track that the next chain must hold: out of every unused track and every track waiting for its second use, the one with the fewest chains.
+     */
+    private int getSelectedTrack(int mask, long pending) {
+        int needed = requiredMask & ~mask;
+        for (int slot = 0; slot < MAX_DUPLICATES; slot++) {
+            int entry = (int) (pending >>> (PENDING_BITS * slot)) & PENDING_MASK;
+            if (entry != 0) {
+                needed |= 1 << ((entry - 1) >> 6);
+            }
+        }
+        int bestRank = Integer.MAX_VALUE;
+        for (; needed != 0; needed &= needed - 1) {
+            bestRank = Math.min(bestRank, selectionRanks[Integer.numberOfTrailingZeros(needed)]);
+        }
+        return tracksByRank[bestRank];
+    }
+
+    /**
+     * Packs a state into a memo key, putting the pending entries in order so that the same state always has the same key.
+     */
+    private static long key(int mask, int dups, long pending) {
+        long first = pending & PENDING_MASK;
+        long second = pending >>> PENDING_BITS;
+        if (first > second) {
+            long swap = first;
+            first = second;
+            second = swap;
+        }
+        return (mask & 0xFFFFFFFFL) | (long) dups << 32 | first << 34 | second << (34 + PENDING_BITS);
+    }
+
+    /**
+     * Looks up a state in the memo table.
+     * @return The number of sets reachable from the state, or -1 if it is not in the table.
+     */
+    private long lookup(long key) {
+        int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> memoShift);
+        long count = memoCounts[index];
+        return (memoKeys[index] ^ count) == key ? count : -1;
+    }
+
+    private void store(long key, long count) {
+        int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> memoShift);
+        memoKeys[index] = key ^ count;
+        memoCounts[index] = count;
+    }
+
+    /**
+     * Counts every set of cups that continues from a state with a given chain.
+     */
+    private final class CountTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int chain;
+        private final int mask;
+        private final int dups;
+        private final long pending;
+        private final int selected;
+        private final transient BooleanSupplier cancelled;
+
+        CountTask(int chain, int mask, int dups, long pending, int selected, BooleanSupplier cancelled) {
+            this.chain = chain;
+            this.mask = mask;
+            this.dups = dups;
+            this.pending = pending;
+            this.selected = selected;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected Long compute() {
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException("Counting was cancelled.");
+            }
+            return new Search(cancelled, null).assign(chain, 0, mask, dups, pending, selected);
+        }
+    }
+
+    /**
+     * A single thread's counting search.
+     */
+    private final class Search {
+        private final BooleanSupplier cancelled;
+        private final List<Long> states;
+        private int misses;
+
+        /**
+         * @param states If not {@code null}, the states reached after placing a chain are added here instead of being counted
+         */
+        Search(BooleanSupplier cancelled, List<Long> states) {
+            this.cancelled = cancelled;
+            this.states = states;
+        }
+
+        /**
+         * Places the tracks of a chain from the given position onwards, trying each way a track could be used, then counts the sets reachable from each resulting state.
+         * @param chain The chain being placed
+         * @param position The position in the chain to place next
+         * @param pending Up to two packed entries, each holding a track waiting for its second use, whether its first use had the lower layout, and that layout
+         * @param selected The track the chain was chosen for, which cannot be given its second use, or {@code NONE} for the Special Cup
+         * @return The number of sets reachable.
+         */
+        long assign(int chain, int position, int mask, int dups, long pending, int selected) {
+            if (position == CUP_LENGTH) {
+                if (states != null) {
+                    states.add(mask & 0xFFFFFFFFL | (long) dups << 32 | pending << 34);
+                    return 0;
+                }
+                return count(mask, dups, pending);
+            }
+            int index = chain * CUP_LENGTH + position;
+            int track = chainTracks[index];
+            int layout = chainLayouts[index];
+            if ((mask & (1 << track)) != 0) {
+                for (int slot = 0; slot < MAX_DUPLICATES; slot++) {
+                    int shift = PENDING_BITS * slot;
+                    int entry = (int) (pending >>> shift) & PENDING_MASK;
+                    if (entry != 0 && (entry - 1) >> 6 == track) {
+                        int firstLayout = (entry - 1) & 31;
+                        boolean firstIsLower = ((entry - 1) & 32) == 0;
+                        if (firstIsLower ? layout <= firstLayout : layout >= firstLayout) {
+                            return 0;
+                        }
+                        return assign(chain, position + 1, mask, dups, pending & ~((long) PENDING_MASK << shift), selected);
+                    }
+                }
+                return 0;
+            }
+            int newMask = mask | 1 << track;
+            long count = assign(chain, position + 1, newMask, dups, pending, selected);
+            if (dups < duplicates) {
+                int shift = (pending & PENDING_MASK) == 0 ? 0 : PENDING_BITS;
+                count = Math.addExact(count, assign(chain, position + 1, newMask, dups + 1, pending | (long) ((track << 6 | layout) + 1) << shift, selected));
+                if (track != selected) {
+                    count = Math.addExact(count, assign(chain, position + 1, newMask, dups + 1, pending | (long) ((track << 6 | 32 | layout) + 1) << shift, selected));
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Counts the sets of cups reachable from a state, using the memo table where possible.
+         */
+        long count(int mask, int dups, long pending) {
+            if (mask == requiredMask && pending == 0) {
+                return dups == duplicates ? 1 : 0;
+            }
+            long key = key(mask, dups, pending);
+            long count = lookup(key);
+            if (count >= 0) {
+                return count;
+            }
+            if ((++misses & CANCEL_CHECK_INTERVAL) == 0 && cancelled.getAsBoolean()) {
+                throw new CancellationException("Counting was cancelled.");
+            }
+            int selected = getSelectedTrack(mask, pending);
+            count = 0;
+            for (int chain : chainsByTrack[selected]) {
+                count = Math.addExact(count, assign(chain, 0, mask, dups, pending, selected));
+            }
+            store(key, count);
+            return count;
+        }
+    }
+
+    /**
+     * Lists sets of cups depth first, in the same order as they are counted.
+     */
+    private final class Lister {
+        private final Predicate<CupSet> action;
+        private final int[] cups = new int[CUP_COUNT];
+        private final int[][] slotRoutes = new int[CUP_COUNT][CUP_LENGTH];
+        private long listed;
+
+        Lister(Predicate<CupSet> action) {
+            this.action = action;
+        }
+
+        /**
+         * Places the tracks of a chain from the given position onwards, in the same way as {@code Search.assign}, then lists the sets that follow from each resulting state.
+         * @param cup The cup the chain fills
+         * @return {@code false} if the action asked to stop.
+         */
+        boolean place(int chain, int cup, int position, int mask, int dups, long pending, int selected) {
+            if (position == CUP_LENGTH) {
+                return list(cup == SPECIAL_CUP ? 0 : cup + 1, mask, dups, pending);
+            }
+            int index = chain * CUP_LENGTH + position;
+            int track = chainTracks[index];
+            int layout = chainLayouts[index];
+            if ((mask & (1 << track)) != 0) {
+                for (int slot = 0; slot < MAX_DUPLICATES; slot++) {
+                    int shift = PENDING_BITS * slot;
+                    int entry = (int) (pending >>> shift) & PENDING_MASK;
+                    if (entry != 0 && (entry - 1) >> 6 == track) {
+                        int firstLayout = (entry - 1) & 31;
+                        boolean firstIsLower = ((entry - 1) & 32) == 0;
+                        if (firstIsLower ? layout <= firstLayout : layout >= firstLayout) {
+                            return true;
+                        }
+                        return place(chain, cup, position + 1, mask, dups, pending & ~((long) PENDING_MASK << shift), selected);
+                    }
+                }
+                return true;
+            }
+            int newMask = mask | 1 << track;
+            if (!place(chain, cup, position + 1, newMask, dups, pending, selected)) {
+                return false;
+            }
+            if (dups < duplicates) {
+                int shift = (pending & PENDING_MASK) == 0 ? 0 : PENDING_BITS;
+                if (!place(chain, cup, position + 1, newMask, dups + 1, pending | (long) ((track << 6 | layout) + 1) << shift, selected)) {
+                    return false;
+                }
+                if (track != selected && !place(chain, cup, position + 1, newMask, dups + 1, pending | (long) ((track << 6 | 32 | layout) + 1) << shift, selected)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Lists every set that follows from a state, filling the given cup next.
+         * @return {@code false} if the action asked to stop.
+         */
+        private boolean list(int cup, int mask, int dups, long pending) {
+            if (mask == requiredMask && pending == 0) {
+                if (dups != duplicates || cup != SPECIAL_CUP) {
+                    return true;
+                }
+                for (int filled = 0; filled < CUP_COUNT; filled++) {
+                    System.arraycopy(chainRoutes, cups[filled] * CUP_LENGTH, slotRoutes[filled], 0, CUP_LENGTH);
+                }
+                listed++;
+                return action.test(new CupSet(routeGraph, slotRoutes));
+            }
+            long key = key(mask, dups, pending);
+            if (cup == SPECIAL_CUP || lookup(key) == 0) {
+                return true;
+            }
+            long listedBefore = listed;
+            int selected = getSelectedTrack(mask, pending);
+            for (int chain : chainsByTrack[selected]) {
+                cups[cup] = chain;
+                if (!place(chain, cup, 0, mask, dups, pending, selected)) {
+                    return false;
+                }
+            }
+            store(key, listed - listedBefore);
+            return true;
+        }
+    }
+
+    /**
+     * Draws random sets of cups by walking down the same tree of states that is counted, along with the chance of drawing each set.
+     * <p>
+     * Near the top of the tree, where counting is far too slow, each step picks uniformly from every way of filling the next cup.
+     * Once only a few cups are left, the number of sets below each state is counted, and each step picks a way of filling the next cup in proportion to the sets below it.
+     * The weight of a set is the inverse of the chance of drawing it, so accepting each set with a chance proportional to its weight draws every set equally often.
+     */
+    final class Proposer {
+        private final Search search = new Search(() -> false, null);
+        private final int[] cups = new int[CUP_COUNT];
+        private final int[][] slotRoutes = new int[CUP_COUNT][CUP_LENGTH];
+        private long[] childStates = new long[1024];
+        private long[] childCounts = new long[1024];
+        private int[] childChains = new int[1024];
+        private int childCount;
+        private double logWeight;
+
+        /**
+         * Draws a random set of cups.
+         * @param random The source of randomness
+         * @param countedCups The number of cups at the end of the set to draw in proportion to the number of sets below each choice
+         * @return {@code true} if a full set was drawn, or {@code false} if the walk reached a state that no set follows from.
+         */
+        boolean propose(SplittableRandom random, int countedCups) {
+            logWeight = 0;
+            childCount = 0;
+            for (int special : specialChains) {
+                collect(special, 0, 0, 0, 0, NONE);
+            }
+            long state = pickUniformly(random, SPECIAL_CUP);
+            boolean counting = false;
+            for (int cup = 0; cup < SPECIAL_CUP; cup++) {
+                int mask = (int) state;
+                int dups = (int) (state >>> 32) & 3;
+                long pending = state >>> 34;
+                if (!counting && SPECIAL_CUP - cup <= countedCups) {
+                    long count = search.count(mask, dups, pending);
+                    if (count == 0) {
+                        return false;
+                    }
+                    logWeight += Math.log(count);
+                    counting = true;
+                }
+                int selected = getSelectedTrack(mask, pending);
+                childCount = 0;
+                for (int chain : chainsByTrack[selected]) {
+                    collect(chain, 0, mask, dups, pending, selected);
+                }
+                if (childCount == 0) {
+                    return false;
+                }
+                state = counting ? pickByCount(random, cup) : pickUniformly(random, cup);
+            }
+            return (int) state == requiredMask && state >>> 34 == 0 && ((state >>> 32) & 3) == duplicates;
+        }
+
+        /**
+         * Returns the natural log of the weight of the last set drawn, i.e. the log of the inverse of the chance of drawing it.
+         * @return The log of the weight.
+         */
+        double getLogWeight() {
+            return logWeight;
+        }
+
+        /**
+         * Returns the last set drawn, with the cups other than the Special Cup shuffled into a random order.
+         * @param random The source of randomness for the order of the cups
+         * @return The set of cups.
+         */
+        CupSet getCupSet(SplittableRandom random) {
+            for (int cup = SPECIAL_CUP - 1; cup > 0; cup--) {
+                int other = random.nextInt(cup + 1);
+                int swap = cups[cup];
+                cups[cup] = cups[other];
+                cups[other] = swap;
+            }
+            for (int cup = 0; cup < CUP_COUNT; cup++) {
+                System.arraycopy(chainRoutes, cups[cup] * CUP_LENGTH, slotRoutes[cup], 0, CUP_LENGTH);
+            }
+            return new CupSet(routeGraph, slotRoutes);
+        }
+
+        /**
+         * Fills a cup with one of the collected ways of filling it, each equally likely.
+         * @return The state after filling the cup.
+         */
+        private long pickUniformly(SplittableRandom random, int cup) {
+            int pick = random.nextInt(childCount);
+            logWeight += Math.log(childCount);
+            cups[cup] = childChains[pick];
+            return childStates[pick];
+        }
+
+        /**
+         * Fills a cup with one of the collected ways of filling it, in proportion to the number of sets that follow from each.
+         * @return The state after filling the cup.
+         */
+        private long pickByCount(SplittableRandom random, int cup) {
+            long total = 0;
+            for (int i = 0; i < childCount; i++) {
+                long state = childStates[i];
+                childCounts[i] = search.count((int) state, (int) (state >>> 32) & 3, state >>> 34);
+                total += childCounts[i];
+            }
+            long target = random.nextLong(total);
+            int pick = 0;
+            while (target >= childCounts[pick]) {
+                target -= childCounts[pick++];
+            }
+            cups[cup] = childChains[pick];
+            return childStates[pick];
+        }
+
+        /**
+         * Collects every state reached by placing the tracks of a chain from the given position onwards, in the same way as {@code Search.assign}.
+         */
+        private void collect(int chain, int position, int mask, int dups, long pending, int selected) {
+            if (position == CUP_LENGTH) {
+                if (childCount == childStates.length) {
+                    childStates = Arrays.copyOf(childStates, childCount * 2);
+                    childCounts = Arrays.copyOf(childCounts, childCount * 2);
+                    childChains = Arrays.copyOf(childChains, childCount * 2);
+                }
+                childStates[childCount] = mask & 0xFFFFFFFFL | (long) dups << 32 | pending << 34;
+                childChains[childCount++] = chain;
+                return;
+            }
+            int index = chain * CUP_LENGTH + position;
+            int track = chainTracks[index];
+            int layout = chainLayouts[index];
+            if ((mask & (1 << track)) != 0) {
+                for (int slot = 0; slot < MAX_DUPLICATES; slot++) {
+                    int shift = PENDING_BITS * slot;
+                    int entry = (int) (pending >>> shift) & PENDING_MASK;
+                    if (entry != 0 && (entry - 1) >> 6 == track) {
+                        int firstLayout = (entry - 1) & 31;
+                        boolean firstIsLower = ((entry - 1) & 32) == 0;
+                        if (!(firstIsLower ? layout <= firstLayout : layout >= firstLayout)) {
+                            collect(chain, position + 1, mask, dups, pending & ~((long) PENDING_MASK << shift), selected);
+                        }
+                        return;
+                    }
+                }
+                return;
+            }
+            int newMask = mask | 1 << track;
+            collect(chain, position + 1, newMask, dups, pending, selected);
+            if (dups < duplicates) {
+                int shift = (pending & PENDING_MASK) == 0 ? 0 : PENDING_BITS;
+                collect(chain, position + 1, newMask, dups + 1, pending | (long) ((track << 6 | layout) + 1) << shift, selected);
+                if (track != selected) {
+                    collect(chain, position + 1, newMask, dups + 1, pending | (long) ((track << 6 | 32 | layout) + 1) << shift, selected);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1141 @@
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A backtracking search that fills every cup one slot at a time under the rules described in {@code Randomiser}.
+ * <p>
+ * The Special Cup is filled first, by drawing one of its chains from a {@code ChainTable} at random. The other cups are then filled in turn.
+ * Each of those cups but the last is started from the track with the fewest remaining connections, placed in a random position, and then grown one slot at a time towards whichever end has the fewest candidates.
+ * The remaining connections of every track are counted incrementally and the tracks are kept in bucket queues ordered by them, so the most constrained track is found without walking the route graph.
+ * When a slot cannot be filled, only that slot is undone and the next candidate is tried, rather than starting again from scratch.
+ * Every placement is recorded on a trail, so the search can be rolled back to any earlier point in time proportional to what has changed since, and each attempt starts by rolling back whatever the last one left placed.
+ * The last cup has to hold every unused track, so it is drawn at random from the chains that hold them, which the chain table finds without walking the route graph.
+ * <p>
+ * Two rules are forward checked as the search goes: every placement must leave at least as many empty slots as unused tracks, and before each cup is started every unused track must still have a route into it that leads to an unused layout.
+ * A partly filled cup is also abandoned as soon as either of its open ends has no candidates left.
+ * If a single attempt runs for too long it is abandoned and a fresh attempt is started, which keeps the worst cases short.
+ * <p>
+ * The rules in a {@code CupRules} are checked as the search goes. Banned routes and tracks that have reached their limit are never offered as candidates, the Special Cup is only drawn from chains that fit its pins, and the regular cups with pins are filled before the rest, starting from their pinned tracks.
+ * The rules also give the number of cups and their length. Nothing in the search depends on either, so every cup is filled in the same way whatever its shape, and the solver's buffers are sized for them when it is created.
+ * <p>
+ * Every random choice in an attempt is drawn from one {@code SplittableRandom}. When solving from a seed, attempt {@code n} always uses the {@code n}th stream split from that seed, so the same seed always gives the same cups.
+ * <p>
+ * Every attempt counts why and where it backs out of each cup. These counts, along with how the attempt ended, are added to a {@code SolverMetrics} if one is set, and emitted as a {@code RandomiserEvents.Attempt} event if one is being recorded.
+ */
+public class CupSolver {
+    public static final int MAX_USES = 2;
+    /**
+     * The number of attempts {@code solve(long)} makes before giving up. With the standard rules, almost every attempt succeeds.
+     */
+    public static final int MAX_SOLVE_ATTEMPTS = 10_000;
+
+    private static final int NONE = RouteGraph.NONE;
+    private static final long NODE_BUDGET = 1_500;
+    private static final long CANCEL_CHECK_INTERVAL = 63;
+    private static final int UNREACHABLE = 0;
+
+    private final RouteGraph routeGraph;
+    private final ChainTable chainTable;
+    private final CupRules.Compiled rules;
+    private final int cupCount;
+    private final int cupLength;
+    private final int specialCup;
+    private final long requiredTracks;
+    private final int[] maxUses;
+    private final long[] allowedRoutes;
+    private final boolean bansRoutes;
+    private final boolean distinctLayouts;
+    private final int[][] pinnedTracks;
+    private final int[] pinnedCups;
+
+    private final int[] useCounts;
+    private final int[] usedLayouts;
+
+    private final int[] countedUseCounts;
+    private final int[] countedLayouts;
+    private final int[] incomingConnections;
+    private final int[] outgoingConnections;
+    private final int[] startIncomingConnections;
+    private final int[] startOutgoingConnections;
+    private final BucketQueue unusedTracks;
+    private final BucketQueue usableTracks;
+    private long changedTracks;
+    private final int[][] cupTracks;
+    private final int[][] slotRoutes;
+    private final int[] trail;
+    private int trailSize;
+    private int unusedCount;
+    private int emptySlots;
+
+    private final int[][] predecessorBuffers;
+    private final int[][] successorBuffers;
+    private final int[][] positionBuffers;
+    private int unusedCandidates;
+    private final int[] specialChains;
+    private final int[] specialChainOrder;
+
+    private SplittableRandom random;
+    private BooleanSupplier cancelled;
+    private long nodes;
+    private long nodeLimit;
+    private int attempts;
+
+    private SolverMetrics metrics;
+    private final int[] failureCounts;
+    private final int[] trackFailureCounts;
+    private SolverMetrics.Outcome abandonedOutcome;
+    private int abandonedCup;
+    private int unreachableTrack;
+
+    /**
+     * Creates a new solver for the given route graph, along with a chain table for it.
+     * Creating a chain table takes far longer than a search, so when many solvers are created for the same route graph, they should share one through {@code CupSolver(ChainTable)}.
+     * @param routeGraph The route graph to build cups from
+     * @throws IllegalArgumentException If a chain table cannot be created for the route graph.
+     */
+    public CupSolver(RouteGraph routeGraph) {
+        this(new ChainTable(routeGraph));
+    }
+
+    /**
+     * Creates a new solver that builds cups from the chains in the given chain table, under the standard rules.
+     * @param chainTable The chain table to draw the Special Cup and the last cup from, which may be shared with other solvers
+     * @throws IllegalArgumentException If the standard rules cannot be compiled for the route graph, e.g. because Rainbow Road or Peach Stadium are missing.
+     */
+    public CupSolver(ChainTable chainTable) {
+        this(chainTable, CupRules.STANDARD.compile(chainTable.getRouteGraph()));
+    }
+
+    /**
+     * Creates a new solver that builds cups from the chains in the given chain table, under the given rules, which also give the number of cups and their length.
+     * @param chainTable The chain table to draw the Special Cup and the last cup from, which may be shared with other solvers
+     * @param rules The rules, compiled against the chain table's route graph
+     * @throws IllegalArgumentException If the chains in the chain table are not as long as the cups in the rules.
+     */
+    public CupSolver(ChainTable chainTable, CupRules.Compiled rules) {
+        this.chainTable = chainTable;
+        this.routeGraph = chainTable.getRouteGraph();
+        this.rules = rules;
+        cupCount = rules.getRules().getCupCount();
+        cupLength = rules.getRules().getCupLength();
+        specialCup = cupCount - 1;
+        if (chainTable.getCupLength() != cupLength) {
+            throw new IllegalArgumentException("The chain table holds chains of " + chainTable.getCupLength() + " tracks, but the rules need cups of " + cupLength + ".");
+        }
+        int trackCount = routeGraph.getTrackCount();
+
+        // The rules are copied into the solver's own arrays, as they are checked for nearly every route and track the search looks at.
+        requiredTracks = rules.getRequiredTracks();
+        maxUses = new int[trackCount];
+        for (int track = 0; track < trackCount; track++) {
+            maxUses[track] = rules.getMaxUses(track);
+        }
+        allowedRoutes = new long[(routeGraph.getRouteCount() + Long.SIZE - 1) / Long.SIZE];
+        boolean banned = false;
+        for (int route = 0; route < routeGraph.getRouteCount(); route++) {
+            if (rules.isRouteAllowed(route)) {
+                allowedRoutes[route >>> 6] |= 1L << route;
+            } else {
+                banned = true;
+            }
+        }
+        bansRoutes = banned;
+        // When layouts may be repeated, none are ever marked as used, so every layout of a track stays free.
+        distinctLayouts = !rules.allowsRepeatedLayouts();
+        // The regular cups with pins are filled first, so they take the lowest indices here and are given their pinned names by getCupSet().
+        int pinnedCount = 0;
+        int[] pinned = new int[specialCup];
+        for (int cup = 0; cup < specialCup; cup++) {
+            for (int position = 0; position < cupLength; position++) {
+                if (rules.getPinnedTrack(cup, position) != NONE) {
+                    pinned[pinnedCount++] = cup;
+                    break;
+                }
+            }
+        }
+        pinnedCups = Arrays.copyOf(pinned, pinnedCount);
+        pinnedTracks = new int[cupCount][cupLength];
+        for (int cup = 0; cup < cupCount; cup++) {
+            int pinnedCup = cup == specialCup ? specialCup : cup < pinnedCount ? pinnedCups[cup] : NONE;
+            for (int position = 0; position < cupLength; position++) {
+                pinnedTracks[cup][position] = pinnedCup == NONE ? NONE : rules.getPinnedTrack(pinnedCup, position);
+            }
+        }
+
+        useCounts = new int[trackCount];
+        usedLayouts = new int[trackCount];
+
+        countedUseCounts = new int[trackCount];
+        countedLayouts = new int[trackCount];
+        incomingConnections = new int[trackCount];
+        outgoingConnections = new int[trackCount];
+        startIncomingConnections = new int[trackCount];
+        startOutgoingConnections = new int[trackCount];
+        for (int route = 0; route < routeGraph.getRouteCount(); route++) {
+            int origin = routeGraph.getRouteOrigin(route);
+            int destination = routeGraph.getRouteDestination(route);
+            if (!isAllowed(route)) {
+                continue;
+            }
+            if (origin == destination || maxUses[origin] > 0) {
+                startIncomingConnections[destination]++;
+            }
+            if (origin != destination && maxUses[destination] > 0) {
+                startOutgoingConnections[origin]++;
+            }
+        }
+        int maxConnections = 0;
+        for (int track = 0; track < trackCount; track++) {
+            maxConnections = Math.max(maxConnections, routeGraph.getIncomingRouteCount(track) + routeGraph.getOutgoingRouteCount(track));
+        }
+        unusedTracks = new BucketQueue(trackCount, maxConnections);
+        usableTracks = new BucketQueue(trackCount, maxConnections);
+        cupTracks = new int[cupCount][cupLength];
+        slotRoutes = new int[cupCount][cupLength];
+        for (int cup = 0; cup < cupCount; cup++) {
+            Arrays.fill(cupTracks[cup], NONE);
+            Arrays.fill(slotRoutes[cup], NONE);
+        }
+        trail = new int[cupCount * cupLength];
+        unusedCount = Long.bitCount(requiredTracks);
+        emptySlots = cupCount * cupLength;
+
+        predecessorBuffers = new int[cupCount * cupLength][trackCount];
+        successorBuffers = new int[cupCount * cupLength][trackCount];
+        positionBuffers = new int[cupCount][cupLength];
+
+        // Only the chains through the last pinned track of the Special Cup are checked, or every chain if it has no pins.
+        int lastPin = NONE;
+        for (int position = 0; position < cupLength; position++) {
+            if (pinnedTracks[specialCup][position] != NONE) {
+                lastPin = pinnedTracks[specialCup][position];
+            }
+        }
+        int specialCount = 0;
+        int[] special = new int[lastPin == NONE ? chainTable.getChainCount() : chainTable.getChainCountThrough(lastPin)];
+        for (int i = 0; i < special.length; i++) {
+            int chain = lastPin == NONE ? i : chainTable.getChainThrough(lastPin, i);
+            if (fitsRules(specialCup, chain)) {
+                special[specialCount++] = chain;
+            }
+        }
+        specialChains = Arrays.copyOf(special, specialCount);
+        specialChainOrder = new int[specialCount];
+
+        failureCounts = new int[SolverMetrics.FailureReason.values().length * cupCount];
+        trackFailureCounts = new int[trackCount];
+    }
+
+    /**
+     * Sets the metrics that every later attempt is recorded in.
+     * @param metrics The metrics to record attempts in, or {@code null} to stop recording them
+     */
+    public void setMetrics(SolverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Searches for a valid set of cups, starting a fresh attempt whenever one runs for too long, for up to {@code MAX_SOLVE_ATTEMPTS} attempts.
+     * @param seed The seed to draw every random choice from
+     * @return {@code true} if a valid set of cups was found, or {@code false} if no chain fits the Special Cup under the rules or every attempt failed.
+     */
+    public boolean solve(long seed) {
+        return solve(seed, MAX_SOLVE_ATTEMPTS);
+    }
+
+    /**
+     * Searches for a valid set of cups, starting a fresh attempt whenever one runs for too long, for up to the given number of attempts.
+     * Rules can compile and still allow no set of cups at all, so the search always gives up eventually.
+     * @param seed The seed to draw every random choice from
+     * @param maxAttempts The number of attempts to make before giving up
+     * @return {@code true} if a valid set of cups was found, or {@code false} if no chain fits the Special Cup under the rules or every attempt failed.
+     */
+    public boolean solve(long seed, int maxAttempts) {
+        attempts = 0;
+        if (specialChains.length == 0) {
+            return false;
+        }
+        SplittableRandom seedRandom = new SplittableRandom(seed);
+        while (attempts < maxAttempts) {
+            attempts++;
+            if (attempt(seedRandom.split(), () -> false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes a single attempt at finding a valid set of cups, giving up once it runs for too long or is cancelled.
+     * @param random The source of every random choice in the attempt
+     * @param cancelled Checked every few search nodes. Once it returns {@code true}, the attempt is abandoned.
+     * @return {@code true} if a valid set of cups was found.
+     */
+    public boolean attempt(SplittableRandom random, BooleanSupplier cancelled) {
+        this.random = random;
+        this.cancelled = cancelled;
+        if (specialChains.length == 0 || cancelled.getAsBoolean()) {
+            return false;
+        }
+        RandomiserEvents.Attempt event = RandomiserEvents.isAvailable() ? new RandomiserEvents.Attempt() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        long startNodes = nodes;
+        reset();
+        nodeLimit = nodes + NODE_BUDGET;
+        boolean solved = fillSpecialCup();
+
+        SolverMetrics.Outcome outcome = solved ? SolverMetrics.Outcome.SUCCESS : abandonedOutcome != null ? abandonedOutcome : SolverMetrics.Outcome.EXHAUSTED;
+        if (metrics != null) {
+            metrics.recordAttempt(routeGraph, outcome, nodes - startNodes, System.nanoTime() - startTime, failureCounts, trackFailureCounts);
+        }
+        if (event != null && event.shouldCommit()) {
+            event.outcome = outcome.name();
+            event.cup = solved ? specialCup : abandonedCup;
+            event.nodes = nodes - startNodes;
+            long failures = 0;
+            for (int count : failureCounts) {
+                failures += count;
+            }
+            event.failures = failures;
+            event.commit();
+        }
+        return solved;
+    }
+
+    /**
+     * Returns the track placed in a slot of a cup by the last successful call to {@code solve(long)} or {@code attempt()}.
+     * @param cup The index of the cup, where the last cup is the Special Cup
+     * @param position The position in the cup
+     * @return The ID of the track.
+     */
+    public int getTrack(int cup, int position) {
+        return cupTracks[cup][position];
+    }
+
+    /**
+     * Creates an immutable copy of the cups found by the last successful call to {@code solve(long)} or {@code attempt()}.
+     * The regular cups with pins are given the names they were pinned to, and the rest are given to the remaining regular cups, from the Mushroom Cup onwards, in a random order, drawn from the same random source as the attempt.
+     * @return The cups that were found.
+     */
+    public CupSet getCupSet() {
+        int pinnedCount = pinnedCups.length;
+        int[] cupOrder = new int[specialCup - pinnedCount];
+        for (int i = 0; i < cupOrder.length; i++) {
+            cupOrder[i] = pinnedCount + i;
+        }
+        shuffle(cupOrder, 0, cupOrder.length);
+
+        int[][] orderedRoutes = new int[cupCount][];
+        for (int i = 0; i < pinnedCount; i++) {
+            orderedRoutes[pinnedCups[i]] = slotRoutes[i];
+        }
+        for (int cup = 0, i = 0; cup < specialCup; cup++) {
+            if (orderedRoutes[cup] == null) {
+                orderedRoutes[cup] = slotRoutes[cupOrder[i++]];
+            }
+        }
+        orderedRoutes[specialCup] = slotRoutes[specialCup];
+        return new CupSet(routeGraph, orderedRoutes);
+    }
+
+    /**
+     * Returns the number of attempts that the last call to {@code solve(long)} or {@code solve(long, int)} made.
+     * @return The number of attempts, including the successful one.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the number of search nodes this solver has visited across every attempt.
+     * @return The number of search nodes visited.
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    private void reset() {
+        rollback(0);
+        System.arraycopy(specialChains, 0, specialChainOrder, 0, specialChains.length);
+
+        // The queues are rebuilt in the same order every time, so that the order of tracks within a bucket, and so every tie broken, depends only on the attempt.
+        Arrays.fill(countedUseCounts, 0);
+        Arrays.fill(countedLayouts, 0);
+        unusedTracks.clear();
+        usableTracks.clear();
+        System.arraycopy(startIncomingConnections, 0, incomingConnections, 0, incomingConnections.length);
+        System.arraycopy(startOutgoingConnections, 0, outgoingConnections, 0, outgoingConnections.length);
+        for (int track = 0; track < useCounts.length; track++) {
+            requeue(track);
+        }
+        Arrays.fill(failureCounts, 0);
+        Arrays.fill(trackFailureCounts, 0);
+        abandonedOutcome = null;
+        abandonedCup = specialCup;
+    }
+
+    /**
+     * Counts a reason for backing out of a cup.
+     * @param reason The reason
+     * @param cup The index of the cup
+     * @param track The ID of the track responsible, or {@code NONE} if there is no single track to blame
+     */
+    private void fail(SolverMetrics.FailureReason reason, int cup, int track) {
+        failureCounts[reason.ordinal() * cupCount + cup]++;
+        if (track != NONE) {
+            trackFailureCounts[track]++;
+        }
+    }
+
+    /**
+     * Fills the Special Cup with each chain that fits its pins, in a random order, until the rest of the cups can be filled. Under the standard rules, these are the chains ending in Peach Stadium and then Rainbow Road.
+     * @return {@code true} if every cup was filled.
+     */
+    private boolean fillSpecialCup() {
+        if (specialChains.length == 0) {
+            fail(SolverMetrics.FailureReason.SPECIAL_CUP, specialCup, NONE);
+            return false;
+        }
+        for (int tried = 0; tried < specialChainOrder.length; tried++) {
+            int pick = tried + random.nextInt(specialChainOrder.length - tried);
+            int chain = specialChainOrder[pick];
+            specialChainOrder[pick] = specialChainOrder[tried];
+            specialChainOrder[tried] = chain;
+            if (placeChain(specialCup, chain)) {
+                if (fillCup(0)) {
+                    return true;
+                }
+                rollback(0);
+            }
+            if (isOutOfTime(specialCup)) {
+                return false;
+            }
+        }
+        fail(SolverMetrics.FailureReason.SPECIAL_CUP, specialCup, NONE);
+        return false;
+    }
+
+    /**
+     * Fills the last cup with a random chain that holds every unused track, which completes the set.
+     * Only the chains holding the two unused tracks with the fewest chains are checked, or the chains holding the one unused track if there is only one.
+     * @param cup The index of the last cup
+     * @return {@code true} if the cup was filled.
+     */
+    private boolean fillLastCup(int cup) {
+        if (isOutOfTime(cup)) {
+            return false;
+        }
+        long unusedMask = 0;
+        int rarestTrack = NONE;
+        int nextRarestTrack = NONE;
+        for (long required = requiredTracks; required != 0; required &= required - 1) {
+            int track = Long.numberOfTrailingZeros(required);
+            if (useCounts[track] == 0) {
+                unusedMask |= 1L << track;
+                if (rarestTrack == NONE || chainTable.getChainCountThrough(track) < chainTable.getChainCountThrough(rarestTrack)) {
+                    nextRarestTrack = rarestTrack;
+                    rarestTrack = track;
+                } else if (nextRarestTrack == NONE || chainTable.getChainCountThrough(track) < chainTable.getChainCountThrough(nextRarestTrack)) {
+                    nextRarestTrack = track;
+                }
+            }
+        }
+
+        int chosen = NONE;
+        int fitting = 0;
+        if (nextRarestTrack != NONE) {
+            for (int i = 0; i < chainTable.getChainCountWithBoth(rarestTrack, nextRarestTrack); i++) {
+                int chain = chainTable.getChainWithBoth(rarestTrack, nextRarestTrack, i);
+                if (fitsLastCup(cup, chain, unusedMask) && random.nextInt(++fitting) == 0) {
+                    chosen = chain;
+                }
+            }
+        } else {
+            for (int i = 0; i < chainTable.getChainCountThrough(rarestTrack); i++) {
+                int chain = chainTable.getChainThrough(rarestTrack, i);
+                if (fitsLastCup(cup, chain, unusedMask) && random.nextInt(++fitting) == 0) {
+                    chosen = chain;
+                }
+            }
+        }
+        if (chosen == NONE || !placeChain(cup, chosen)) {
+            fail(SolverMetrics.FailureReason.NO_CANDIDATES, cup, rarestTrack);
+            return false;
+        }
+        return fillCup(specialCup);
+    }
+
+    /**
+     * Checks whether a chain could fill the last cup, i.e. whether it holds every unused track, fits the cup's pins, and each of its other tracks can be used again with a different layout.
+     * @param cup The index of the last cup
+     * @param chain The ID of the chain
+     * @param unusedMask The unused tracks, as a bitmask
+     * @return {@code true} if the chain fits.
+     */
+    private boolean fitsLastCup(int cup, int chain, long unusedMask) {
+        if ((chainTable.getTrackMask(chain) & unusedMask) != unusedMask) {
+            return false;
+        }
+        boolean pinned = cup < pinnedCups.length;
+        int[] pins = pinnedTracks[cup];
+        for (int position = 0; position < cupLength; position++) {
+            int route = chainTable.getRoute(chain, position);
+            int track = routeGraph.getRouteDestination(route);
+            if (useCounts[track] >= maxUses[track] || !isRouteFree(route) || (pinned && pins[position] != NONE && pins[position] != track)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a chain could ever fill a cup under the rules, i.e. whether it fits the cup's pins and uses no banned route or track that may not appear.
+     * @param cup The index of the cup
+     * @param chain The ID of the chain
+     * @return {@code true} if the chain fits.
+     */
+    private boolean fitsRules(int cup, int chain) {
+        for (int position = 0; position < cupLength; position++) {
+            int route = chainTable.getRoute(chain, position);
+            int track = routeGraph.getRouteDestination(route);
+            if (!isAllowed(route) || maxUses[track] == 0 || (pinnedTracks[cup][position] != NONE && pinnedTracks[cup][position] != track)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Places every track of a chain into an empty cup, in order.
+     * @param cup The index of the cup
+     * @param chain The ID of the chain
+     * @return {@code true} if the chain was placed. Otherwise, the cup is left empty.
+     */
+    private boolean placeChain(int cup, int chain) {
+        int mark = trailSize;
+        for (int position = 0; position < cupLength; position++) {
+            if (!place(cup, position, chainTable.getTrack(chain, position))) {
+                rollback(mark);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts the specified cup from the most constrained track, trying each position for it in a random order, then fills the rest of the cups.
+     * @param cup The index of the cup to fill
+     * @return {@code true} if this cup and every cup after it were filled.
+     */
+    private boolean fillCup(int cup) {
+        if (cup == specialCup) {
+            if (unusedCount > 0) {
+                fail(SolverMetrics.FailureReason.UNUSED_TRACKS, specialCup - 1, NONE);
+                return false;
+            }
+            return true;
+        }
+        if (cup == specialCup - 1 && unusedCount > 0) {
+            return fillLastCup(cup);
+        }
+        if (isOutOfTime(cup)) {
+            return false;
+        }
+        if (cup < pinnedCups.length) {
+            return fillPinnedCup(cup);
+        }
+        int anchor = getMostConstrainedTrack();
+        if (anchor == NONE) {
+            fail(SolverMetrics.FailureReason.UNREACHABLE_TRACK, cup, unreachableTrack);
+            return false;
+        }
+        int[] positions = positionBuffers[cup];
+        for (int position = 0; position < cupLength; position++) {
+            positions[position] = position;
+        }
+        shuffle(positions, 0, cupLength);
+        int mark = trailSize;
+        for (int position : positions) {
+            if (place(cup, position, anchor)) {
+                if (fillSlots(cup, position, position)) {
+                    return true;
+                }
+                rollback(mark);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Places the pinned tracks of a cup, then fills the rest of it and every cup after it.
+     * @param cup The index of the cup to fill
+     * @return {@code true} if this cup and every cup after it were filled.
+     */
+    private boolean fillPinnedCup(int cup) {
+        int mark = trailSize;
+        int first = NONE;
+        for (int position = 0; position < cupLength; position++) {
+            int track = pinnedTracks[cup][position];
+            if (track == NONE) {
+                continue;
+            }
+            if (!place(cup, position, track)) {
+                fail(SolverMetrics.FailureReason.NO_CANDIDATES, cup, track);
+                rollback(mark);
+                return false;
+            }
+            if (first == NONE) {
+                first = position;
+            }
+        }
+        if (fillSlots(cup, first, first)) {
+            return true;
+        }
+        rollback(mark);
+        return false;
+    }
+
+    /**
+     * Grows a partly filled cup by one slot, choosing whichever end has fewer candidates, then carries on until the cup and every cup after it are filled.
+     * Any filled slots next to either end, such as pinned tracks, are taken into the filled run first.
+     * @param cup The index of the cup to fill
+     * @param start The first filled position in the cup
+     * @param end The last filled position in the cup
+     * @return {@code true} if this cup and every cup after it were filled.
+     */
+    private boolean fillSlots(int cup, int start, int end) {
+        int[] slots = cupTracks[cup];
+        while (start > 0 && slots[start - 1] != NONE) {
+            start--;
+        }
+        while (end < cupLength - 1 && slots[end + 1] != NONE) {
+            end++;
+        }
+        if (start == 0 && end == cupLength - 1) {
+            return fillCup(cup == specialCup ? 0 : cup + 1);
+        }
+        if (isOutOfTime(cup)) {
+            return false;
+        }
+        int depth = cupCount * cupLength - emptySlots;
+        int[] predecessors = predecessorBuffers[depth];
+        int[] successors = successorBuffers[depth];
+        int predecessorCount = start > 0 ? collectPredecessors(cup, start, predecessors) : -1;
+        int unusedPredecessors = unusedCandidates;
+        int successorCount = end < cupLength - 1 ? collectSuccessors(cup, end, successors) : -1;
+        int unusedSuccessors = unusedCandidates;
+        if (predecessorCount == 0 || successorCount == 0) {
+            fail(SolverMetrics.FailureReason.NO_CANDIDATES, cup, cupTracks[cup][predecessorCount == 0 ? start : end]);
+            return false;
+        }
+
+        boolean fillStart;
+        if (predecessorCount == -1 || successorCount == -1) {
+            fillStart = successorCount == -1;
+        } else if (predecessorCount == successorCount) {
+            fillStart = random.nextBoolean();
+        } else {
+            fillStart = predecessorCount < successorCount;
+        }
+
+        int mark = trailSize;
+        if (fillStart) {
+            for (int i = 0; i < predecessorCount; i++) {
+                if (place(cup, start - 1, drawCandidate(predecessors, i, unusedPredecessors, predecessorCount))) {
+                    if (fillSlots(cup, start - 1, end)) {
+                        return true;
+                    }
+                    rollback(mark);
+                }
+            }
+        } else {
+            for (int i = 0; i < successorCount; i++) {
+                if (place(cup, end + 1, drawCandidate(successors, i, unusedSuccessors, successorCount))) {
+                    if (fillSlots(cup, start, end + 1)) {
+                        return true;
+                    }
+                    rollback(mark);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects every track that could be placed directly before a filled slot, with unused tracks first. The number of unused tracks collected is left in {@code unusedCandidates}.
+     * @param cup The index of the cup
+     * @param position The filled position to place a track before
+     * @param candidates The buffer to write the candidates into
+     * @return The number of candidates.
+     */
+    private int collectPredecessors(int cup, int position, int[] candidates) {
+        int destination = cupTracks[cup][position];
+        unusedCandidates = 0;
+        int candidateCount = 0;
+        for (int i = 0; i < routeGraph.getIncomingRouteCount(destination); i++) {
+            int route = routeGraph.getIncomingRoute(destination, i);
+            int origin = routeGraph.getRouteOrigin(route);
+            if (origin == destination || !isRouteFree(route) || !canUse(cup, origin)) {
+                continue;
+            }
+            if (position - 1 == 0) {
+                int selfRoute = routeGraph.getSelfRoute(origin);
+                if (selfRoute == NONE || !isRouteFree(selfRoute)) {
+                    continue;
+                }
+            }
+            candidateCount = addCandidate(candidates, candidateCount, unusedCandidates, origin);
+            if (useCounts[origin] == 0) {
+                unusedCandidates++;
+            }
+        }
+        return candidateCount;
+    }
+
+    /**
+     * Collects every track that could be placed directly after a filled slot, with unused tracks first. The number of unused tracks collected is left in {@code unusedCandidates}.
+     * @param cup The index of the cup
+     * @param position The filled position to place a track after
+     * @param candidates The buffer to write the candidates into
+     * @return The number of candidates.
+     */
+    private int collectSuccessors(int cup, int position, int[] candidates) {
+        int origin = cupTracks[cup][position];
+        unusedCandidates = 0;
+        int candidateCount = 0;
+        for (int i = 0; i < routeGraph.getOutgoingRouteCount(origin); i++) {
+            int route = routeGraph.getOutgoingRoute(origin, i);
+            int destination = routeGraph.getRouteDestination(route);
+            if (origin == destination || !isRouteFree(route) || !canUse(cup, destination)) {
+                continue;
+            }
+            candidateCount = addCandidate(candidates, candidateCount, unusedCandidates, destination);
+            if (useCounts[destination] == 0) {
+                unusedCandidates++;
+            }
+        }
+        return candidateCount;
+    }
+
+    /**
+     * Draws the next candidate to try at random, swapping it into place. Unused tracks are all drawn before any used track.
+     * Drawing candidates one at a time, rather than shuffling them all up front, means that no random numbers are spent on candidates that are never tried.
+     * @param candidates The candidates, with unused tracks first
+     * @param drawn The number of candidates already drawn, which is where the drawn candidate is placed
+     * @param unusedCount The number of unused tracks among the candidates
+     * @param candidateCount The number of candidates
+     * @return The candidate that was drawn.
+     */
+    private int drawCandidate(int[] candidates, int drawn, int unusedCount, int candidateCount) {
+        int end = drawn < unusedCount ? unusedCount : candidateCount;
+        if (end - drawn > 1) {
+            int pick = drawn + random.nextInt(end - drawn);
+            int candidate = candidates[pick];
+            candidates[pick] = candidates[drawn];
+            candidates[drawn] = candidate;
+        }
+        return candidates[drawn];
+    }
+
+    /**
+     * Appends a candidate to a buffer, keeping unused tracks at the front.
+     * @return The new number of candidates.
+     */
+    private int addCandidate(int[] candidates, int candidateCount, int unusedCandidates, int track) {
+        if (useCounts[track] == 0) {
+            candidates[candidateCount] = candidates[unusedCandidates];
+            candidates[unusedCandidates] = track;
+        } else {
+            candidates[candidateCount] = track;
+        }
+        return candidateCount + 1;
+    }
+
+    /**
+     * Checks whether a track could be placed somewhere in a cup, ignoring routes.
+     * @param cup The index of the cup
+     * @param track The ID of the track
+     * @return {@code true} if the track is not already in the cup, has not reached its limit, and would not take a slot that an unused track needs.
+     */
+    private boolean canUse(int cup, int track) {
+        if (useCounts[track] >= maxUses[track] || cupContains(cup, track)) {
+            return false;
+        }
+        boolean coversUnusedTrack = useCounts[track] == 0 && isRequired(track);
+        return emptySlots - 1 >= unusedCount - (coversUnusedTrack ? 1 : 0);
+    }
+
+    private boolean cupContains(int cup, int track) {
+        for (int placed : cupTracks[cup]) {
+            if (placed == track) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRequired(int track) {
+        return (requiredTracks & (1L << track)) != 0;
+    }
+
+    /**
+     * Checks whether a route may be used, i.e. whether the rules allow it and the layout it leads to has yet to be used.
+     * @param route The ID of the route
+     * @return {@code true} if the route is not banned and its destination has not already been used with this layout.
+     */
+    private boolean isRouteFree(int route) {
+        return (usedLayouts[routeGraph.getRouteDestination(route)] & (1 << routeGraph.getRouteLayout(route))) == 0 && isAllowed(route);
+    }
+
+    /**
+     * Checks whether the rules allow a route. When no route is banned, the mask is not read at all.
+     * @param route The ID of the route
+     * @return {@code true} if the route is not banned.
+     */
+    private boolean isAllowed(int route) {
+        return !bansRoutes || (allowedRoutes[route >>> 6] & (1L << route)) != 0;
+    }
+
+    /**
+     * Counts a search node, then checks whether the current attempt has used up its budget or the search has been cancelled.
+     * The first time this happens in an attempt, the reason is counted against the cup being filled.
+     * @param cup The index of the cup being filled
+     * @return {@code true} if the current attempt should be abandoned.
+     */
+    private boolean isOutOfTime(int cup) {
+        if (abandonedOutcome != null) {
+            return true;
+        }
+        if (++nodes > nodeLimit) {
+            abandon(SolverMetrics.Outcome.NODE_BUDGET, SolverMetrics.FailureReason.NODE_BUDGET, cup);
+            return true;
+        }
+        if ((nodes & CANCEL_CHECK_INTERVAL) == 0 && cancelled.getAsBoolean()) {
+            abandon(SolverMetrics.Outcome.CANCELLED, SolverMetrics.FailureReason.CANCELLED, cup);
+            return true;
+        }
+        return false;
+    }
+
+    private void abandon(SolverMetrics.Outcome outcome, SolverMetrics.FailureReason reason, int cup) {
+        abandonedOutcome = outcome;
+        abandonedCup = cup;
+        fail(reason, cup, NONE);
+    }
+
+    /**
+     * Gets the unused track with the fewest remaining connections, or a random one of those tied if applicable. If every track has been used, any track that can still be used is considered instead.
+     * <p>
+     * A track's remaining connections are the routes into it that lead to an unused layout from a track that can still be used, along with the routes out of it to an unused layout of another track that can still be used.
+     * @return The ID of the most constrained track, or {@code NONE} if an unused track can no longer be reached, in which case that track is stored in {@code unreachableTrack}.
+     */
+    private int getMostConstrainedTrack() {
+        updateConnections();
+        BucketQueue tracks = unusedCount > 0 ? unusedTracks : usableTracks;
+        int fewestConnections = tracks.getMinKey();
+        if (fewestConnections == NONE) {
+            unreachableTrack = NONE;
+            return NONE;
+        }
+        if (fewestConnections == UNREACHABLE) {
+            unreachableTrack = tracks.get(UNREACHABLE, 0);
+            return NONE;
+        }
+        return tracks.draw(fewestConnections, random);
+    }
+
+    /**
+     * Brings the remaining connections of every track up to date with the tracks and layouts in use.
+     * <p>
+     * The connections are counted for the use counts and layouts in {@code countedUseCounts} and {@code countedLayouts}, which are only moved on to the current ones here.
+     * Almost every track placed between two calls is removed again by backtracking, so comparing the two only finds the few tracks that have really changed, and placing and removing tracks costs nothing extra.
+     * Each change is applied on its own, against the counted state as it stands at that point, so the counts are always exact.
+     * Every track whose connections changed is then moved to its new buckets once, however many changes it saw. A chain table holds at most 64 tracks, so they fit in a single long.
+     */
+    private void updateConnections() {
+        for (int track = 0; track < useCounts.length; track++) {
+            int changedLayouts = usedLayouts[track] ^ countedLayouts[track];
+            while (changedLayouts != 0) {
+                int layout = Integer.numberOfTrailingZeros(changedLayouts);
+                changedLayouts &= changedLayouts - 1;
+                countedLayouts[track] ^= 1 << layout;
+                updateLayoutConnections(track, layout, (usedLayouts[track] & (1 << layout)) != 0 ? -1 : 1);
+            }
+        }
+        for (int track = 0; track < useCounts.length; track++) {
+            int countedUses = countedUseCounts[track];
+            if (countedUses != useCounts[track]) {
+                countedUseCounts[track] = useCounts[track];
+                int limit = maxUses[track];
+                if ((countedUses < limit) != (useCounts[track] < limit)) {
+                    updateUseConnections(track, useCounts[track] < limit ? 1 : -1);
+                }
+                changedTracks |= 1L << track;
+            }
+        }
+        while (changedTracks != 0) {
+            requeue(Long.numberOfTrailingZeros(changedTracks));
+            changedTracks &= changedTracks - 1;
+        }
+    }
+
+    /**
+     * Updates the remaining connections of every track affected by a layout being claimed or released.
+     * @param track The ID of the track the layout belongs to
+     * @param layout The ID of the layout
+     * @param change -1 if the layout was claimed, or 1 if it was released
+     */
+    private void updateLayoutConnections(int track, int layout, int change) {
+        for (int i = 0; i < routeGraph.getIncomingRouteCount(track, layout); i++) {
+            int route = routeGraph.getIncomingRoute(track, layout, i);
+            int origin = routeGraph.getRouteOrigin(route);
+            if (!isAllowed(route)) {
+                continue;
+            }
+            if (origin == track || countedUseCounts[origin] < maxUses[origin]) {
+                incomingConnections[track] += change;
+            }
+            if (origin != track && countedUseCounts[track] < maxUses[track]) {
+                outgoingConnections[origin] += change;
+                changedTracks |= 1L << origin;
+            }
+        }
+        changedTracks |= 1L << track;
+    }
+
+    /**
+     * Updates the remaining connections of every track affected by a track reaching or leaving its maximum number of uses.
+     * @param track The ID of the track
+     * @param change -1 if the track can no longer be used, or 1 if it can be used again
+     */
+    private void updateUseConnections(int track, int change) {
+        for (int i = 0; i < routeGraph.getOutgoingRouteCount(track); i++) {
+            int route = routeGraph.getOutgoingRoute(track, i);
+            int destination = routeGraph.getRouteDestination(route);
+            if (destination != track && isAllowed(route) && (countedLayouts[destination] & (1 << routeGraph.getRouteLayout(route))) == 0) {
+                incomingConnections[destination] += change;
+                changedTracks |= 1L << destination;
+            }
+        }
+        for (int i = 0; i < routeGraph.getIncomingRouteCount(track); i++) {
+            int route = routeGraph.getIncomingRoute(track, i);
+            int origin = routeGraph.getRouteOrigin(route);
+            if (origin != track && isAllowed(route) && (countedLayouts[track] & (1 << routeGraph.getRouteLayout(route))) == 0) {
+                outgoingConnections[origin] += change;
+                changedTracks |= 1L << origin;
+            }
+        }
+    }
+
+    /**
+     * Moves a track to the right bucket of each queue after its remaining connections or use count have changed.
+     * An unused track with no routes into it is kept in the {@code UNREACHABLE} bucket of the unused queue, since it cannot be placed anywhere, and is left out of the usable queue altogether.
+     * @param track The ID of the track
+     */
+    private void requeue(int track) {
+        int incoming = incomingConnections[track];
+        int connections = incoming + outgoingConnections[track];
+        unusedTracks.set(track, countedUseCounts[track] == 0 && isRequired(track) ? (incoming == 0 ? UNREACHABLE : connections) : NONE);
+        usableTracks.set(track, countedUseCounts[track] < maxUses[track] && incoming > 0 ? connections : NONE);
+    }
+
+    /**
+     * Attempts to place a track in a slot, claiming the layouts of any routes that now connect it to its neighbours.
+     * @param cup The index of the cup
+     * @param position The position in the cup
+     * @param track The ID of the track
+     * @return {@code true} if the track was placed.
+     */
+    private boolean place(int cup, int position, int track) {
+        if (!canUse(cup, track)) {
+            return false;
+        }
+        int[] slots = cupTracks[cup];
+        int priorRoute = NONE;
+        if (position == 0) {
+            priorRoute = routeGraph.getSelfRoute(track);
+            if (priorRoute == NONE) {
+                return false;
+            }
+        } else if (slots[position - 1] != NONE) {
+            priorRoute = routeGraph.getRoute(slots[position - 1], track);
+            if (priorRoute == NONE) {
+                return false;
+            }
+        }
+        if (priorRoute != NONE && !isRouteFree(priorRoute)) {
+            return false;
+        }
+        int followingRoute = NONE;
+        if (position < cupLength - 1 && slots[position + 1] != NONE) {
+            followingRoute = routeGraph.getRoute(track, slots[position + 1]);
+            if (followingRoute == NONE || !isRouteFree(followingRoute)) {
+                return false;
+            }
+        }
+
+        if (priorRoute != NONE) {
+            claim(cup, position, priorRoute);
+        }
+        if (followingRoute != NONE) {
+            claim(cup, position + 1, followingRoute);
+        }
+        if (useCounts[track]++ == 0 && isRequired(track)) {
+            unusedCount--;
+        }
+        emptySlots--;
+        slots[position] = track;
+        trail[trailSize++] = cup * cupLength + position;
+        return true;
+    }
+
+    /**
+     * Removes tracks in the reverse of the order they were placed, until only the given number of placements are left on the trail.
+     * @param mark The size of the trail to roll back to
+     */
+    private void rollback(int mark) {
+        while (trailSize > mark) {
+            int slot = trail[--trailSize];
+            remove(slot / cupLength, slot % cupLength);
+        }
+    }
+
+    /**
+     * Removes the most recently placed track from a slot, releasing any layouts it claimed.
+     * @param cup The index of the cup
+     * @param position The position in the cup
+     */
+    private void remove(int cup, int position) {
+        int track = cupTracks[cup][position];
+        release(cup, position);
+        if (position < cupLength - 1) {
+            release(cup, position + 1);
+        }
+        if (--useCounts[track] == 0 && isRequired(track)) {
+            unusedCount++;
+        }
+        emptySlots++;
+        cupTracks[cup][position] = NONE;
+    }
+
+    private void claim(int cup, int position, int route) {
+        if (distinctLayouts) {
+            usedLayouts[routeGraph.getRouteDestination(route)] |= 1 << routeGraph.getRouteLayout(route);
+        }
+        slotRoutes[cup][position] = route;
+    }
+
+    private void release(int cup, int position) {
+        int route = slotRoutes[cup][position];
+        if (route != NONE) {
+            if (distinctLayouts) {
+                usedLayouts[routeGraph.getRouteDestination(route)] &= ~(1 << routeGraph.getRouteLayout(route));
+            }
+            slotRoutes[cup][position] = NONE;
+        }
+    }
+
+    /**
+     * Shuffles part of an array in place.
+     */
+    private void shuffle(int[] values, int from, int to) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + random.nextInt(i - from + 1);
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    /**
+     * A set of tracks, each with a small non-negative key, that finds the smallest key in amortised constant time.
+     * Tracks with the same key are kept together in a bucket, so a random track with the smallest key can be drawn without looking at the others.
+     */
+    private static final class BucketQueue {
+        private final int trackCount;
+        private final int[] buckets;
+        private final int[] bucketSizes;
+        private final int[] keys;
+        private final int[] indices;
+        private int size;
+        private int minKey;
+
+        /**
+         * Creates a new, empty queue.
+         * @param trackCount The number of tracks
+         * @param maxKey The largest key any track can have
+         */
+        private BucketQueue(int trackCount, int maxKey) {
+            this.trackCount = trackCount;
+            buckets = new int[(maxKey + 1) * trackCount];
+            bucketSizes = new int[maxKey + 1];
+            keys = new int[trackCount];
+            indices = new int[trackCount];
+            clear();
+        }
+
+        private void clear() {
+            Arrays.fill(bucketSizes, 0);
+            Arrays.fill(keys, NONE);
+            size = 0;
+            minKey = bucketSizes.length - 1;
+        }
+
+        /**
+         * Adds a track, moves it to a new key, or removes it.
+         * @param track The ID of the track
+         * @param key The track's new key, or {@code NONE} to remove it
+         */
+        private void set(int track, int key) {
+            int oldKey = keys[track];
+            if (oldKey == key) {
+                return;
+            }
+            if (oldKey != NONE) {
+                int last = buckets[oldKey * trackCount + --bucketSizes[oldKey]];
+                buckets[oldKey * trackCount + indices[track]] = last;
+                indices[last] = indices[track];
+                size--;
+            }
+            keys[track] = key;
+            if (key != NONE) {
+                indices[track] = bucketSizes[key];
+                buckets[key * trackCount + bucketSizes[key]++] = track;
+                size++;
+                minKey = Math.min(minKey, key);
+            }
+        }
+
+        /**
+         * Returns the smallest key of any track in the queue.
+         * @return The smallest key, or {@code NONE} if the queue is empty.
+         */
+        private int getMinKey() {
+            if (size == 0) {
+                return NONE;
+            }
+            while (bucketSizes[minKey] == 0) {
+                minKey++;
+            }
+            return minKey;
+        }
+
+        private int get(int key, int index) {
+            return buckets[key * trackCount + index];
+        }
+
+        /**
+         * Draws one of the tracks with a key at random, without removing it.
+         * @param key A key held by at least one track
+         * @param random The source of the random choice, which is only used if more than one track has the key
+         * @return The ID of the track.
+         */
+        private int draw(int key, SplittableRandom random) {
+            int count = bucketSizes[key];
+            return get(key, count > 1 ? random.nextInt(count) : 0);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes sets of cups in one of several formats, either to a file or to a stream such as standard output.
+ * <p>
+ * Every write goes through one large buffer, so the file system sees a few large writes rather than one per line, which matters most on network storage.
+ * <p>
+ * A file is never written in place. It is written to a temporary file in the same directory, which {@code commit()} forces to storage and then links to the final name, so readers never see an empty or partly written file, even after a crash.
+ * If the writer is closed without being committed, e.g. because creating the sets failed, the temporary file is deleted and nothing is left behind.
+ * <p>
+ * An existing file is never overwritten. The final name is only taken when the file is committed, and if it is taken by then, {@code " (n)"} is added to it, where {@code n} is one more than the highest number already used.
+ * That number is found with a single listing of the directory, rather than by trying one name after another.
+ */
+public final class CupWriter implements Closeable {
+    /**
+     * The formats that sets of cups can be written in.
+     */
+    public enum Format {
+        /**
+         * One line per cup, with its name and its track names, e.g. {@code Mushroom Cup: A, B, C, D}. Each set after the first is preceded by an empty line.
+         */
+        TEXT("txt"),
+        /**
+         * One row per cup, with the columns Set, Seed, Cup, and Track 1 to Track 4, or up to the length of the cups. The header is written with the first set, so a file with no sets is empty.
+         */
+        CSV("csv"),
+        /**
+         * One row per cup with just its track names, and no header or line break after the last row, as saved by {@code Randomiser.saveRandomisedCupsAsCSV()}. Sets follow one another with nothing between them, so this is best used for a single set.
+         */
+        CUP_ROWS("csv"),
+        /**
+         * One JSON object per set, containing its index, its seed and a map of cup names to track names.
+         */
+        JSON_LINES("jsonl"),
+        /**
+         * A stream of sets packed by a {@code CupCodec}, each with its seed, which takes 32 bytes per set of eight cups. The header is written with the first set, so a file with no sets is empty.
+         */
+        BINARY("cups");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * Returns the file extension usually used for this format, without the leading dot.
+         * @return The file extension.
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Finds the format with the given name or file extension, ignoring case.
+         * @param name The name or extension, such as "csv", "jsonl" or "json_lines"
+         * @return The format, or {@code null} if there is no such format.
+         */
+        public static Format fromName(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Format format;
+    private final OutputStream stream;
+    private final Writer text;
+    private final DataOutputStream data;
+    private CupCodec codec;
+    private final FileChannel channel;
+    private Path path;
+    private final Path temporary;
+    private long count;
+    private boolean finished;
+
+    /**
+     * Creates a new writer that writes to a stream. The stream is flushed by {@code commit()}, but never closed.
+     * @param output The stream to write to
+     * @param format The format to write the sets in
+     * @throws IOException If the stream cannot be written to.
+     */
+    public CupWriter(OutputStream output, Format format) throws IOException {
+        this(new FilterOutputStream(output) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }, format, null, null, null);
+    }
+
+    private CupWriter(OutputStream output, Format format, FileChannel channel, Path path, Path temporary) throws IOException {
+        this.format = format;
+        this.channel = channel;
+        this.path = path;
+        this.temporary = temporary;
+        stream = new BufferedOutputStream(output, BUFFER_SIZE);
+        text = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        data = new DataOutputStream(stream);
+    }
+
+    /**
+     * Creates a new writer that writes to a file, which only appears once {@code commit()} is called.
+     * @param path The path to write to. If a file already exists there when the writer is committed, {@code " (n)"} is added to the name, before the extension.
+     * @param format The format to write the sets in
+     * @return The writer.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    public static CupWriter create(Path path, Format format) throws IOException {
+        Path temporary = createTemporaryFile(path);
+        try {
+            FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            try {
+                return new CupWriter(Channels.newOutputStream(channel), format, channel, path, temporary);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty temporary file in the same directory as a file, to be written and then moved over it.
+     * Unlike {@code Files.createTempFile()}, which makes a file only its owner can read, the file is given the permissions of an ordinary new file, so other users can read the file it becomes.
+     * @param path The file the temporary file will become
+     * @return The temporary file.
+     * @throws IOException If the file cannot be created.
+     */
+    static Path createTemporaryFile(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName().toString() + ".";
+        while (true) {
+            try {
+                return Files.createFile(directory.resolve(prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp"));
+            } catch (FileAlreadyExistsException e) {
+                // Another temporary file has the same name, so another one is drawn.
+            }
+        }
+    }
+
+    /**
+     * Gives a written temporary file a name that no other file has, without ever replacing a file.
+     * The file is hard linked to its new name, which fails if the name is taken, so two writers can never take the same name. On a file system without hard links, it is moved instead, which only fails if the name is taken before the move begins.
+     * @param temporary The temporary file
+     * @param path The name wanted
+     * @return The name taken, which is either {@code path} or {@code path} with {@code " (n)"} added.
+     */
+    private static Path publish(Path temporary, Path path) throws IOException {
+        Path candidate = path;
+        boolean links = true;
+        while (true) {
+            try {
+                if (links) {
+                    Files.createLink(candidate, temporary);
+                    Files.delete(temporary);
+                } else {
+                    Files.move(temporary, candidate);
+                }
+                return candidate;
+            } catch (FileAlreadyExistsException e) {
+                // Another file has the name, so the directory is listed for the next free number.
+                candidate = getNextFreeName(path);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                if (!links) {
+                    throw e;
+                }
+                links = false;
+            }
+        }
+    }
+
+    /**
+     * Finds the name with the next {@code " (n)"} after the highest already used for a name in its directory.
+     * @param path The name to number
+     * @return The numbered name.
+     */
+    private static Path getNextFreeName(Path path) throws IOException {
+        String fileName = path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        String prefix = base + " (";
+        String suffix = ")" + extension;
+
+        Path directory = path.toAbsolutePath().getParent();
+        long highest = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.length() > prefix.length() + suffix.length() && name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        highest = Math.max(highest, Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a numbered copy, e.g. "Random Cups (old).csv".
+                    }
+                }
+            }
+        }
+        return path.resolveSibling(prefix + (highest + 1) + suffix);
+    }
+
+    /**
+     * Writes a set of cups, numbered after the sets already written.
+     * @param seed The seed the set was created from
+     * @param cups The set of cups
+     * @throws IOException If the set cannot be written.
+     */
+    public void write(long seed, CupSet cups) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The writer has already been committed or closed.");
+        }
+        if (format == Format.BINARY) {
+            if (codec == null) {
+                codec = new CupCodec(cups.getRouteGraph());
+                codec.writeHeader(data, cups.getCupCount(), cups.getCupLength());
+            }
+            codec.write(data, seed, cups);
+            count++;
+        } else {
+            if (count == 0) {
+                writeHeader(text, format, cups.getCupLength());
+            }
+            writeSet(text, format, count++, seed, cups);
+        }
+    }
+
+    /**
+     * Flushes everything written, and if writing to a file, forces it to storage and moves it into place.
+     * If this throws, the writer is not committed, and closing it discards the file.
+     * @throws IOException If the output cannot be written to or the file cannot be moved.
+     */
+    public void commit() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The writer has already been committed or closed.");
+        }
+        text.flush();
+        if (channel != null) {
+            // Without this, a crash soon after the move could leave the file under its final name with none of its contents.
+            channel.force(true);
+        }
+        text.close();
+        if (temporary != null) {
+            path = publish(temporary, path);
+        }
+        finished = true;
+    }
+
+    /**
+     * Closes the writer. If it was not committed, any file being written is discarded.
+     * @throws IOException If the temporary file cannot be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            text.close();
+        } catch (IOException e) {
+            // The output is being discarded, so it does not matter whether it could be flushed.
+        } finally {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Returns the path the file is written to. Once the writer is committed, this may have had {@code " (n)"} added to the path asked for.
+     * @return The path, or {@code null} if writing to a stream.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the format the sets are written in.
+     * @return The format.
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the number of sets written so far.
+     * @return The number of sets.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes the header that comes before the first set in the given text format, if it has one.
+     * @param output Where to write the header
+     * @param format The format the sets will be written in
+     * @param cupLength The number of tracks in each cup
+     */
+    private static void writeHeader(Writer output, Format format, int cupLength) throws IOException {
+        if (format == Format.CSV) {
+            output.write("Set,Seed,Cup");
+            for (int position = 1; position <= cupLength; position++) {
+                output.write(",Track " + position);
+            }
+            output.write(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Writes a single set of cups in the given text format.
+     * @param output Where to write the set
+     * @param format The format to write the set in
+     * @param index The index of the set among those written
+     * @param seed The seed the set was created from
+     * @param cups The set of cups
+     */
+    private static void writeSet(Writer output, Format format, long index, long seed, CupSet cups) throws IOException {
+        switch (format) {
+            case TEXT -> {
+                if (index > 0) {
+                    output.write(System.lineSeparator());
+                }
+                for (int cup = 0; cup < cups.getCupCount(); cup++) {
+                    output.write(cups.getCupName(cup));
+                    output.write(" Cup: ");
+                    for (int position = 0; position < cups.getCupLength(); position++) {
+                        if (position > 0) {
+                            output.write(", ");
+                        }
+                        output.write(cups.getTrackName(cup, position));
+                    }
+                    output.write(System.lineSeparator());
+                }
+            }
+            case CUP_ROWS -> {
+                for (int cup = 0; cup < cups.getCupCount(); cup++) {
+                    if (index > 0 || cup > 0) {
+                        output.write(System.lineSeparator());
+                    }
+                    for (int position = 0; position < cups.getCupLength(); position++) {
+                        if (position > 0) {
+                            output.write(',');
+                        }
+                        output.write(escapeCSV(cups.getTrackName(cup, position)));
+                    }
+                }
+            }
+            case CSV -> {
+                for (int cup = 0; cup < cups.getCupCount(); cup++) {
+                    output.write(index + "," + seed + "," + escapeCSV(cups.getCupName(cup)));
+                    for (int position = 0; position < cups.getCupLength(); position++) {
+                        output.write(',');
+                        output.write(escapeCSV(cups.getTrackName(cup, position)));
+                    }
+                    output.write(System.lineSeparator());
+                }
+            }
+            case JSON_LINES -> {
+                output.write("{\"set\":" + index + ",\"seed\":" + seed + ",\"cups\":{");
+                for (int cup = 0; cup < cups.getCupCount(); cup++) {
+                    if (cup > 0) {
+                        output.write(',');
+                    }
+                    output.write(escapeJSON(cups.getCupName(cup)) + ":[");
+                    for (int position = 0; position < cups.getCupLength(); position++) {
+                        if (position > 0) {
+                            output.write(',');
+                        }
+                        output.write(escapeJSON(cups.getTrackName(cup, position)));
+                    }
+                    output.write(']');
+                }
+                output.write("}}");
+                output.write(System.lineSeparator());
+            }
+            case BINARY -> throw new IllegalArgumentException("Packed sets of cups are written with a CupCodec.");
+        }
+    }
+
+    /**
+     * Quotes a CSV field if it contains a comma, quote or line break.
+     * @param field The field to escape
+     * @return The field, safe to write to a CSV file.
+     */
+    static String escapeCSV(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            return field;
+        }
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Converts a String into a quoted JSON string.
+     * @param text The text to convert
+     * @return The text as a JSON string, including the surrounding quotes.
+     */
+    static String escapeJSON(String text) {
+        StringBuilder builder = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
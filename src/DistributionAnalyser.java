@@ -0,0 +1,342 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Generates a large number of sets of cups and measures how often each track, route and layout appears in them, to find out which the randomiser favours.
+ * <p>
+ * Sets are generated in chunks of {@code CHUNK_SIZE} by worker threads. Each worker counts into its own primitive arrays, which are only added together once every set has been generated, so the workers never contend over a counter.
+ * Chunk {@code n} always draws the seeds of its sets from the {@code n}th stream split from the analysis seed, so the same seed and count always give the same report, no matter how many threads are used.
+ * <p>
+ * Each table in the report compares how often each of its items appeared against an equal share for every item that could appear, with a chi-square statistic for the whole table.
+ * The report is written as a CSV file whose rows are always in the same order, so that reports from different releases can be compared with a plain diff.
+ */
+public class DistributionAnalyser {
+    /**
+     * The number of sets generated from each stream split from the analysis seed.
+     */
+    public static final int CHUNK_SIZE = 1024;
+
+    private final RandomiserEngine engine;
+    private final RouteGraph routeGraph;
+    private final int trackCount;
+    private final int routeCount;
+    private final int cupLength;
+
+    /**
+     * Creates a new analyser.
+     * @param engine The engine to generate sets of cups with
+     */
+    public DistributionAnalyser(RandomiserEngine engine) {
+        this.engine = engine;
+        this.routeGraph = engine.getRouteGraph();
+        this.trackCount = routeGraph.getTrackCount();
+        this.routeCount = routeGraph.getRouteCount();
+        this.cupLength = engine.getRules().getCupLength();
+    }
+
+    /**
+     * Generates sets of cups and counts what appears in them.
+     * @param count The number of sets to generate
+     * @param seed The seed that the seeds of the sets are drawn from
+     * @param threads The number of worker threads to generate sets with
+     * @return The report.
+     * @throws InterruptedException If the calling thread was interrupted while waiting for the workers.
+     * @throws ExecutionException If a set of cups could not be created.
+     */
+    public Report analyse(long count, long seed, int threads) throws InterruptedException, ExecutionException {
+        int workerCount = Math.max(threads, 1);
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        Chunks chunks = new Chunks(seed, count);
+        long startTime = System.nanoTime();
+        ArrayList<Future<Tally>> tallies = new ArrayList<>();
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                tallies.add(workers.submit(() -> count(chunks)));
+            }
+            Tally total = new Tally();
+            for (Future<Tally> tally : tallies) {
+                total.add(tally.get());
+            }
+            return new Report(total, System.nanoTime() - startTime);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates and counts sets of cups from chunks until every chunk has been taken.
+     * @param chunks The chunks to take
+     * @return The counts for every set this thread generated.
+     */
+    private Tally count(Chunks chunks) {
+        Tally tally = new Tally();
+        long[] chunk = new long[2];
+        SplittableRandom random;
+        while ((random = chunks.next(chunk)) != null) {
+            for (long set = chunk[0]; set < chunk[1]; set++) {
+                tally.count(engine.randomise(random.nextLong()));
+            }
+        }
+        return tally;
+    }
+
+    /**
+     * Hands out chunks of sets to worker threads, in order.
+     */
+    private static final class Chunks {
+        private final SplittableRandom seedRandom;
+        private final long count;
+        private long nextSet;
+
+        private Chunks(long seed, long count) {
+            this.seedRandom = new SplittableRandom(seed);
+            this.count = count;
+        }
+
+        /**
+         * Takes the next chunk.
+         * @param chunk Filled with the index of the first set in the chunk, and the index just after the last
+         * @return The stream to draw the seeds of the chunk's sets from, or {@code null} if every chunk has been taken.
+         */
+        private synchronized SplittableRandom next(long[] chunk) {
+            if (nextSet >= count) {
+                return null;
+            }
+            chunk[0] = nextSet;
+            chunk[1] = nextSet = Math.min(nextSet + CHUNK_SIZE, count);
+            return seedRandom.split();
+        }
+    }
+
+    /**
+     * The counts from the sets generated by one thread, or from every thread once added together.
+     */
+    private final class Tally {
+        private long sets;
+        private final long[] tracks = new long[trackCount];
+        private final long[] positions = new long[trackCount * cupLength];
+        private final long[] routes = new long[routeCount];
+        private final long[] duplicates = new long[trackCount];
+        private final int[] uses = new int[trackCount];
+
+        private void count(CupSet cups) {
+            Arrays.fill(uses, 0);
+            for (int cup = 0; cup < cups.getCupCount(); cup++) {
+                for (int position = 0; position < cups.getCupLength(); position++) {
+                    int track = cups.getTrack(cup, position);
+                    tracks[track]++;
+                    positions[position * trackCount + track]++;
+                    routes[cups.getRoute(cup, position)]++;
+                    if (++uses[track] == 2) {
+                        duplicates[track]++;
+                    }
+                }
+            }
+            sets++;
+        }
+
+        private void add(Tally other) {
+            sets += other.sets;
+            addAll(tracks, other.tracks);
+            addAll(positions, other.positions);
+            addAll(routes, other.routes);
+            addAll(duplicates, other.duplicates);
+        }
+
+        private static void addAll(long[] counts, long[] other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other[i];
+            }
+        }
+    }
+
+    /**
+     * The counts for one kind of item, such as tracks or routes.
+     * @param name The name of the table
+     * @param items The name of each item
+     * @param counts How often each item appeared
+     * @param possible Whether each item could appear at all. Items that cannot are left out of the expected shares and the chi-square statistic.
+     */
+    private record Table(String name, String[] items, long[] counts, boolean[] possible) {
+        private long total() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        private int possibleCount() {
+            int possibleCount = 0;
+            for (boolean item : possible) {
+                possibleCount += item ? 1 : 0;
+            }
+            return possibleCount;
+        }
+
+        private double chiSquare() {
+            double expected = (double) total() / possibleCount();
+            double chiSquare = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (possible[i]) {
+                    chiSquare += (counts[i] - expected) * (counts[i] - expected) / expected;
+                }
+            }
+            return chiSquare;
+        }
+    }
+
+    /**
+     * The results of an analysis: how often each track appeared overall and in each position, how often each route appeared, and how often each track was one of those used twice.
+     */
+    public final class Report {
+        private final long sets;
+        private final long elapsedNanos;
+        private final List<Table> tables = new ArrayList<>();
+
+        private Report(Tally tally, long elapsedNanos) {
+            this.sets = tally.sets;
+            this.elapsedNanos = elapsedNanos;
+
+            ChainTable chainTable = new ChainTable(routeGraph, cupLength);
+            String[] trackNames = new String[trackCount];
+            boolean[] anyTrack = new boolean[trackCount];
+            boolean[][] trackInPosition = new boolean[cupLength][trackCount];
+            boolean[] routeUsed = new boolean[routeCount];
+            int[] trackLayouts = new int[trackCount];
+            for (int chain = 0; chain < chainTable.getChainCount(); chain++) {
+                for (int position = 0; position < cupLength; position++) {
+                    int track = chainTable.getTrack(chain, position);
+                    anyTrack[track] = true;
+                    trackInPosition[position][track] = true;
+                    routeUsed[chainTable.getRoute(chain, position)] = true;
+                    trackLayouts[track] |= 1 << chainTable.getLayout(chain, position);
+                }
+            }
+            boolean[] canRepeat = new boolean[trackCount];
+            for (int track = 0; track < trackCount; track++) {
+                trackNames[track] = routeGraph.getTrackName(track);
+                canRepeat[track] = Integer.bitCount(trackLayouts[track]) > 1;
+            }
+            String[] routeNames = new String[routeCount];
+            for (int route = 0; route < routeCount; route++) {
+                routeNames[route] = routeGraph.getRouteNumber(route) + " (" + routeGraph.getTrackName(routeGraph.getRouteOrigin(route)) + " to " + routeGraph.getTrackName(routeGraph.getRouteDestination(route)) + ")";
+            }
+
+            tables.add(new Table("track", trackNames, tally.tracks, anyTrack));
+            for (int position = 0; position < cupLength; position++) {
+                long[] counts = Arrays.copyOfRange(tally.positions, position * trackCount, (position + 1) * trackCount);
+                tables.add(new Table("position " + (position + 1), trackNames, counts, trackInPosition[position]));
+            }
+            tables.add(new Table("route", routeNames, tally.routes, routeUsed));
+            tables.add(new Table("duplicate", trackNames, tally.duplicates, canRepeat));
+        }
+
+        /**
+         * Returns the number of sets of cups that were generated.
+         * @return The number of sets.
+         */
+        public long getSetCount() {
+            return sets;
+        }
+
+        /**
+         * Returns how long it took to generate and count every set.
+         * @return The time taken in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the names of the tables in the report: "track", then "position 1" onwards, then "route" and "duplicate".
+         * @return The table names, in the order they are written.
+         */
+        public List<String> getTableNames() {
+            ArrayList<String> names = new ArrayList<>();
+            for (Table table : tables) {
+                names.add(table.name());
+            }
+            return names;
+        }
+
+        /**
+         * Returns how often each item in a table appeared.
+         * @param tableName The name of the table
+         * @return A map of each item name to how often it appeared, in the order they are written.
+         * @throws IllegalArgumentException If there is no table with the given name.
+         */
+        public Map<String, Long> getCounts(String tableName) {
+            Table table = getTable(tableName);
+            LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+            for (int i = 0; i < table.items().length; i++) {
+                counts.put(table.items()[i], table.counts()[i]);
+            }
+            return counts;
+        }
+
+        /**
+         * Returns the chi-square statistic of a table, against an equal share for every item that could appear.
+         * @param tableName The name of the table
+         * @return The chi-square statistic, which has one fewer degrees of freedom than the number of items that could appear.
+         * @throws IllegalArgumentException If there is no table with the given name.
+         */
+        public double getChiSquare(String tableName) {
+            return getTable(tableName).chiSquare();
+        }
+
+        private Table getTable(String tableName) {
+            for (Table table : tables) {
+                if (table.name().equals(tableName)) {
+                    return table;
+                }
+            }
+            throw new IllegalArgumentException("There is no table named " + tableName + ".");
+        }
+
+        /**
+         * Writes the report as CSV, with the columns Table, Item, Count, Share, Expected Share, Chi-Square and Z.
+         * <p>
+         * The first rows give the number of sets, the time taken and the sets generated per second. Each table then has a row per item, where Z is the item's deviation from its expected count in standard deviations, followed by a row named "All".
+         * In that row, Count is the total, Chi-Square is the statistic for the table, and Z is that statistic's deviation from its degrees of freedom in standard deviations, so values far above 3 mean the table is clearly not uniform.
+         * Items that cannot appear have an expected share of 0 and are left out of the statistic.
+         * @param output Where to write the report. It is flushed but not closed.
+         * @throws IOException If the output cannot be written to.
+         */
+        public void writeCSV(Writer output) throws IOException {
+            output.write("Table,Item,Count,Share,Expected Share,Chi-Square,Z");
+            output.write(System.lineSeparator());
+            writeRow(output, "summary", "sets", Long.toString(sets), "", "", "", "");
+            writeRow(output, "summary", "elapsed ms", Long.toString(elapsedNanos / 1_000_000), "", "", "", "");
+            writeRow(output, "summary", "sets per second", format(sets * 1e9 / Math.max(elapsedNanos, 1)), "", "", "", "");
+            for (Table table : tables) {
+                long total = table.total();
+                int possibleCount = table.possibleCount();
+                for (int i = 0; i < table.items().length; i++) {
+                    long count = table.counts()[i];
+                    double expectedShare = table.possible()[i] ? 1.0 / possibleCount : 0;
+                    double expected = expectedShare * total;
+                    String share = total == 0 ? "" : format((double) count / total);
+                    String chiSquare = expected == 0 ? "" : format((count - expected) * (count - expected) / expected);
+                    String z = expected == 0 ? "" : format((count - expected) / Math.sqrt(expected));
+                    writeRow(output, table.name(), table.items()[i], Long.toString(count), share, format(expectedShare), chiSquare, z);
+                }
+                double chiSquare = table.chiSquare();
+                int degreesOfFreedom = possibleCount - 1;
+                String z = degreesOfFreedom < 1 || total == 0 ? "" : format((chiSquare - degreesOfFreedom) / Math.sqrt(2.0 * degreesOfFreedom));
+                writeRow(output, table.name(), "All", Long.toString(total), total == 0 ? "" : "1", "1", total == 0 ? "" : format(chiSquare), z);
+            }
+            output.flush();
+        }
+
+        private static void writeRow(Writer output, String table, String item, String count, String share, String expectedShare, String chiSquare, String z) throws IOException {
+            output.write(CupWriter.escapeCSV(table) + "," + CupWriter.escapeCSV(item) + "," + count + "," + share + "," + expectedShare + "," + chiSquare + "," + z);
+            output.write(System.lineSeparator());
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.ROOT, "%.6f", value);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Remembers every set of cups it has been given, so that a batch can reject sets it has already produced.
+ * <p>
+ * The regular cups of a set are handed out in a random order, so two sets that differ only in which regular cup is which count as the same set. Each set is packed into a few longs by {@code CupCodec.encodeUnordered()}, which gives both of them the same words.
+ * The packed sets are kept in an open-addressing hash table held in a single {@code long[]}, with no object per set, so remembering a set takes a few dozen bytes rather than the hundreds taken by a {@code HashSet} of sets.
+ * The table doubles whenever it is half full.
+ * <p>
+ * As a batch uses up more of the sets the route graph allows, more of the sets created are duplicates. {@code getRecentDuplicateRate()} shows how quickly this is happening, by the share of the last {@code WINDOW} sets that were duplicates.
+ * <p>
+ * A filter is not thread-safe. It is meant to be used by the one thread writing a batch.
+ */
+public final class DuplicateFilter {
+    public static final int WINDOW = 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final CupCodec codec;
+    private int cupCount;
+    private int cupLength;
+    private int wordCount;
+    private long[] words;
+    private long[] table;
+    private int capacity;
+    private int size;
+    private boolean containsZero;
+
+    private long added;
+    private long duplicates;
+    private final long[] recent = new long[WINDOW / Long.SIZE];
+    private int recentDuplicates;
+
+    /**
+     * Creates a new, empty filter for sets of cups from the given route graph.
+     * @param routeGraph The route graph the sets belong to
+     */
+    public DuplicateFilter(RouteGraph routeGraph) {
+        codec = new CupCodec(routeGraph);
+    }
+
+    /**
+     * Adds a set of cups to the filter, if it has not been added before.
+     * @param cups The set of cups
+     * @return {@code true} if the set is new, or {@code false} if the same set, in any order of its regular cups, was added before.
+     * @throws IllegalArgumentException If the set is from a route graph with a different fingerprint, or has a different number of cups or tracks per cup to the first set added.
+     */
+    public boolean add(CupSet cups) {
+        if (table == null) {
+            cupCount = cups.getCupCount();
+            cupLength = cups.getCupLength();
+            wordCount = codec.getWordCount(cupCount, cupLength);
+            words = new long[wordCount];
+            capacity = INITIAL_CAPACITY;
+            table = new long[capacity * wordCount];
+        } else if (cups.getCupCount() != cupCount || cups.getCupLength() != cupLength) {
+            throw new IllegalArgumentException("Every set in a filter must have the same number of cups and tracks per cup.");
+        }
+        codec.encodeUnordered(cups, words, 0);
+        boolean isNew = insert(words);
+        record(!isNew);
+        return isNew;
+    }
+
+    /**
+     * Adds packed words to the table, unless they are already in it.
+     * @return {@code true} if the words were added.
+     */
+    private boolean insert(long[] key) {
+        if (isZero(key, 0)) {
+            // An empty slot is all zeroes, so a key of all zeroes is remembered on its own.
+            boolean isNew = !containsZero;
+            containsZero = true;
+            return isNew;
+        }
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int start = slot * wordCount;
+            if (isZero(table, start)) {
+                System.arraycopy(key, 0, table, start, wordCount);
+                if (++size > capacity / 2) {
+                    grow();
+                }
+                return true;
+            }
+            if (matches(key, start)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Doubles the capacity of the table, adding every key to the new one.
+     */
+    private void grow() {
+        if ((long) capacity * 2 * wordCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("A duplicate filter cannot hold more than " + size + " sets.");
+        }
+        long[] oldTable = table;
+        int oldCapacity = capacity;
+        capacity *= 2;
+        table = new long[capacity * wordCount];
+        int mask = capacity - 1;
+        long[] key = new long[wordCount];
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            if (isZero(oldTable, oldSlot * wordCount)) {
+                continue;
+            }
+            System.arraycopy(oldTable, oldSlot * wordCount, key, 0, wordCount);
+            int slot = hash(key) & mask;
+            while (!isZero(table, slot * wordCount)) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(key, 0, table, slot * wordCount, wordCount);
+        }
+    }
+
+    private int hash(long[] key) {
+        long hash = 0;
+        for (long word : key) {
+            hash = Long.rotateLeft(hash ^ word, 31) * 0x9E3779B97F4A7C15L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    private boolean isZero(long[] array, int start) {
+        for (int word = 0; word < wordCount; word++) {
+            if (array[start + word] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(long[] key, int start) {
+        for (int word = 0; word < wordCount; word++) {
+            if (table[start + word] != key[word]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts whether a set was a duplicate, both in total and in the window of recent sets.
+     */
+    private void record(boolean duplicate) {
+        int index = (int) (added % WINDOW);
+        long bit = 1L << index;
+        if ((recent[index / Long.SIZE] & bit) != 0) {
+            recentDuplicates--;
+        }
+        if (duplicate) {
+            recent[index / Long.SIZE] |= bit;
+            recentDuplicates++;
+            duplicates++;
+        } else {
+            recent[index / Long.SIZE] &= ~bit;
+        }
+        added++;
+    }
+
+    /**
+     * Returns the number of different sets in the filter.
+     * @return The number of sets.
+     */
+    public long size() {
+        return size + (containsZero ? 1 : 0);
+    }
+
+    /**
+     * Returns the number of sets given to {@code add()} so far that were already in the filter.
+     * @return The number of duplicates.
+     */
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Returns the share of the last {@code WINDOW} sets given to {@code add()}, or of every set if there have been fewer, that were already in the filter.
+     * @return The share of recent sets that were duplicates, from 0 to 1.
+     */
+    public double getRecentDuplicateRate() {
+        return added == 0 ? 0 : (double) recentDuplicates / Math.min(added, WINDOW);
+    }
+
+    /**
+     * Returns whether every one of the last {@code WINDOW} sets given to {@code add()} was already in the filter, which suggests that the route graph allows no more sets.
+     * @return {@code true} if the last {@code WINDOW} sets were all duplicates.
+     */
+    public boolean isExhausted() {
+        return added >= WINDOW && recentDuplicates == WINDOW;
+    }
+
+    @Override
+    public String toString() {
+        return "Duplicates: " + size() + " different sets, " + duplicates + " duplicates rejected (" + String.format("%.2f", getRecentDuplicateRate() * 100) + "% of the last " + Math.min(added, WINDOW) + " sets)" + System.lineSeparator();
+    }
+}
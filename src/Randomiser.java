@@ -1,603 +1,208 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 /**
- * A class to create a set of eight random cups. These cups must satisfy the following rules:
+ * A class to create a set of random cups, eight by default. These cups must satisfy the following rules:
  * <ol>
- * <li>A cup must have 4 tracks.</li>
+ * <li>A cup must have 4 tracks, unless another length is chosen.</li>
  * <li>The first track in a cup must be traversed without routes.</li>
  * <li>The other tracks in a cup must be traversed via a route from the previous track. This route must be selectable in VS Race.</li>
  * <li>Every track must be represented at least once.</li>
- * <li>The remaining two slots must be filled by different tracks, and these tracks must use different layouts in each slot.</li>
+ * <li>The remaining slots must be filled by different tracks, and these tracks must use different layouts in each slot, unless repeated layouts are allowed.</li>
  * <li>The Special Cup must end with Rainbow Road.</li>
  * </ol>
  */
 public class Randomiser {
     public static final String DELIM = ",";
-    private static int originColumn;
-    private static int destinationColumn;
-    private static int routeNumberColumn;
+    public static final Path ROUTES_PATH = Path.of("routes", "routes.csv");
+    public static final int CACHE_CAPACITY = 1024;
+    public static final int POOL_CAPACITY = 64;
 
-    private static ArrayList<RouteInfo> remainingUniqueTracks;
-    private static ArrayList<RouteInfo> remainingDuplicateTracks;
-
-    private static ArrayList<String> unusedTracks;
-    private static ArrayList<String> usedOnceTracks;
+    /**
+     * The result of the last completed randomisation.
+     * @param seed The seed the cups were created from
+     * @param cups The set of cups
+     */
+    private record Randomised(long seed, CupSet cups) {
+    }
 
-    private static final HashMap<String,HashMap<Integer, String>> cups = new HashMap<>();
+    private static volatile RouteWatcher defaultWatcher;
+    private static volatile Randomised randomised;
+    private static final SolverMetrics metrics = new SolverMetrics();
+    private static final CupCache cache = new CupCache(CACHE_CAPACITY);
 
-    private static HashMap<Integer, String> mushroomCup;
-    private static HashMap<Integer, String> flowerCup;
-    private static HashMap<Integer, String> starCup;
-    private static HashMap<Integer, String> shellCup;
-    private static HashMap<Integer, String> bananaCup;
-    private static HashMap<Integer, String> leafCup;
-    private static HashMap<Integer, String> lightningCup;
-    private static HashMap<Integer, String> specialCup;
+    /**
+     * Loads routes.csv as a RouteGraph and returns it. The compiled snapshot next to routes.csv is used if it is up to date, and is rebuilt otherwise.
+     * @return routes.csv in RouteGraph form.
+     */
+    public static RouteGraph GetRouteGraph() throws IOException {
+        return GetRouteGraph(ROUTES_PATH);
+    }
 
-    private static boolean complete = false;
+    /**
+     * Loads a routes file as a RouteGraph and returns it. The compiled snapshot next to the routes file is used if it is up to date, and is rebuilt otherwise.
+     * @param routesPath The path of the routes file
+     * @return The routes file in RouteGraph form.
+     */
+    public static RouteGraph GetRouteGraph(Path routesPath) throws IOException {
+        RandomiserEvents.LoadRoutes event = RandomiserEvents.isAvailable() ? new RandomiserEvents.LoadRoutes() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long startTime = System.nanoTime();
+        RouteGraph routeGraph = RouteGraphSnapshot.load(routesPath, () -> parseRouteGraph(routesPath));
+        metrics.recordLatency(SolverMetrics.Phase.LOAD_ROUTES, System.nanoTime() - startTime);
+        if (event != null && event.shouldCommit()) {
+            event.path = routesPath.toString();
+            event.routes = routeGraph.getRouteCount();
+            event.commit();
+        }
+        return routeGraph;
+    }
 
     /**
-     * Converts routes.csv into an ArrayList and returns it.
-     * @return routes.csv in ArrayList form.
+     * Parses a routes file into a RouteGraph, ignoring any snapshot.
+     * @param routesPath The path of the routes file
+     * @return The routes file in RouteGraph form.
      */
-    private static ArrayList<RouteInfo> GetRouteArrayList() throws IOException {
-        ArrayList<RouteInfo> allRoutes = new ArrayList<>();
+    private static RouteGraph parseRouteGraph(Path routesPath) throws IOException {
         try {
-            File routeCSV = new File("routes/routes.csv");
-            FileReader routeFileReader = new FileReader(routeCSV);
-            BufferedReader routeBufferedReader = new BufferedReader(routeFileReader);
-            String nextRoute = routeBufferedReader.readLine();
-            String[] routeElements = nextRoute.split(DELIM);
-            for (int i = 0; i < routeElements.length; i++) {
-                switch (routeElements[i]) {
-                    case "Origin", "ORIGIN", "origin" -> originColumn = i;
-                    case "Destination", "DESTINATION", "destination" -> destinationColumn = i;
-                    case "Route Number", "ROUTE NUMBER", "route number", "routeNumber", "Number", "NUMBER", "number",
-                         "Num", "NUM", "num", "#" -> routeNumberColumn = i;
-                }
-            }
-            while (routeBufferedReader.ready()) {
-                nextRoute = routeBufferedReader.readLine();
-                routeElements = nextRoute.split(DELIM);
-                RouteInfo nextRouteInfo = new RouteInfo(routeElements[originColumn], routeElements[destinationColumn], routeElements[routeNumberColumn]);
-                allRoutes.add(nextRouteInfo);
-            }
-            routeBufferedReader.close();
-            routeFileReader.close();
-        } catch (FileNotFoundException f) {
-            System.out.println("routes.csv not found. Please ensure that the routes file is present and contained within the same folder as this file.");
+            return RouteLoader.load(routesPath);
+        } catch (FileNotFoundException | NoSuchFileException f) {
+            System.out.println(routesPath.getFileName() + " not found. Please ensure that the routes file is present and contained within the same folder as this file.");
             throw f;
+        } catch (RouteFormatException r) {
+            System.out.println(routesPath.getFileName() + " could not be read, as it is malformed. Please fix the following problem:");
+            System.out.println(r.getMessage());
+            throw r;
         } catch (IOException i) {
             System.out.println("An IO exception has occurred. Please read the message and ensure that it is fixed.");
             System.out.println("The message is as follows:");
             System.out.println(i.getMessage());
             throw i;
         }
-        return allRoutes;
-    }
-
-    /**
-     * Attempts to add a track to a cup in a random position. This will fail if a duplicate layout of the track would be added to the overall set of cups.
-     * @param cupName The name of the cup to add the track to
-     * @param track The track to add
-     * @return {@code true} if the track was successfully added to the cup.
-     */
-    private static boolean addTrack(String cupName, String track) {
-        int startAt = new Random().nextInt(4);
-        int successCount = 0;
-        if (addTrack(cupName, track, startAt)) {
-            successCount++;
-        }
-        switch (startAt) {
-            case 0 -> {
-                String track1 = getRandomTrackFrom(track, cupName);
-                if (addTrack(cupName, track1, 1)) {
-                    successCount++;
-                }
-
-                String track2 = getRandomTrackFrom(track1, cupName);
-                if (addTrack(cupName, track2, 2)) {
-                    successCount++;
-                }
-
-                String track3 = getRandomTrackFrom(track2, cupName);
-                if (addTrack(cupName, track3, 3)) {
-                    successCount++;
-                }
-            }
-            case 1 -> {
-                switch (new Random().nextInt(3)) {
-                    case 0 -> {
-                        String track0 = getRandomTrackTo(track, cupName, true);
-                        if (addTrack(cupName, track0, 0)) {
-                            successCount++;
-                        }
-
-                        String track2 = getRandomTrackFrom(track, cupName);
-                        if (addTrack(cupName, track2, 2)) {
-                            successCount++;
-                        }
-
-                        String track3 = getRandomTrackFrom(track2, cupName);
-                        if (addTrack(cupName, track3, 3)) {
-                            successCount++;
-                        }
-                    }
-                    case 1 -> {
-                        String track2 = getRandomTrackFrom(track, cupName);
-                        if (addTrack(cupName, track2, 2)) {
-                            successCount++;
-                        }
-
-                        String track0 = getRandomTrackTo(track, cupName, true);
-                        if (addTrack(cupName, track0, 0)) {
-                            successCount++;
-                        }
-
-                        String track3 = getRandomTrackFrom(track2, cupName);
-                        if (addTrack(cupName, track3, 3)) {
-                            successCount++;
-                        }
-                    }
-                    default -> {
-                        String track2 = getRandomTrackFrom(track, cupName);
-                        if (addTrack(cupName, track2, 2)) {
-                            successCount++;
-                        }
-
-                        String track3 = getRandomTrackFrom(track2, cupName);
-                        if (addTrack(cupName, track3, 3)) {
-                            successCount++;
-                        }
-
-                        String track0 = getRandomTrackTo(track, cupName, true);
-                        if (addTrack(cupName, track0, 0)) {
-                            successCount++;
-                        }
-                    }
-                }
-            }
-            case 2 -> {
-                switch (new Random().nextInt(3)) {
-                    case 0 -> {
-                        String track3 = getRandomTrackFrom(track, cupName);
-                        if (addTrack(cupName, track3, 3)) {
-                            successCount++;
-                        }
-
-                        String track1 = getRandomTrackTo(track, cupName, false);
-                        if (addTrack(cupName, track1, 1)) {
-                            successCount++;
-                        }
-
-                        String track0 = getRandomTrackTo(track1, cupName, true);
-                        if (addTrack(cupName, track0, 0)) {
-                            successCount++;
-                        }
-                    }
-                    case 1 -> {
-                        String track1 = getRandomTrackTo(track, cupName, false);
-                        if (addTrack(cupName, track1, 1)) {
-                            successCount++;
-                        }
-
-                        String track3 = getRandomTrackFrom(track, cupName);
-                        if (addTrack(cupName, track3, 3)) {
-                            successCount++;
-                        }
-
-                        String track0 = getRandomTrackTo(track1, cupName, true);
-                        if (addTrack(cupName, track0, 0)) {
-                            successCount++;
-                        }
-                    }
-                    default -> {
-                        String track1 = getRandomTrackTo(track, cupName, false);
-                        if (addTrack(cupName, track1, 1)) {
-                            successCount++;
-                        }
-
-                        String track0 = getRandomTrackTo(track1, cupName, true);
-                        if (addTrack(cupName, track0, 0)) {
-                            successCount++;
-                        }
-
-                        String track3 = getRandomTrackFrom(track, cupName);
-                        if (addTrack(cupName, track3, 3)) {
-                            successCount++;
-                        }
-                    }
-                }
-            }
-            case 3 -> {
-                String track2 = getRandomTrackTo(track, cupName, false);
-                if (addTrack(cupName, track2, 2)) {
-                    successCount++;
-                }
-
-                String track1 = getRandomTrackTo(track2, cupName, false);
-                if (addTrack(cupName, track1, 1)) {
-                    successCount++;
-                }
-
-                String track0 = getRandomTrackTo(track1, cupName, true);
-                if (addTrack(cupName, track0, 0)) {
-                    successCount++;
-                }
-            }
-        }
-        return successCount == 4;
     }
 
     /**
-     * Attempts to add a track to a cup in the specified position. This will fail if a duplicate layout of the track would be added to the overall set of cups.
-     * @param cupName The name of the cup to add the track to
-     * @param track The track to add
-     * @param position The position in the cup to add it in
-     * @return {@code true} if the track was successfully added to the cup.
+     * Returns a snapshot of the metrics recorded by every default engine so far, including how long it took to load routes.csv.
+     * @return The metrics snapshot.
      */
-    private static boolean addTrack(String cupName, String track, Integer position) {
-        HashMap<Integer, String> cup = cups.get(cupName);
-        if (position < 3 && cup.get(position+1) != null && !cup.get(position+1).isEmpty()) {
-            int followingLayoutNum = -1;
-            for (RouteInfo route : remainingDuplicateTracks) {
-                if (route.isOrigin(track) && route.isDestination(cup.get(position+1))) {
-                    followingLayoutNum = route.getPrimaryNumber();
-                }
-            }
-            if (followingLayoutNum == -1) {
-                return false;
-            }
-            ArrayList<RouteInfo> toRemove = new ArrayList<>();
-            for (RouteInfo route : remainingDuplicateTracks) {
-                if (route.isDestination(cup.get(position+1)) && route.isPrimaryNumber(followingLayoutNum) && !route.isOrigin(track)) {
-                    toRemove.add(route);
-                }
-            }
-            remainingDuplicateTracks.removeAll(toRemove);
-            remainingUniqueTracks.removeIf(route -> route.isOrigin(track));
-        } else if (position == 3) {
-            remainingUniqueTracks.removeIf(route -> route.isOrigin(track));
-        }
-        if (position > 0 && cup.get(position-1) != null && !cup.get(position-1).isEmpty()) {
-            int priorLayoutNum = -1;
-            for (RouteInfo route : remainingDuplicateTracks) {
-                if (route.isOrigin(cup.get(position-1)) && route.isDestination(track)) {
-                    priorLayoutNum = route.getPrimaryNumber();
-                }
-            }
-            if (priorLayoutNum == -1) {
-                return false;
-            }
-            ArrayList<RouteInfo> toRemove = new ArrayList<>();
-            for (RouteInfo route : remainingDuplicateTracks) {
-                if (route.isDestination(track) && route.isPrimaryNumber(priorLayoutNum) && !route.isOrigin(cup.get(position-1))) {
-                    toRemove.add(route);
-                }
-            }
-            remainingDuplicateTracks.removeAll(toRemove);
-            remainingUniqueTracks.removeIf(route -> route.isDestination(track));
-        } else if (position == 0) {
-            int selfLayoutNum = -1;
-            for (RouteInfo route : remainingDuplicateTracks) {
-                if (route.isOrigin(track) && route.isDestination(track)) {
-                    selfLayoutNum = route.getPrimaryNumber();
-                }
-            }
-            if (selfLayoutNum == -1) {
-                return false;
-            }
-            ArrayList<RouteInfo> toRemove = new ArrayList<>();
-            for (RouteInfo route : remainingDuplicateTracks) {
-                if (route.isDestination(track) && route.isPrimaryNumber(selfLayoutNum) && !route.isOrigin(track)) {
-                    toRemove.add(route);
-                }
-            }
-            remainingDuplicateTracks.removeAll(toRemove);
-            remainingUniqueTracks.removeIf(route -> route.isDestination(track));
-        }
-        if (unusedTracks.contains(track)) {
-            unusedTracks.remove(track);
-            usedOnceTracks.add(track);
-        } else {
-            usedOnceTracks.remove(track);
-        }
-        if (position == 0) {
-            remainingDuplicateTracks.removeIf(route -> route.isOrigin(track) && route.isDestination(track));
-        } else if (cup.get(position-1) != null && !cup.get(position-1).isEmpty()) {
-            remainingDuplicateTracks.removeIf(route -> route.isOrigin(cup.get(position-1)) && route.isDestination(track));
-        }
-        if (position != 3 && cup.get(position+1) != null && !cup.get(position+1).isEmpty()) {
-            remainingDuplicateTracks.removeIf(route -> route.isOrigin(track) && route.isDestination(cup.get(position+1)));
-        }
-        cup.put(position,track);
-        cups.put(cupName,cup);
-        return true;
+    public static SolverMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
     }
 
     /**
-     * Gets a random track that has a route to the specified destination.
-     * @param destination The track to connect to
-     * @return A random track that has a route connecting to the specified destination, or the empty string if no such track exists.
+     * Returns the cache of sets created by {@code randomise(long seed)} and {@code randomiseInParallel(long seed, int parallelism)}, which holds the {@code CACHE_CAPACITY} most recently used sets.
+     * Its sets are dropped automatically whenever routes.csv changes.
+     * @return The cache.
      */
-    private static String getRandomTrackTo(String destination, String cupName, boolean positionZero) {
-        String toUnique = randomTrackToDestination(destination, remainingUniqueTracks, true, cupName, positionZero);
-        if (toUnique.isEmpty()) {
-            return randomTrackToDestination(destination, remainingDuplicateTracks, false, cupName, positionZero);
-        }
-        return toUnique;
+    public static CupCache getCache() {
+        return cache;
     }
 
-
     /**
-     * Gets a random track that has a route to the specified destination in the specified ArrayList.
-     * @param destination The track to connect to
-     * @return A random track that has a route connecting to the specified destination in the specified ArrayList, or the empty string if no such track exists.
+     * Returns the engine used by {@code randomise()}, loading routes.csv if it has not been loaded yet.
+     * routes.csv is only loaded once. From then on, it is watched by a {@code RouteWatcher} on a background thread, which swaps in a new engine whenever a valid change is made to it, so no call has to read the file again.
+     * @return The engine built from the latest valid routes.csv.
      */
-    private static String randomTrackToDestination(String destination, ArrayList<RouteInfo> remainingTracks, boolean onlyUniques, String cupName, boolean positionZero) {
-        ArrayList<RouteInfo> validRoutes = new ArrayList<>();
-        for (RouteInfo route : remainingTracks) {
-            if (route.isDestination(destination)) {
-                if (((!onlyUniques && usedOnceTracks.contains(route.getOrigin())) || unusedTracks.contains(route.getOrigin())) && !cups.get(cupName).containsValue(route.getOrigin()) && (!positionZero || remainingTracks.contains(new RouteInfo(route.getOrigin(), route.getDestination(), "0")))) {
-                    validRoutes.add(route);
+    public static RandomiserEngine getDefaultEngine() throws IOException {
+        RouteWatcher watcher = defaultWatcher;
+        if (watcher == null) {
+            synchronized (Randomiser.class) {
+                watcher = defaultWatcher;
+                if (watcher == null) {
+                    RandomiserEngine engine = new RandomiserEngine(GetRouteGraph(), metrics);
+                    try {
+                        watcher = new RouteWatcher(ROUTES_PATH, engine);
+                    } catch (IOException e) {
+                        System.out.println(ROUTES_PATH.getFileName() + " could not be watched for changes. The message is as follows:");
+                        System.out.println(e.getMessage());
+                        throw e;
+                    }
+                    defaultWatcher = watcher;
                 }
             }
         }
-        if (validRoutes.isEmpty()) {
-            return "";
-        }
-        return validRoutes.get(new Random().nextInt(validRoutes.size())).getOrigin();
+        return watcher.getEngine();
     }
 
     /**
-     * Gets a random track that has a route from the specified destination.
-     * @param origin The track to connect from
-     * @return A random track that has a route connecting from the specified destination, or the empty string if no such track exists.
+     * Uses the default engine to create a set of eight random cups. No output is given.
      */
-    private static String getRandomTrackFrom(String origin, String cupName) {
-        String fromUnique = randomTrackFromOrigin(origin, remainingUniqueTracks, true, cupName);
-        if (fromUnique.isEmpty()) {
-            return randomTrackFromOrigin(origin, remainingDuplicateTracks, false, cupName);
-        }
-        return fromUnique;
+    public static void randomise() {
+        randomise(ThreadLocalRandom.current().nextLong(), 1, false);
     }
 
     /**
-     * Gets a random track that has a route from the specified destination in the specified ArrayList.
-     * @param origin The track to connect from
-     * @return A random track that has a route connecting from the specified destination in the specified ArrayList, or the empty string if no such track exists.
+     * Uses the default engine to create a set of eight random cups from the given seed. No output is given.
+     * If the same seed was used recently with the same routes, the cups are taken from {@code getCache()} instead.
+     * @param seed The seed to create the cups from. The same seed always gives the same cups, as long as routes.csv is unchanged.
      */
-    private static String randomTrackFromOrigin(String origin, ArrayList<RouteInfo> remainingDuplicateTracks, boolean onlyUniques, String cupName) {
-        ArrayList<RouteInfo> validRoutes = new ArrayList<>();
-        for (RouteInfo route : remainingDuplicateTracks) {
-            if (route.isOrigin(origin)) {
-                if (((!onlyUniques && usedOnceTracks.contains(route.getDestination())) || unusedTracks.contains(route.getDestination())) && !cups.get(cupName).containsValue(route.getDestination())) {
-                    validRoutes.add(route);
-                }
-            }
-        }
-        if (validRoutes.isEmpty()) {
-            return "";
-        }
-        return validRoutes.get(new Random().nextInt(validRoutes.size())).getDestination();
+    public static void randomise(long seed) {
+        randomiseInParallel(seed, 1);
     }
 
     /**
-     * Gets the track with the fewest onward connections remaining, or a random one of those tied if applicable. Unless every track has already been chosen once, only tracks that have yet to be selected will be considered.
-     * @return A track with the fewest onward connections remaining.
+     * Uses the default engine to create a set of eight random cups by racing several searches against each other. No output is given.
+     * @param parallelism The number of searches to race, which is best set to the number of available processors
      */
-    private static String getMinimallyVisitedTrack() {
-        ArrayList<String> minConnectionTracks = getMinimallyVisitedTrackFromSet(remainingUniqueTracks, true);
-
-        if (minConnectionTracks.isEmpty()) {
-            ArrayList<String> minDuplicateConnectionTracks = getMinimallyVisitedTrackFromSet(remainingDuplicateTracks, false);
-
-            if (minDuplicateConnectionTracks.isEmpty()) {
-                return "";
-            } else {
-                return minDuplicateConnectionTracks.get(new Random().nextInt(minDuplicateConnectionTracks.size()));
-            }
-        } else {
-            return minConnectionTracks.get(new Random().nextInt(minConnectionTracks.size()));
-        }
+    public static void randomiseInParallel(int parallelism) {
+        randomise(ThreadLocalRandom.current().nextLong(), parallelism, false);
     }
 
     /**
-     * Gets the track with the fewest onward connections remaining, or a random one of those tied if applicable.
-     * @param remainingTracks the set of routes to consider tracks from
-     * @param onlyUnique whether only tracks that have yet to be selected should be considered
-     * @return A track with the fewest onward connections remaining.
+     * Uses the default engine to create a set of eight random cups from the given seed by racing several searches against each other. No output is given.
+     * @param seed The seed to create the cups from. The same seed always gives the same cups, no matter the parallelism.
+     * @param parallelism The number of searches to race, which is best set to the number of available processors
      */
-    private static ArrayList<String> getMinimallyVisitedTrackFromSet(ArrayList<RouteInfo> remainingTracks, boolean onlyUnique) {
-        HashMap<String, Integer> onwardConnectionsRemaining = new HashMap<>();
-
-        for (RouteInfo route : remainingTracks) {
-            String origin = route.getOrigin();
-            if (!onlyUnique || unusedTracks.contains(origin)) {
-                if (!onwardConnectionsRemaining.containsKey(origin)) {
-                    onwardConnectionsRemaining.put(origin, 1);
-                } else {
-                    onwardConnectionsRemaining.put(origin, (onwardConnectionsRemaining.get(origin) + 1));
-                }
-            }
-        }
-
-        int minimalConnections = Collections.min(onwardConnectionsRemaining.values());
-        ArrayList<String> minConnectionTracks = new ArrayList<>();
-
-        for (String origin : onwardConnectionsRemaining.keySet()) {
-            if (onwardConnectionsRemaining.get(origin) == minimalConnections) {
-                minConnectionTracks.add(origin);
-            }
-        }
-        return minConnectionTracks;
-    }
-
-    /**
-     * Attempts to create eight random cups under the following rules:
-     * <ol>
-     * <li>A cup must have 4 tracks.</li>
-     * <li>The first track in a cup must be traversed without routes.</li>
-     * <li>The other tracks in a cup must be traversed via a route from the previous track. This route must be selectable in VS Race.</li>
-     * <li>Every track must be represented at least once.</li>
-     * <li>The remaining two slots must be filled by different tracks, and these tracks must use different layouts in each slot.</li>
-     * <li>The Special Cup must end with Rainbow Road.</li>
-     * </ol>
-     * @return {@code true} if a set of eight random cups was successfully created.
-     */
-    private static boolean randomiseCups() {
-        cups.put("1",new HashMap<>());
-        cups.put("2",new HashMap<>());
-        cups.put("3",new HashMap<>());
-        cups.put("4",new HashMap<>());
-        cups.put("5",new HashMap<>());
-        cups.put("6",new HashMap<>());
-        cups.put("7",new HashMap<>());
-        cups.put("Special",new HashMap<>());
-
-        if (!addTrack("Special", "Rainbow Road", 3)) {
-            System.out.println("Something very wrong is going on.");
-        }
-        if (!addTrack("Special", "Peach Stadium", 2)) {
-            System.out.println("Something quite wrong is going on.");
-        }
-        String special1 = getRandomTrackTo(cups.get("Special").get(2),"Special", false);
-        if (special1.isEmpty()) {
-            return false;
-        }
-        if (!addTrack("Special",special1,1)) {
-            return false;
-        }
-        String special0 = getRandomTrackTo(cups.get("Special").get(1),"Special", true);
-        if (special0.isEmpty()) {
-            return false;
-        }
-        if (!addTrack("Special",special0,0)) {
-            return false;
-        }
-
-        if (!addTrack("1",getMinimallyVisitedTrack())) {
-            return false;
-        }
-        if (!addTrack("2",getMinimallyVisitedTrack())) {
-            return false;
-        }
-        if (!addTrack("3",getMinimallyVisitedTrack())) {
-            return false;
-        }
-        if (!addTrack("4",getMinimallyVisitedTrack())) {
-            return false;
-        }
-        if (!addTrack("5",getMinimallyVisitedTrack())) {
-            return false;
-        }
-        if (!addTrack("6",getMinimallyVisitedTrack())) {
-            return false;
-        }
-        if (!addTrack("7",getMinimallyVisitedTrack())) {
-            return false;
-        }
-
-        if (!unusedTracks.isEmpty()) {
-            return false;
-        }
+    public static void randomiseInParallel(long seed, int parallelism) {
+        randomise(seed, parallelism, true);
+    }
 
-        ArrayList<HashMap<Integer, String>> cupOrder = new ArrayList<>();
-        cupOrder.add(cups.get("1"));
-        cupOrder.add(cups.get("2"));
-        cupOrder.add(cups.get("3"));
-        cupOrder.add(cups.get("4"));
-        cupOrder.add(cups.get("5"));
-        cupOrder.add(cups.get("6"));
-        cupOrder.add(cups.get("7"));
-        Collections.shuffle(cupOrder);
-
-        mushroomCup = cupOrder.get(0);
-        flowerCup = cupOrder.get(1);
-        starCup = cupOrder.get(2);
-        shellCup = cupOrder.get(3);
-        bananaCup = cupOrder.get(4);
-        leafCup = cupOrder.get(5);
-        lightningCup = cupOrder.get(6);
-        specialCup = cups.get("Special");
-
-        cups.clear();
-        cups.put("Mushroom",mushroomCup);
-        cups.put("Flower",flowerCup);
-        cups.put("Star",starCup);
-        cups.put("Shell",shellCup);
-        cups.put("Banana",bananaCup);
-        cups.put("Leaf",leafCup);
-        cups.put("Lightning",lightningCup);
-        cups.put("Special",specialCup);
-
-        return true;
-    }
-
-    /**
-     * Performs setup to create eight random cups, then repeatedly calls {@code randomiseCups()} until it successfully creates a valid set of eight random cups.
+    /**
+     * Uses the default engine to create a set of random cups from the given seed, and stores it for the functions below.
+     * @param seed The seed to create the cups from
+     * @param parallelism The number of searches to race
+     * @param seeded Whether the seed was given by the caller. A random seed will never be asked for again, so its set is not put in {@code getCache()}, where it would only push out sets that may be.
      */
-    public static void randomise() {
-        complete = false;
-        ArrayList<RouteInfo> allRoutes;
+    private static void randomise(long seed, int parallelism, boolean seeded) {
+        randomised = null;
+        RandomiserEngine engine;
         try {
-            allRoutes = GetRouteArrayList();
-        } catch (IOException _) {
+            engine = getDefaultEngine();
+        } catch (IOException e) {
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
             return;
         }
-        remainingUniqueTracks = new ArrayList<>();
-        remainingDuplicateTracks = new ArrayList<>();
-
-        remainingUniqueTracks.addAll(allRoutes);
-        remainingDuplicateTracks.addAll(allRoutes);
-
-        unusedTracks = new ArrayList<>();
-        usedOnceTracks = new ArrayList<>();
-
-        for (RouteInfo route : allRoutes) {
-            String destination = route.getDestination();
-            if (!unusedTracks.contains(destination)) {
-                unusedTracks.add(destination);
-            }
-        }
+        randomised = new Randomised(seed, seeded ? cache.get(engine, seed, parallelism) : engine.randomiseInParallel(seed, parallelism));
+    }
 
-        boolean validRandomisation = randomiseCups();;
-        while (!validRandomisation) {
-            usedOnceTracks.clear();
-            unusedTracks.clear();
-            cups.clear();
-
-            remainingUniqueTracks.clear();
-            remainingDuplicateTracks.clear();
-            remainingUniqueTracks.addAll(allRoutes);
-            remainingDuplicateTracks.addAll(allRoutes);
-
-            for (RouteInfo route : allRoutes) {
-                String destination = route.getDestination();
-                if (!unusedTracks.contains(destination)) {
-                    unusedTracks.add(destination);
-                }
-            }
-            validRandomisation = randomiseCups();
-        }
-        complete = true;
+    /**
+     * Returns the set of cups created by the last completed randomisation.
+     * @return The set of cups, or {@code null} if randomisation is not complete.
+     */
+    private static CupSet getCompletedCups() {
+        Randomised result = randomised;
+        return result == null ? null : result.cups();
     }
 
     /**
      * If randomisation is complete, prints the cups that were created. Otherwise, prints an error message.
      */
     public static void printRandomisedCups() {
-        if (complete) {
-            System.out.println("Mushroom Cup: " + mushroomCup.get(0) + ", " + mushroomCup.get(1) + ", " + mushroomCup.get(2) + ", " + mushroomCup.get(3));
-            System.out.println("Flower Cup: " + flowerCup.get(0) + ", " + flowerCup.get(1) + ", " + flowerCup.get(2) + ", " + flowerCup.get(3));
-            System.out.println("Star Cup: " + starCup.get(0) + ", " + starCup.get(1) + ", " + starCup.get(2) + ", " + starCup.get(3));
-            System.out.println("Shell Cup: " + shellCup.get(0) + ", " + shellCup.get(1) + ", " + shellCup.get(2) + ", " + shellCup.get(3));
-            System.out.println("Banana Cup: " + bananaCup.get(0) + ", " + bananaCup.get(1) + ", " + bananaCup.get(2) + ", " + bananaCup.get(3));
-            System.out.println("Leaf Cup: " + leafCup.get(0) + ", " + leafCup.get(1) + ", " + leafCup.get(2) + ", " + leafCup.get(3));
-            System.out.println("Lightning Cup: " + lightningCup.get(0) + ", " + lightningCup.get(1) + ", " + lightningCup.get(2) + ", " + lightningCup.get(3));
-            System.out.println("Special Cup: " + specialCup.get(0) + ", " + specialCup.get(1) + ", " + specialCup.get(2) + ", " + specialCup.get(3));
+        CupSet cups = getCompletedCups();
+        if (cups != null) {
+            System.out.print(cups);
         }
         else {
             System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
@@ -613,52 +218,12 @@ public class Randomiser {
     }
 
     /**
-     * If randomisation is complete, saves the cups that were created. Otherwise, prints an error message.<p>
-     * If a file already exists with the provided name, the name of the saved file will have {@code " (1)"} appended.
+     * If randomisation is complete, saves the cups that were created, one line per cup. Otherwise, prints an error message.<p>
+     * If a file already exists with the provided name, the name of the saved file will have {@code " (n)"} appended, where {@code n} is the next unused number.
      * @param pathname The path and name for the file that is saved. ".txt" will automatically be appended if not present.
      */
     public static void saveRandomisedCups(String pathname) {
-        if (!complete) {
-            System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-            return;
-        }
-        if (!pathname.endsWith(".txt")) {
-            pathname += ".txt";
-        }
-        File toSave = new File(pathname);
-        try {
-            while (!toSave.createNewFile()) {
-                toSave = new File(pathname.substring(0,pathname.length()-4)+" (1).txt");
-            }
-            if (!toSave.canWrite()) {
-                if (!toSave.setWritable(true)) {
-                    System.out.println("The file was created; however, this program does not have permission to write to it.");
-                    return;
-                }
-            }
-            FileWriter cupFileWriter = new FileWriter(toSave);
-            BufferedWriter cupBufferedWriter = new BufferedWriter(cupFileWriter);
-            cupBufferedWriter.write("Mushroom Cup: " + mushroomCup.get(0) + ", " + mushroomCup.get(1) + ", " + mushroomCup.get(2) + ", " + mushroomCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Flower Cup: " + flowerCup.get(0) + ", " + flowerCup.get(1) + ", " + flowerCup.get(2) + ", " + flowerCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Star Cup: " + starCup.get(0) + ", " + starCup.get(1) + ", " + starCup.get(2) + ", " + starCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Shell Cup: " + shellCup.get(0) + ", " + shellCup.get(1) + ", " + shellCup.get(2) + ", " + shellCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Banana Cup: " + bananaCup.get(0) + ", " + bananaCup.get(1) + ", " + bananaCup.get(2) + ", " + bananaCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Leaf Cup: " + leafCup.get(0) + ", " + leafCup.get(1) + ", " + leafCup.get(2) + ", " + leafCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Lightning Cup: " + lightningCup.get(0) + ", " + lightningCup.get(1) + ", " + lightningCup.get(2) + ", " + lightningCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write("Special Cup: " + specialCup.get(0) + ", " + specialCup.get(1) + ", " + specialCup.get(2) + ", " + specialCup.get(3));
-            cupBufferedWriter.close();
-            cupFileWriter.close();
-        } catch (IOException e) {
-            System.out.println("An IO exception has occurred.");
-            System.out.println("The accompanying message is as follows: "+e.getMessage());
-        }
+        saveRandomisedCups(pathname, CupWriter.Format.TEXT);
     }
 
     /**
@@ -670,49 +235,32 @@ public class Randomiser {
     }
 
     /**
-     * If randomisation is complete, saves the cups that were created. Otherwise, prints an error message.<p>
-     * If a file already exists with the provided name, the name of the saved file will have {@code " (1)"} appended.
-     * @param pathname The path and name for the file that is saved. ".txt" will automatically be appended if not present.
+     * If randomisation is complete, saves the cups that were created, one row per cup with just its track names. Otherwise, prints an error message.<p>
+     * If a file already exists with the provided name, the name of the saved file will have {@code " (n)"} appended, where {@code n} is the next unused number.
+     * @param pathname The path and name for the file that is saved. ".csv" will automatically be appended if not present.
      */
     public static void saveRandomisedCupsAsCSV(String pathname) {
-        if (!complete) {
+        saveRandomisedCups(pathname, CupWriter.Format.CUP_ROWS);
+    }
+
+    /**
+     * If randomisation is complete, saves the cups that were created in the given format. Otherwise, prints an error message.
+     * @param pathname The path and name for the file that is saved. The format's extension will automatically be appended if not present.
+     * @param format The format to save the cups in
+     */
+    private static void saveRandomisedCups(String pathname, CupWriter.Format format) {
+        Randomised result = randomised;
+        if (result == null) {
             System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
             return;
         }
-        if (!pathname.endsWith(".csv")) {
-            pathname += ".csv";
+        if (!pathname.endsWith("." + format.getExtension())) {
+            pathname += "." + format.getExtension();
         }
-        File toSave = new File(pathname);
-        try {
-            while (!toSave.createNewFile()) {
-                toSave = new File(pathname.substring(0,pathname.length()-4)+" (1).csv");
-            }
-            if (!toSave.canWrite()) {
-                if (!toSave.setWritable(true)) {
-                    System.out.println("The file was created; however, this program does not have permission to write to it.");
-                    return;
-                }
-            }
-            FileWriter cupFileWriter = new FileWriter(toSave);
-            BufferedWriter cupBufferedWriter = new BufferedWriter(cupFileWriter);
-            cupBufferedWriter.write(mushroomCup.get(0) + "," + mushroomCup.get(1) + "," + mushroomCup.get(2) + "," + mushroomCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(flowerCup.get(0) + "," + flowerCup.get(1) + "," + flowerCup.get(2) + "," + flowerCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(starCup.get(0) + "," + starCup.get(1) + "," + starCup.get(2) + "," + starCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(shellCup.get(0) + "," + shellCup.get(1) + "," + shellCup.get(2) + "," + shellCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(bananaCup.get(0) + "," + bananaCup.get(1) + "," + bananaCup.get(2) + "," + bananaCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(leafCup.get(0) + "," + leafCup.get(1) + "," + leafCup.get(2) + "," + leafCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(lightningCup.get(0) + "," + lightningCup.get(1) + "," + lightningCup.get(2) + "," + lightningCup.get(3));
-            cupBufferedWriter.newLine();
-            cupBufferedWriter.write(specialCup.get(0) + "," + specialCup.get(1) + "," + specialCup.get(2) + "," + specialCup.get(3));
-            cupBufferedWriter.close();
-            cupFileWriter.close();
-        } catch (IOException e) {
+        try (CupWriter writer = CupWriter.create(Path.of(pathname), format)) {
+            writer.write(result.seed(), result.cups());
+            writer.commit();
+        } catch (IOException | InvalidPathException e) {
             System.out.println("An IO exception has occurred.");
             System.out.println("The accompanying message is as follows: "+e.getMessage());
         }
@@ -723,11 +271,7 @@ public class Randomiser {
      * @return The Mushroom Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getMushroomCup() {
-        if (complete) {
-            return mushroomCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(0);
     }
 
     /**
@@ -735,11 +279,7 @@ public class Randomiser {
      * @return The Flower Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getFlowerCup() {
-        if (complete) {
-            return flowerCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(1);
     }
 
     /**
@@ -747,11 +287,7 @@ public class Randomiser {
      * @return The Star Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getStarCup() {
-        if (complete) {
-            return starCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(2);
     }
 
     /**
@@ -759,11 +295,7 @@ public class Randomiser {
      * @return The Shell Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getShellCup() {
-        if (complete) {
-            return shellCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(3);
     }
 
     /**
@@ -771,11 +303,7 @@ public class Randomiser {
      * @return The Banana Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getBananaCup() {
-        if (complete) {
-            return bananaCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(4);
     }
 
     /**
@@ -783,11 +311,7 @@ public class Randomiser {
      * @return The Leaf Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getLeafCup() {
-        if (complete) {
-            return leafCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(5);
     }
 
     /**
@@ -795,11 +319,7 @@ public class Randomiser {
      * @return The Lightning Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getLightningCup() {
-        if (complete) {
-            return lightningCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(6);
     }
 
     /**
@@ -807,11 +327,7 @@ public class Randomiser {
      * @return The Special Cup HashMap if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<Integer, String> getSpecialCup() {
-        if (complete) {
-            return specialCup;
-        }
-        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
-        return new HashMap<>();
+        return getCupHashMap(7);
     }
 
     /**
@@ -819,8 +335,39 @@ public class Randomiser {
      * @return The HashMap containing every cup if randomisation is complete, or an empty HashMap otherwise.
      */
     public static HashMap<String, HashMap<Integer, String>> getAllCups() {
-        if (complete) {
-            return cups;
+        CupSet cups = getCompletedCups();
+        if (cups != null) {
+            HashMap<String, HashMap<Integer, String>> allCups = new HashMap<>();
+            for (int cup = 0; cup < cups.getCupCount(); cup++) {
+                allCups.put(cups.getCupName(cup), new HashMap<>(cups.getCup(cup)));
+            }
+            return allCups;
+        }
+        System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
+        return new HashMap<>();
+    }
+
+    /**
+     * If randomisation is complete, returns the immutable set of cups that was created. Otherwise, prints an error message and returns {@code null}.
+     * @return The set of cups if randomisation is complete, or {@code null} otherwise.
+     */
+    public static CupSet getRandomisedCups() {
+        CupSet cups = getCompletedCups();
+        if (cups == null) {
+            System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
+        }
+        return cups;
+    }
+
+    /**
+     * If randomisation is complete, returns a copy of the specified cup. Otherwise, prints an error message and returns an empty HashMap.
+     * @param cup The index of the cup
+     * @return The cup HashMap if randomisation is complete, or an empty HashMap otherwise.
+     */
+    private static HashMap<Integer, String> getCupHashMap(int cup) {
+        CupSet cups = getCompletedCups();
+        if (cups != null) {
+            return new HashMap<>(cups.getCup(cup));
         }
         System.out.println("Randomisation is not complete - either it has not begun or it is still in-progress.");
         return new HashMap<>();
@@ -831,12 +378,245 @@ public class Randomiser {
      * @return {@code true} if randomisation is complete.
      */
     public static boolean isComplete() {
-        return complete;
+        return randomised != null;
     }
 
+    /**
+     * With no arguments, creates a set of eight random cups, prints them and saves them as Random Cups.csv.<p>
+     * Otherwise, generates a batch of sets into a single file. The arguments are as follows, and all of them are optional:
+     * <ul>
+     * <li>{@code --count N}: the number of sets to generate (default 1000)</li>
+     * <li>{@code --seed S}: the seed for the batch (default random)</li>
+     * <li>{@code --threads T}: the number of worker threads (default the number of available processors)</li>
+     * <li>{@code --format csv|jsonl|txt}: the format to write (default csv)</li>
+     * <li>{@code --output PATH}: the file to write to (default Random Cups Batch.csv, .jsonl or .txt), or {@code -} for standard output. If the file exists, {@code " (n)"} is added to the name of the new one.</li>
+     * <li>{@code --unique}: never write the same set twice, counting two sets that differ only in the order of their regular cups as the same, and print how many duplicates were skipped once the batch is finished</li>
+     * <li>{@code --metrics}: print the metrics recorded while generating the batch once it is finished</li>
+     * <li>{@code --analyse}: instead of writing the sets, count which tracks, routes and layouts appear in them and write a report as described in {@code DistributionAnalyser} (default output Random Cups Distribution.csv)</li>
+     * <li>{@code --serve PORT}: instead of generating a batch, start a {@code CupServer} on the loopback address that creates sets of cups on demand, until the process is stopped. routes.csv is watched while the server runs, and valid changes to it are picked up without a restart.</li>
+     * <li>{@code --cache PATH}: with {@code --serve}, load the server's cache of sets from this file if it exists, and save it there when the process is stopped</li>
+     * <li>{@code --pool N}: with {@code --serve}, the number of sets created ahead of time for requests without a seed (default {@code POOL_CAPACITY}), or 0 for none</li>
+     * <li>{@code --uniform}: draw every set with a {@code UniformSampler}, so that every valid set is close to equally likely, at the cost of from a fraction of a second to a minute or more of processor time per set</li>
+     * <li>{@code --cups N}: the number of cups in each set, the last of which is the Special Cup (default 8). Cups after the Lightning Cup are named by their number.</li>
+     * <li>{@code --cup-length N}: the number of tracks in each cup (default 4)</li>
+     * <li>{@code --repeat-layouts}: allow a track to appear again with a layout it has already been raced with, which larger sets of cups may need</li>
+     * <li>{@code --pin CUP:POSITION:TRACK}: always put a track in a slot, e.g. {@code --pin Mushroom:1:Mario Circuit}, where positions count from 1. May be given more than once.</li>
+     * <li>{@code --ban ORIGIN>DESTINATION}: never use the route from one track to another, e.g. {@code --ban "Mario Circuit>Mario Circuit"} to stop Mario Circuit from opening a cup. May be given more than once.</li>
+     * <li>{@code --max-appearances N} or {@code --max-appearances TRACK:N}: limit how many times every track, or one track, may appear in a set. May be given more than once.</li>
+     * </ul>
+     * @param args The arguments, as described above
+     */
     public static void main(String[] args) {
-        randomise();
-        printRandomisedCups();
-        saveRandomisedCupsAsCSV("Random Cups.csv");
+        if (args.length == 0) {
+            randomise();
+            printRandomisedCups();
+            saveRandomisedCupsAsCSV("Random Cups.csv");
+            return;
+        }
+
+        long count = 1000;
+        long seed = ThreadLocalRandom.current().nextLong();
+        int threads = Runtime.getRuntime().availableProcessors();
+        CupWriter.Format format = CupWriter.Format.CSV;
+        String output = null;
+        boolean printMetrics = false;
+        boolean uniform = false;
+        boolean analyse = false;
+        boolean unique = false;
+        int port = -1;
+        Path cachePath = null;
+        int poolCapacity = POOL_CAPACITY;
+        int cupCount = CupRules.DEFAULT_CUP_COUNT;
+        int cupLength = CupRules.DEFAULT_CUP_LENGTH;
+        ArrayList<Consumer<CupRules.Builder>> ruleOptions = new ArrayList<>();
+        CupRules rules;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--metrics")) {
+                    printMetrics = true;
+                    continue;
+                }
+                if (args[i].equals("--uniform")) {
+                    uniform = true;
+                    continue;
+                }
+                if (args[i].equals("--analyse")) {
+                    analyse = true;
+                    continue;
+                }
+                if (args[i].equals("--unique")) {
+                    unique = true;
+                    continue;
+                }
+                if (args[i].equals("--repeat-layouts")) {
+                    ruleOptions.add(builder -> builder.allowRepeatedLayouts(true));
+                    continue;
+                }
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                switch (args[i]) {
+                    case "--count" -> count = Long.parseLong(value);
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--threads" -> threads = Integer.parseInt(value);
+                    case "--format" -> format = CupWriter.Format.fromName(value);
+                    case "--output" -> output = value;
+                    case "--serve" -> port = Integer.parseInt(value);
+                    case "--cache" -> cachePath = value == null ? null : Path.of(value);
+                    case "--pool" -> poolCapacity = Integer.parseInt(value);
+                    case "--cups" -> cupCount = Integer.parseInt(value);
+                    case "--cup-length" -> cupLength = Integer.parseInt(value);
+                    case "--pin" -> ruleOptions.add(builder -> addPin(builder, value));
+                    case "--ban" -> ruleOptions.add(builder -> addBan(builder, value));
+                    case "--max-appearances" -> ruleOptions.add(builder -> addMaxAppearances(builder, value));
+                    default -> {
+                        System.out.println("Unknown argument: " + args[i]);
+                        return;
+                    }
+                }
+                if (value == null || format == null) {
+                    System.out.println("Missing or invalid value for " + args[i] + ".");
+                    return;
+                }
+                i++;
+            }
+            // The rules are only built once every argument has been read, as pins depend on the number of cups and their length.
+            CupRules.Builder builder = CupRules.standard(cupCount, cupLength).toBuilder();
+            for (Consumer<CupRules.Builder> option : ruleOptions) {
+                option.accept(builder);
+            }
+            rules = builder.build();
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        if (output == null) {
+            output = analyse ? "Random Cups Distribution.csv" : "Random Cups Batch." + format.getExtension();
+        }
+
+        try {
+            // The default engine is not used, as it watches routes.csv for the rest of the process, which a batch does not need and a server does itself.
+            RandomiserEngine engine = new RandomiserEngine(GetRouteGraph(), metrics, uniform ? RandomiserEngine.Sampling.UNIFORM : RandomiserEngine.Sampling.SEARCH, rules);
+            if (port >= 0) {
+                CupCache serverCache = new CupCache(CACHE_CAPACITY);
+                if (cachePath != null) {
+                    Path savePath = cachePath;
+                    int loaded = serverCache.load(savePath, engine.getRouteGraph());
+                    System.out.println("Loaded " + loaded + " cached sets of cups from " + savePath + ".");
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            serverCache.save(savePath);
+                        } catch (IOException e) {
+                            System.out.println("The cache could not be saved to " + savePath + ": " + e.getMessage());
+                        }
+                    }));
+                }
+                RouteWatcher watcher = new RouteWatcher(ROUTES_PATH, engine);
+                CupPool pool = poolCapacity > 0 ? new CupPool(watcher::getEngine, poolCapacity, 1) : null;
+                CupServer server = new CupServer(watcher::getEngine, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), serverCache, pool);
+                server.start();
+                System.out.println("Serving sets of cups at http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/cups");
+                return;
+            }
+            if (analyse && output.equals("-")) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                writeAnalysis(engine, count, seed, threads, writer);
+            } else if (analyse) {
+                try (Writer writer = Files.newBufferedWriter(Path.of(output), StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    writeAnalysis(engine, count, seed, threads, writer);
+                }
+                System.out.println("Analysed " + count + " sets of cups from seed " + seed + " into " + output + ".");
+            } else {
+                DuplicateFilter duplicates = unique ? new DuplicateFilter(engine.getRouteGraph()) : null;
+                if (output.equals("-")) {
+                    CupWriter writer = new CupWriter(System.out, format);
+                    new BatchGenerator(engine).generate(count, seed, threads, writer, duplicates);
+                    writer.commit();
+                } else {
+                    try (CupWriter writer = CupWriter.create(Path.of(output), format)) {
+                        new BatchGenerator(engine).generate(count, seed, threads, writer, duplicates);
+                        writer.commit();
+                        System.out.println("Generated " + count + " sets of cups from seed " + seed + " into " + writer.getPath() + ".");
+                    }
+                }
+                if (duplicates != null) {
+                    (output.equals("-") ? System.err : System.out).print(duplicates);
+                }
+            }
+            if (printMetrics) {
+                (output.equals("-") ? System.err : System.out).print(getMetrics());
+            }
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("A file already exists at " + output + ". Please choose a different --output.");
+        } catch (IOException e) {
+            System.out.println("An IO exception has occurred.");
+            System.out.println("The accompanying message is as follows: "+e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a pin given on the command line as {@code CUP:POSITION:TRACK} to the rules, where the cup is named as by {@code CupSet.getCupName(int, int)} and positions count from 1.
+     * @throws IllegalArgumentException If the pin is malformed, or names a cup or position that does not exist.
+     */
+    private static void addPin(CupRules.Builder rules, String pin) {
+        String[] parts = pin.split(":", 3);
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("A pin must be given as CUP:POSITION:TRACK, not " + pin + ".");
+        }
+        String cupName = parts[0].strip().replaceFirst("(?i)\\s+cup$", "");
+        for (int cup = 0; cup < rules.getCupCount(); cup++) {
+            if (CupSet.getCupName(cup, rules.getCupCount()).equalsIgnoreCase(cupName)) {
+                int position = Integer.parseInt(parts[1].strip());
+                if (position < 1 || position > rules.getCupLength()) {
+                    throw new IllegalArgumentException("A cup has positions from 1 to " + rules.getCupLength() + ", not " + position + ".");
+                }
+                rules.pin(cup, position - 1, parts[2].strip());
+                return;
+            }
+        }
+        throw new IllegalArgumentException("There is no cup called " + parts[0] + ".");
+    }
+
+    /**
+     * Adds a ban given on the command line as {@code ORIGIN>DESTINATION} to the rules.
+     * @throws IllegalArgumentException If the ban is malformed.
+     */
+    private static void addBan(CupRules.Builder rules, String ban) {
+        int separator = ban.indexOf('>');
+        if (separator < 0) {
+            throw new IllegalArgumentException("A banned route must be given as ORIGIN>DESTINATION, not " + ban + ".");
+        }
+        rules.banRoute(ban.substring(0, separator).strip(), ban.substring(separator + 1).strip());
+    }
+
+    /**
+     * Adds a limit given on the command line as {@code N} or {@code TRACK:N} to the rules.
+     * @throws IllegalArgumentException If the limit is not a number, or is out of range.
+     */
+    private static void addMaxAppearances(CupRules.Builder rules, String limit) {
+        int separator = limit.lastIndexOf(':');
+        if (separator < 0) {
+            rules.maxAppearances(Integer.parseInt(limit.strip()));
+        } else {
+            rules.maxAppearances(limit.substring(0, separator).strip(), Integer.parseInt(limit.substring(separator + 1).strip()));
+        }
+    }
+
+    /**
+     * Generates a batch of sets of cups, and writes a {@code DistributionAnalyser} report on what appeared in them.
+     * @throws IOException If the output cannot be written to, or a set of cups could not be created.
+     */
+    private static void writeAnalysis(RandomiserEngine engine, long count, long seed, int threads, Writer writer) throws IOException {
+        try {
+            new DistributionAnalyser(engine).analyse(count, seed, threads).writeCSV(writer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Analysis was interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("A set of cups could not be created.", e.getCause());
+        }
     }
-}
\ No newline at end of file
+}
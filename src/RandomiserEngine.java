@@ -0,0 +1,278 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A reusable, thread-safe randomiser built from an immutable route graph.
+ * <p>
+ * The engine itself holds no mutable state. Each call to {@code randomise()} creates its own {@code CupSolver} and returns an immutable {@code CupSet}, so any number of threads can share one engine without locking.
+ * Every solver shares the engine's {@code ChainTable}, which is built once when the engine is created.
+ * <p>
+ * Every set of cups is created from a seed, and the same seed always gives the same set of cups from the same route graph, no matter how many searches are raced to find it.
+ * <p>
+ * Every attempt and every call to {@code randomise()} is recorded in a {@code SolverMetrics}, which can be read with {@code getMetrics()}.
+ * <p>
+ * Every set of cups follows the engine's {@code CupRules}, which are compiled against the route graph once when the engine is created, and which also set how many cups there are and how many tracks are in each. By default, these are {@code CupRules.STANDARD}.
+ * <p>
+ * By default, cups are created by a {@code CupSolver}, which is fast but favours some sets of cups over others. An engine created with {@code Sampling.UNIFORM} creates them with a {@code UniformSampler} instead, which makes every set as close to equally likely as it can measure, but takes far longer.
+ */
+public class RandomiserEngine {
+    /**
+     * How an engine chooses its sets of cups.
+     */
+    public enum Sampling {
+        /**
+         * Searches for a set of cups with a {@code CupSolver}, which takes microseconds but does not make every set equally likely.
+         */
+        SEARCH,
+        /**
+         * Draws a set of cups with a {@code UniformSampler}, which makes every set close to equally likely but takes from a fraction of a second to a minute or more of processor time per set.
+         */
+        UNIFORM
+    }
+
+    /**
+     * The number of search attempts a new engine is given to find a set of cups before it is rejected. With the standard rules, almost every attempt succeeds.
+     */
+    private static final int SOLVABLE_ATTEMPTS = 1_000;
+
+    private final RouteGraph routeGraph;
+    private final ChainTable chainTable;
+    private final CupRules.Compiled rules;
+    private final SolverMetrics metrics;
+    private final UniformSampler uniformSampler;
+
+    /**
+     * Creates a new engine for the given route graph, with its own metrics.
+     * @param routeGraph The route graph to build cups from
+     * @throws IllegalArgumentException If Rainbow Road or Peach Stadium are missing from the route graph, as the Special Cup cannot be created without them, or if a chain table cannot be created for it.
+     */
+    public RandomiserEngine(RouteGraph routeGraph) {
+        this(routeGraph, new SolverMetrics());
+    }
+
+    /**
+     * Creates a new engine for the given route graph that records into the given metrics, which may be shared with other engines.
+     * @param routeGraph The route graph to build cups from
+     * @param metrics The metrics to record attempts and latencies in
+     * @throws IllegalArgumentException If Rainbow Road or Peach Stadium are missing from the route graph, as the Special Cup cannot be created without them, or if a chain table cannot be created for it.
+     */
+    public RandomiserEngine(RouteGraph routeGraph, SolverMetrics metrics) {
+        this(routeGraph, metrics, Sampling.SEARCH);
+    }
+
+    /**
+     * Creates a new engine for the given route graph that chooses its sets of cups in the given way, and records into the given metrics.
+     * @param routeGraph The route graph to build cups from
+     * @param metrics The metrics to record attempts and latencies in
+     * @param sampling How to choose sets of cups. An engine using {@code Sampling.UNIFORM} takes around a second to create.
+     * @throws IllegalArgumentException If Rainbow Road or Peach Stadium are missing from the route graph, as the Special Cup cannot be created without them, if a chain table or uniform sampler cannot be created for it, or if it allows no set of cups.
+     */
+    public RandomiserEngine(RouteGraph routeGraph, SolverMetrics metrics, Sampling sampling) {
+        this(routeGraph, metrics, sampling, CupRules.STANDARD);
+    }
+
+    /**
+     * Creates a new engine for the given route graph that chooses its sets of cups in the given way under the given rules, and records into the given metrics.
+     * The rules are compiled once here, and a few search attempts are made to check that some set of cups follows them, so that {@code randomise()} never searches forever.
+     * @param routeGraph The route graph to build cups from
+     * @param metrics The metrics to record attempts and latencies in
+     * @param sampling How to choose sets of cups. An engine using {@code Sampling.UNIFORM} takes around a second to create, and only supports {@code CupRules.STANDARD}.
+     * @param rules The rules every set of cups must follow
+     * @throws IllegalArgumentException If the rules cannot be compiled for the route graph, if a chain table or uniform sampler cannot be created for it, or if no set of cups following the rules can be found.
+     */
+    public RandomiserEngine(RouteGraph routeGraph, SolverMetrics metrics, Sampling sampling, CupRules rules) {
+        if (sampling == Sampling.UNIFORM && !rules.equals(CupRules.STANDARD)) {
+            throw new IllegalArgumentException("Uniform sampling only supports the standard rules.");
+        }
+        this.routeGraph = routeGraph;
+        this.rules = rules.compile(routeGraph);
+        this.chainTable = new ChainTable(routeGraph, rules.getCupLength());
+        this.metrics = metrics;
+        if (!findsCupSet(SOLVABLE_ATTEMPTS)) {
+            throw new IllegalArgumentException("No set of cups could be found in " + SOLVABLE_ATTEMPTS + " attempts with these routes and rules. Please check that every track can still be reached.");
+        }
+        this.uniformSampler = sampling == Sampling.UNIFORM ? new UniformSampler(routeGraph) : null;
+    }
+
+    /**
+     * Returns the route graph that this engine builds cups from.
+     * @return The route graph.
+     */
+    public RouteGraph getRouteGraph() {
+        return routeGraph;
+    }
+
+    /**
+     * Returns the rules that every set of cups from this engine follows.
+     * @return The rules.
+     */
+    public CupRules getRules() {
+        return rules.getRules();
+    }
+
+    /**
+     * Returns the metrics that this engine records into.
+     * @return The metrics.
+     */
+    public SolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns how this engine chooses its sets of cups.
+     * @return The sampling mode.
+     */
+    public Sampling getSampling() {
+        return uniformSampler == null ? Sampling.SEARCH : Sampling.UNIFORM;
+    }
+
+    /**
+     * Checks that a set of cups following this engine's rules can be found in its route graph, by making up to the given number of search attempts.
+     * A route graph can be well formed and still allow no set of cups at all, and {@code randomise()} would then search forever, so every engine is checked with this when it is created.
+     * @param maxAttempts The number of attempts to make before giving up
+     * @return {@code true} if an attempt found a set of cups.
+     */
+    public boolean isSolvable(int maxAttempts) {
+        return findsCupSet(maxAttempts);
+    }
+
+    /**
+     * Makes up to the given number of search attempts for a set of cups, as described in {@code isSolvable(int)}.
+     * This is private so that the constructor can call it without a subclass seeing a partly created engine.
+     * @param maxAttempts The number of attempts to make before giving up
+     * @return {@code true} if an attempt found a set of cups.
+     */
+    private boolean findsCupSet(int maxAttempts) {
+        CupSolver solver = new CupSolver(chainTable, rules);
+        SplittableRandom seedRandom = new SplittableRandom(0);
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            if (solver.attempt(seedRandom.split(), () -> false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a set of random cups from a random seed.
+     * @return The cups that were created.
+     */
+    public CupSet randomise() {
+        return randomise(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Creates a set of random cups from the given seed.
+     * @param seed The seed to create the cups from
+     * @return The cups that were created, which are always the same for the same seed.
+     */
+    public CupSet randomise(long seed) {
+        return randomiseInParallel(seed, 1);
+    }
+
+    /**
+     * Creates a set of random cups from a random seed by racing several searches against each other.
+     * @param parallelism The number of searches to race
+     * @return The cups that were created.
+     */
+    public CupSet randomiseInParallel(int parallelism) {
+        return randomiseInParallel(ThreadLocalRandom.current().nextLong(), parallelism);
+    }
+
+    /**
+     * Creates a set of random cups from the given seed by racing several searches against each other.
+     * <p>
+     * Attempt {@code n} always draws from the {@code n}th stream split from the seed, and the lowest-numbered attempt that succeeds wins, so the result does not depend on the parallelism or on thread timing.
+     * Once an attempt succeeds, every search working on a higher-numbered attempt abandons it within a few search nodes.
+     * <p>
+     * The calling thread runs one of the searches, and the rest are run in the common {@code ForkJoinPool}.
+     * With {@code Sampling.UNIFORM}, proposals are raced in the same way instead of searches.
+     * @param seed The seed to create the cups from
+     * @param parallelism The number of searches to race. A value of 1 or less runs a single search on the calling thread.
+     * @return The cups that were created, which are always the same for the same seed.
+     */
+    public CupSet randomiseInParallel(long seed, int parallelism) {
+        if (uniformSampler != null) {
+            long startTime = System.nanoTime();
+            CupSet cups = uniformSampler.sampleInParallel(seed, parallelism);
+            metrics.recordLatency(SolverMetrics.Phase.RANDOMISE, System.nanoTime() - startTime);
+            return cups;
+        }
+        RandomiserEvents.Randomise event = RandomiserEvents.isAvailable() ? new RandomiserEvents.Randomise() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long startTime = System.nanoTime();
+        Race race = new Race(seed);
+        ForkJoinTask<?>[] searches = new ForkJoinTask<?>[Math.max(parallelism - 1, 0)];
+        for (int i = 0; i < searches.length; i++) {
+            searches[i] = ForkJoinPool.commonPool().submit(() -> race(race));
+        }
+        race(race);
+        for (ForkJoinTask<?> search : searches) {
+            search.join();
+        }
+        metrics.recordLatency(SolverMetrics.Phase.RANDOMISE, System.nanoTime() - startTime);
+        if (event != null && event.shouldCommit()) {
+            event.seed = seed;
+            event.parallelism = Math.max(parallelism, 1);
+            event.attempts = race.winningAttempt + 1;
+            event.commit();
+        }
+        return race.winner;
+    }
+
+    /**
+     * Runs attempts from a race until an attempt that has yet to be beaten succeeds, or every remaining attempt has been beaten.
+     * @param race The race to take attempts from
+     */
+    private void race(Race race) {
+        CupSolver solver = new CupSolver(chainTable, rules);
+        solver.setMetrics(metrics);
+        while (true) {
+            long attempt;
+            SplittableRandom random;
+            synchronized (race) {
+                if (race.nextAttempt > race.winningAttempt) {
+                    return;
+                }
+                attempt = race.nextAttempt++;
+                random = race.seedRandom.split();
+            }
+            if (solver.attempt(random, () -> race.isBeaten(attempt))) {
+                long startTime = System.nanoTime();
+                CupSet cups = solver.getCupSet();
+                metrics.recordLatency(SolverMetrics.Phase.CUP_SET, System.nanoTime() - startTime);
+                race.offer(attempt, cups);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The shared state of the searches racing to create one set of cups.
+     */
+    private static final class Race {
+        private final SplittableRandom seedRandom;
+        private long nextAttempt;
+        private volatile long winningAttempt = Long.MAX_VALUE;
+        private CupSet winner;
+
+        private Race(long seed) {
+            seedRandom = new SplittableRandom(seed);
+        }
+
+        private boolean isBeaten(long attempt) {
+            return winningAttempt < attempt;
+        }
+
+        private synchronized void offer(long attempt, CupSet cups) {
+            if (attempt < winningAttempt) {
+                winningAttempt = attempt;
+                winner = cups;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events emitted by the randomiser. They cost almost nothing unless a recording is running, and can be recorded by starting Java with {@code -XX:StartFlightRecording}.
+ * <p>
+ * Loading an event class starts part of Flight Recorder, which takes long enough to noticeably slow down a short run of the program. Events should therefore only be created once {@code isAvailable()} returns {@code true}.
+ */
+public final class RandomiserEvents {
+    private RandomiserEvents() {
+    }
+
+    /**
+     * Checks whether Flight Recorder has been started, so that events can be created without slowing down the program.
+     * @return {@code true} if events can be recorded.
+     */
+    static boolean isAvailable() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * A single attempt by a {@code CupSolver} to fill every cup.
+     */
+    @Name("randomiser.Attempt")
+    @Label("Cup Solver Attempt")
+    @Category("Randomiser")
+    @Description("A single attempt at filling every cup")
+    static final class Attempt extends Event {
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Cup")
+        @Description("The cup being filled when the attempt ended, counted in the order the cups are filled")
+        int cup;
+
+        @Label("Search Nodes")
+        long nodes;
+
+        @Label("Failures")
+        @Description("The number of times the attempt backed out of a cup")
+        long failures;
+    }
+
+    /**
+     * A single call to {@code RandomiserEngine.randomise()}.
+     */
+    @Name("randomiser.Randomise")
+    @Label("Randomise")
+    @Category("Randomiser")
+    @Description("The creation of a set of cups from a seed")
+    static final class Randomise extends Event {
+        @Label("Seed")
+        long seed;
+
+        @Label("Parallelism")
+        int parallelism;
+
+        @Label("Attempts")
+        @Description("The number of the attempt that succeeded, counting from 1")
+        long attempts;
+    }
+
+    /**
+     * The loading of a route graph from a routes file.
+     */
+    @Name("randomiser.LoadRoutes")
+    @Label("Load Routes")
+    @Category("Randomiser")
+    @Description("Reading a routes file and building a route graph from it")
+    static final class LoadRoutes extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Routes")
+        int routes;
+    }
+}
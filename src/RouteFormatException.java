@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+/**
+ * Thrown when a routes file cannot be parsed, such as when a row is missing a column or a quoted field is never closed.
+ */
+public class RouteFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int lineNumber;
+
+    /**
+     * Creates a new exception for a problem on the given line.
+     * @param lineNumber The line the problem was found on, counting from 1
+     * @param message A description of the problem
+     */
+    public RouteFormatException(int lineNumber, String message) {
+        super("Line " + lineNumber + ": " + message);
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Returns the line the problem was found on. For a row that spans several lines because of a quoted line break, this is the line the row starts on.
+     * @return The line number, counting from 1.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+}
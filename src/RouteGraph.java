@@ -0,0 +1,359 @@
+import java.util.*;
+
+/**
+ * An immutable graph of every route. Track names are interned to dense integer IDs, and each route is given a dense integer ID, so that the randomiser can work on ints and bitsets instead of comparing Strings.
+ * <p>
+ * Layouts (the primary numbers of the route numbers) are also interned to dense IDs, so that the layouts used by a track can be held in a single int bitmask.
+ */
+public final class RouteGraph {
+    /**
+     * Returned in place of a track ID or route ID when no such track or route exists.
+     */
+    public static final int NONE = -1;
+    /**
+     * The most tracks a route graph can be randomised with, as the randomiser keeps each set of tracks in a single long. {@code RouteLoader} rejects a routes file with more.
+     */
+    public static final int MAX_TRACKS = Long.SIZE;
+
+    private final String[] trackNames;
+    private final HashMap<String, Integer> trackIds;
+
+    private final int[] routeOrigins;
+    private final int[] routeDestinations;
+    private final int[] routeLayouts;
+    private final String[] routeNumbers;
+    private final int layoutCount;
+
+    private final int[][] outgoingRoutes;
+    private final int[][] incomingRoutes;
+    private final int[] routeLookup;
+    private final int[] incomingLayoutStarts;
+    private final int[] incomingLayoutRoutes;
+    private final long fingerprint;
+
+    private RouteGraph(String[] trackNames, HashMap<String, Integer> trackIds, int[] routeOrigins, int[] routeDestinations, int[] routeLayouts, String[] routeNumbers, int layoutCount) {
+        this.trackNames = trackNames;
+        this.trackIds = trackIds;
+        this.routeOrigins = routeOrigins;
+        this.routeDestinations = routeDestinations;
+        this.routeLayouts = routeLayouts;
+        this.routeNumbers = routeNumbers;
+        this.layoutCount = layoutCount;
+
+        int trackCount = trackNames.length;
+        int[] outgoingCounts = new int[trackCount];
+        int[] incomingCounts = new int[trackCount];
+        for (int route = 0; route < routeOrigins.length; route++) {
+            outgoingCounts[routeOrigins[route]]++;
+            incomingCounts[routeDestinations[route]]++;
+        }
+        outgoingRoutes = new int[trackCount][];
+        incomingRoutes = new int[trackCount][];
+        for (int track = 0; track < trackCount; track++) {
+            outgoingRoutes[track] = new int[outgoingCounts[track]];
+            incomingRoutes[track] = new int[incomingCounts[track]];
+            outgoingCounts[track] = 0;
+            incomingCounts[track] = 0;
+        }
+        routeLookup = new int[trackCount * trackCount];
+        Arrays.fill(routeLookup, NONE);
+        for (int route = 0; route < routeOrigins.length; route++) {
+            int origin = routeOrigins[route];
+            int destination = routeDestinations[route];
+            outgoingRoutes[origin][outgoingCounts[origin]++] = route;
+            incomingRoutes[destination][incomingCounts[destination]++] = route;
+            routeLookup[origin * trackCount + destination] = route;
+        }
+
+        incomingLayoutStarts = new int[trackCount * layoutCount + 1];
+        for (int route = 0; route < routeOrigins.length; route++) {
+            incomingLayoutStarts[routeDestinations[route] * layoutCount + routeLayouts[route] + 1]++;
+        }
+        for (int key = 0; key < trackCount * layoutCount; key++) {
+            incomingLayoutStarts[key + 1] += incomingLayoutStarts[key];
+        }
+        incomingLayoutRoutes = new int[routeOrigins.length];
+        int[] nextIndex = Arrays.copyOf(incomingLayoutStarts, trackCount * layoutCount);
+        for (int route = 0; route < routeOrigins.length; route++) {
+            incomingLayoutRoutes[nextIndex[routeDestinations[route] * layoutCount + routeLayouts[route]]++] = route;
+        }
+        fingerprint = computeFingerprint();
+    }
+
+    /**
+     * Hashes every track name and every route with 64-bit FNV-1a, in ID order.
+     * @return The fingerprint.
+     */
+    private long computeFingerprint() {
+        long hash = 0xCBF29CE484222325L;
+        for (String trackName : trackNames) {
+            hash = fingerprint(hash, trackName);
+        }
+        for (int route = 0; route < routeOrigins.length; route++) {
+            hash = fingerprint(hash, routeOrigins[route]);
+            hash = fingerprint(hash, routeDestinations[route]);
+            hash = fingerprint(hash, routeLayouts[route]);
+            hash = fingerprint(hash, routeNumbers[route]);
+        }
+        return hash;
+    }
+
+    private static long fingerprint(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = fingerprint(hash, value.charAt(i));
+        }
+        return fingerprint(hash, -1);
+    }
+
+    private static long fingerprint(long hash, int value) {
+        for (int shift = 0; shift < Integer.SIZE; shift += Byte.SIZE) {
+            hash = (hash ^ ((value >>> shift) & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Builds a route graph from a list of routes. If the same origin and destination appear more than once, only the first route is kept.
+     * @param routes The routes to build the graph from
+     * @return A route graph containing every route provided.
+     */
+    public static RouteGraph fromRoutes(List<RouteInfo> routes) {
+        HashMap<String, Integer> trackIds = new HashMap<>();
+        ArrayList<String> trackNames = new ArrayList<>();
+        HashMap<Integer, Integer> layoutIds = new HashMap<>();
+        HashSet<RouteInfo> seenRoutes = new HashSet<>();
+
+        int[] routeOrigins = new int[routes.size()];
+        int[] routeDestinations = new int[routes.size()];
+        int[] routeLayouts = new int[routes.size()];
+        String[] routeNumbers = new String[routes.size()];
+        int routeCount = 0;
+
+        for (RouteInfo route : routes) {
+            if (!seenRoutes.add(route)) {
+                continue;
+            }
+            routeOrigins[routeCount] = intern(route.getOrigin(), trackIds, trackNames);
+            routeDestinations[routeCount] = intern(route.getDestination(), trackIds, trackNames);
+            Integer layout = layoutIds.get(route.getPrimaryNumber());
+            if (layout == null) {
+                layout = layoutIds.size();
+                if (layout >= Integer.SIZE) {
+                    throw new IllegalArgumentException("A track cannot have more than " + Integer.SIZE + " layouts.");
+                }
+                layoutIds.put(route.getPrimaryNumber(), layout);
+            }
+            routeLayouts[routeCount] = layout;
+            routeNumbers[routeCount] = route.getFullNumber();
+            routeCount++;
+        }
+
+        return new RouteGraph(trackNames.toArray(new String[0]), trackIds, Arrays.copyOf(routeOrigins, routeCount), Arrays.copyOf(routeDestinations, routeCount), Arrays.copyOf(routeLayouts, routeCount), Arrays.copyOf(routeNumbers, routeCount), layoutIds.size());
+    }
+
+    /**
+     * Rebuilds a route graph from the arrays held by a snapshot. The arrays are used directly, not copied.
+     * @param trackNames The name of each track, indexed by track ID
+     * @param routeOrigins The origin of each route, indexed by route ID
+     * @param routeDestinations The destination of each route, indexed by route ID
+     * @param routeLayouts The layout of each route, indexed by route ID
+     * @param routeNumbers The full route number of each route, indexed by route ID
+     * @param layoutCount The number of distinct layouts
+     * @return The route graph.
+     * @throws IllegalArgumentException If the arrays do not describe a valid route graph.
+     */
+    static RouteGraph fromArrays(String[] trackNames, int[] routeOrigins, int[] routeDestinations, int[] routeLayouts, String[] routeNumbers, int layoutCount) {
+        if (layoutCount < 0 || layoutCount > Integer.SIZE) {
+            throw new IllegalArgumentException("A track cannot have more than " + Integer.SIZE + " layouts.");
+        }
+        HashMap<String, Integer> trackIds = new HashMap<>();
+        for (int track = 0; track < trackNames.length; track++) {
+            if (trackIds.put(trackNames[track], track) != null) {
+                throw new IllegalArgumentException("Track " + trackNames[track] + " appears more than once.");
+            }
+        }
+        for (int route = 0; route < routeOrigins.length; route++) {
+            if (routeOrigins[route] < 0 || routeOrigins[route] >= trackNames.length || routeDestinations[route] < 0 || routeDestinations[route] >= trackNames.length || routeLayouts[route] < 0 || routeLayouts[route] >= layoutCount) {
+                throw new IllegalArgumentException("Route " + route + " refers to a track or layout that does not exist.");
+            }
+        }
+        return new RouteGraph(trackNames, trackIds, routeOrigins, routeDestinations, routeLayouts, routeNumbers, layoutCount);
+    }
+
+    private static int intern(String track, HashMap<String, Integer> trackIds, ArrayList<String> trackNames) {
+        Integer id = trackIds.get(track);
+        if (id == null) {
+            id = trackNames.size();
+            trackIds.put(track, id);
+            trackNames.add(track);
+        }
+        return id;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the graph's contents, i.e. its track names and the origin, destination, layout and number of every route.
+     * Two graphs with the same contents in the same order always have the same fingerprint, no matter whether they were parsed from a routes file or read from a snapshot, so it changes whenever the routes file changes in any way that matters.
+     * @return The fingerprint.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the number of tracks in the graph. Track IDs run from 0 up to (but not including) this number.
+     * @return The number of tracks.
+     */
+    public int getTrackCount() {
+        return trackNames.length;
+    }
+
+    /**
+     * Returns the number of routes in the graph. Route IDs run from 0 up to (but not including) this number.
+     * @return The number of routes.
+     */
+    public int getRouteCount() {
+        return routeOrigins.length;
+    }
+
+    /**
+     * Returns the number of distinct layouts in the graph. Layout IDs run from 0 up to (but not including) this number.
+     * @return The number of layouts.
+     */
+    public int getLayoutCount() {
+        return layoutCount;
+    }
+
+    /**
+     * Returns the name of the track with the given ID.
+     * @param track The ID of the track
+     * @return The name of the track.
+     */
+    public String getTrackName(int track) {
+        return trackNames[track];
+    }
+
+    /**
+     * Returns the ID of the track with the given name.
+     * @param trackName The name of the track
+     * @return The ID of the track, or {@code NONE} if no such track exists.
+     */
+    public int getTrackId(String trackName) {
+        Integer id = trackIds.get(trackName);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Returns the route from one track to another in constant time.
+     * @param origin The ID of the track to start from
+     * @param destination The ID of the track to end at
+     * @return The ID of the route, or {@code NONE} if no such route exists.
+     */
+    public int getRoute(int origin, int destination) {
+        return routeLookup[origin * trackNames.length + destination];
+    }
+
+    /**
+     * Returns the route from a track to itself, i.e. the route used when the track is traversed without routes.
+     * @param track The ID of the track
+     * @return The ID of the route, or {@code NONE} if no such route exists.
+     */
+    public int getSelfRoute(int track) {
+        return getRoute(track, track);
+    }
+
+    /**
+     * Returns the number of routes that start at the given track.
+     * @param track The ID of the track
+     * @return The number of routes starting at the track.
+     */
+    public int getOutgoingRouteCount(int track) {
+        return outgoingRoutes[track].length;
+    }
+
+    /**
+     * Returns one of the routes that start at the given track.
+     * @param track The ID of the track
+     * @param index The index of the route, from 0 up to (but not including) {@code getOutgoingRouteCount(track)}
+     * @return The ID of the route.
+     */
+    public int getOutgoingRoute(int track, int index) {
+        return outgoingRoutes[track][index];
+    }
+
+    /**
+     * Returns the number of routes that end at the given track.
+     * @param track The ID of the track
+     * @return The number of routes ending at the track.
+     */
+    public int getIncomingRouteCount(int track) {
+        return incomingRoutes[track].length;
+    }
+
+    /**
+     * Returns one of the routes that end at the given track.
+     * @param track The ID of the track
+     * @param index The index of the route, from 0 up to (but not including) {@code getIncomingRouteCount(track)}
+     * @return The ID of the route.
+     */
+    public int getIncomingRoute(int track, int index) {
+        return incomingRoutes[track][index];
+    }
+
+    /**
+     * Returns the number of routes that end at the given track with the given layout.
+     * @param track The ID of the track
+     * @param layout The ID of the layout
+     * @return The number of routes ending at the track with the layout.
+     */
+    public int getIncomingRouteCount(int track, int layout) {
+        int key = track * layoutCount + layout;
+        return incomingLayoutStarts[key + 1] - incomingLayoutStarts[key];
+    }
+
+    /**
+     * Returns one of the routes that end at the given track with the given layout.
+     * @param track The ID of the track
+     * @param layout The ID of the layout
+     * @param index The index of the route, from 0 up to (but not including) {@code getIncomingRouteCount(track, layout)}
+     * @return The ID of the route.
+     */
+    public int getIncomingRoute(int track, int layout, int index) {
+        return incomingLayoutRoutes[incomingLayoutStarts[track * layoutCount + layout] + index];
+    }
+
+    /**
+     * Returns the origin of the given route.
+     * @param route The ID of the route
+     * @return The ID of the track the route starts at.
+     */
+    public int getRouteOrigin(int route) {
+        return routeOrigins[route];
+    }
+
+    /**
+     * Returns the destination of the given route.
+     * @param route The ID of the route
+     * @return The ID of the track the route ends at.
+     */
+    public int getRouteDestination(int route) {
+        return routeDestinations[route];
+    }
+
+    /**
+     * Returns the layout of the destination that the given route leads to.
+     * @param route The ID of the route
+     * @return The ID of the layout.
+     */
+    public int getRouteLayout(int route) {
+        return routeLayouts[route];
+    }
+
+    /**
+     * Returns the full route number of the given route, as it appears in routes.csv.
+     * @param route The ID of the route
+     * @return The route number.
+     */
+    public String getRouteNumber(int route) {
+        return routeNumbers[route];
+    }
+}
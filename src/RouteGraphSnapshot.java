@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes compiled snapshots of a {@code RouteGraph}, so that the routes file does not have to be parsed every time it is loaded.
+ * <p>
+ * A snapshot holds the interned track names, the route numbers, and the origin, destination and layout of every route, along with the size and modification time of the routes file it was compiled from.
+ * When the routes file is loaded, the snapshot next to it is read with a single {@code FileChannel} read and used if it matches the routes file. Otherwise, the routes file is parsed and the snapshot is rebuilt.
+ * Snapshots are only a few kilobytes, and memory-mapping one takes far longer on a fresh JVM than reading it, because of the classes that mapping has to load.
+ * <p>
+ * Snapshots end with a CRC-32 of their contents, so a damaged or partly written snapshot is rebuilt rather than trusted.
+ */
+public final class RouteGraphSnapshot {
+    /**
+     * Parses a route graph from its source, for when no up-to-date snapshot exists.
+     */
+    @FunctionalInterface
+    public interface Source {
+        /**
+         * Parses the route graph.
+         * @return The route graph.
+         * @throws IOException If the source cannot be read.
+         */
+        RouteGraph parse() throws IOException;
+    }
+
+    /**
+     * The extension given to snapshot files, including the leading dot.
+     */
+    public static final String EXTENSION = ".graph";
+
+    private static final int MAGIC = 0x52475348;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private RouteGraphSnapshot() {
+    }
+
+    /**
+     * Returns the path of the snapshot kept next to a routes file, which is the routes file with its extension replaced by {@code EXTENSION}.
+     * @param routesPath The path of the routes file
+     * @return The path of the snapshot.
+     */
+    public static Path getSnapshotPath(Path routesPath) {
+        String fileName = routesPath.getFileName().toString();
+        int extension = fileName.lastIndexOf('.');
+        return routesPath.resolveSibling((extension > 0 ? fileName.substring(0, extension) : fileName) + EXTENSION);
+    }
+
+    /**
+     * Loads the route graph for a routes file, from the snapshot next to it if that snapshot is up to date.
+     * Otherwise, the routes file is parsed and a new snapshot is written. If the snapshot cannot be written, for example because the folder is read-only, the parsed graph is still returned.
+     * @param routesPath The path of the routes file
+     * @param source Parses the routes file if the snapshot cannot be used
+     * @return The route graph.
+     * @throws IOException If the snapshot cannot be used and the routes file cannot be parsed.
+     */
+    public static RouteGraph load(Path routesPath, Source source) throws IOException {
+        Path snapshotPath = getSnapshotPath(routesPath);
+        BasicFileAttributes routesAttributes;
+        try {
+            routesAttributes = Files.readAttributes(routesPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return source.parse();
+        }
+        long routesSize = routesAttributes.size();
+        long routesModified = routesAttributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        RouteGraph routeGraph = read(snapshotPath, routesSize, routesModified);
+        if (routeGraph != null) {
+            return routeGraph;
+        }
+        routeGraph = source.parse();
+        try {
+            write(snapshotPath, routeGraph, routesSize, routesModified);
+        } catch (IOException e) {
+            // The snapshot only speeds up later loads, so the graph is still usable without it.
+        }
+        return routeGraph;
+    }
+
+    /**
+     * Reads a snapshot, as long as it was compiled from a routes file with the given size and modification time.
+     * @param snapshotPath The path of the snapshot
+     * @param routesSize The size of the routes file in bytes
+     * @param routesModified The modification time of the routes file in nanoseconds
+     * @return The route graph, or {@code null} if the snapshot is missing, stale or damaged.
+     */
+    static RouteGraph read(Path snapshotPath, long routesSize, long routesModified) {
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + CHECKSUM_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != routesSize || buffer.getLong() != routesModified) {
+                return null;
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer.array(), 0, (int) size - CHECKSUM_SIZE);
+            if (checksum.getValue() != buffer.getLong((int) size - CHECKSUM_SIZE)) {
+                return null;
+            }
+            buffer.limit((int) size - CHECKSUM_SIZE);
+            return decode(buffer);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of a route graph. The snapshot is written to a temporary file first and then moved into place, so that readers never see a partly written snapshot. It has the permissions of an ordinary new file, so other users can read it.
+     * @param snapshotPath The path to write the snapshot to
+     * @param routeGraph The route graph
+     * @param routesSize The size of the routes file the graph was parsed from, in bytes
+     * @param routesModified The modification time of the routes file the graph was parsed from, in nanoseconds
+     * @throws IOException If the snapshot cannot be written.
+     */
+    static void write(Path snapshotPath, RouteGraph routeGraph, long routesSize, long routesModified) throws IOException {
+        ByteBuffer buffer = encode(routeGraph, routesSize, routesModified);
+        // The snapshot is shared by everyone who runs the randomiser, so it is given the permissions of an ordinary new file rather than a temporary one.
+        Path temporary = CupWriter.createTemporaryFile(snapshotPath);
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Encodes a route graph into a snapshot, including the header and checksum.
+     * @return A buffer holding the snapshot, ready to be written.
+     */
+    private static ByteBuffer encode(RouteGraph routeGraph, long routesSize, long routesModified) {
+        int trackCount = routeGraph.getTrackCount();
+        int routeCount = routeGraph.getRouteCount();
+        byte[][] trackNames = new byte[trackCount][];
+        byte[][] routeNumbers = new byte[routeCount][];
+        int size = HEADER_SIZE + 3 * 4 * routeCount + CHECKSUM_SIZE;
+        for (int track = 0; track < trackCount; track++) {
+            trackNames[track] = routeGraph.getTrackName(track).getBytes(StandardCharsets.UTF_8);
+            size += 4 + trackNames[track].length;
+        }
+        for (int route = 0; route < routeCount; route++) {
+            routeNumbers[route] = routeGraph.getRouteNumber(route).getBytes(StandardCharsets.UTF_8);
+            size += 4 + routeNumbers[route].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(routesSize).putLong(routesModified);
+        buffer.putInt(trackCount).putInt(routeCount).putInt(routeGraph.getLayoutCount());
+        for (byte[] name : trackNames) {
+            buffer.putInt(name.length).put(name);
+        }
+        for (byte[] number : routeNumbers) {
+            buffer.putInt(number.length).put(number);
+        }
+        for (int route = 0; route < routeCount; route++) {
+            buffer.putInt(routeGraph.getRouteOrigin(route));
+        }
+        for (int route = 0; route < routeCount; route++) {
+            buffer.putInt(routeGraph.getRouteDestination(route));
+        }
+        for (int route = 0; route < routeCount; route++) {
+            buffer.putInt(routeGraph.getRouteLayout(route));
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(checksum.getValue());
+        return buffer.flip();
+    }
+
+    /**
+     * Decodes the body of a snapshot, starting just after the routes file size and modification time.
+     * @return The route graph.
+     */
+    private static RouteGraph decode(ByteBuffer buffer) {
+        int trackCount = buffer.getInt();
+        int routeCount = buffer.getInt();
+        int layoutCount = buffer.getInt();
+        String[] trackNames = new String[trackCount];
+        for (int track = 0; track < trackCount; track++) {
+            trackNames[track] = getString(buffer);
+        }
+        String[] routeNumbers = new String[routeCount];
+        for (int route = 0; route < routeCount; route++) {
+            routeNumbers[route] = getString(buffer);
+        }
+        int[] routeOrigins = getInts(buffer, routeCount);
+        int[] routeDestinations = getInts(buffer, routeCount);
+        int[] routeLayouts = getInts(buffer, routeCount);
+        return RouteGraph.fromArrays(trackNames, routeOrigins, routeDestinations, routeLayouts, routeNumbers, layoutCount);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * count);
+        return values;
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.Objects;
+
 public class RouteInfo {
     private final String origin;
     private final String destination;
@@ -51,4 +53,9 @@ public class RouteInfo {
         }
         return false;
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(origin, destination);
+    }
 }
@@ -0,0 +1,519 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Parses a routes file into a {@code RouteGraph} in a single pass.
+ * <p>
+ * The file is read through one reusable character buffer, and only the Origin, Destination and Route Number columns are kept. Each track name and route number is interned as it is read, so a String is only created the first time a name is seen, no matter how many rows it appears in.
+ * <p>
+ * Fields may be quoted, in which case they may contain commas, line breaks and doubled quotes ({@code ""}). Lines may end with {@code \n}, {@code \r\n} or {@code \r}, and blank lines are ignored.
+ * The header row decides which column is which, so the columns may appear in any order and alongside other columns.
+ * <p>
+ * The graph is identical to the one {@code RouteGraph.fromRoutes(List)} would build from the same rows, so the same seed always gives the same cups however the routes were loaded.
+ * <p>
+ * A routes file may name at most {@code RouteGraph.MAX_TRACKS} (64) tracks, and is rejected at the row that names one more, rather than loading a graph that no engine can be built from.
+ * With cups of more than four tracks, the number of routes is limited too, as described in {@code ChainTable.getMaxRouteCount(int)}.
+ */
+public final class RouteLoader {
+    private static final int NONE = RouteGraph.NONE;
+    private static final int BUFFER_SIZE = 1 << 13;
+    private static final int NO_COLUMN = -1;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int lineNumber = 1;
+    private boolean lastFieldQuoted;
+    private int lastFieldLength;
+
+    private final Field field = new Field();
+    private final Field origin = new Field();
+    private final Field destination = new Field();
+    private final Field number = new Field();
+    private int originColumn = NO_COLUMN;
+    private int destinationColumn = NO_COLUMN;
+    private int numberColumn = NO_COLUMN;
+
+    private final NameTable tracks = new NameTable();
+    private final NameTable numbers = new NameTable();
+    private final HashMap<Character, Integer> layoutIds = new HashMap<>();
+    private final PairSet seenRoutes = new PairSet();
+    private int[] routeOrigins = new int[256];
+    private int[] routeDestinations = new int[256];
+    private int[] routeLayouts = new int[256];
+    private String[] routeNumbers = new String[256];
+    private int routeCount;
+
+    private RouteLoader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Loads a routes file from the given path, which is read as UTF-8.
+     * @param path The path of the routes file
+     * @return The route graph.
+     * @throws RouteFormatException If the file is malformed.
+     * @throws IOException If the file cannot be read.
+     */
+    public static RouteGraph load(Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            return load(input);
+        }
+    }
+
+    /**
+     * Loads a routes file from the given stream, which is read as UTF-8. The stream is not closed.
+     * @param input The stream to read from
+     * @return The route graph.
+     * @throws RouteFormatException If the file is malformed.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static RouteGraph load(InputStream input) throws IOException {
+        return load(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Loads a routes file from the given reader. The reader is not closed, and does not need to be buffered.
+     * @param reader The reader to read from
+     * @return The route graph.
+     * @throws RouteFormatException If the file is malformed.
+     * @throws IOException If the reader cannot be read.
+     */
+    public static RouteGraph load(Reader reader) throws IOException {
+        return new RouteLoader(reader).parse();
+    }
+
+    private RouteGraph parse() throws IOException {
+        if (fill() && buffer[position] == '\uFEFF') {
+            position++;
+        }
+        int rowLine;
+        do {
+            rowLine = lineNumber;
+        } while (readRow(true) == 0 && !isFinished());
+        if (originColumn == NO_COLUMN || destinationColumn == NO_COLUMN || numberColumn == NO_COLUMN) {
+            throw new RouteFormatException(rowLine, "The header must contain Origin, Destination and Route Number columns.");
+        }
+        int neededColumns = Math.max(originColumn, Math.max(destinationColumn, numberColumn)) + 1;
+
+        while (!isFinished()) {
+            rowLine = lineNumber;
+            int fieldCount = readRow(false);
+            if (fieldCount == 0) {
+                continue;
+            }
+            if (fieldCount < neededColumns) {
+                throw new RouteFormatException(rowLine, "Expected at least " + neededColumns + " fields, but found " + fieldCount + ".");
+            }
+            if (origin.isEmpty() || destination.isEmpty() || number.isEmpty()) {
+                throw new RouteFormatException(rowLine, "The origin, destination and route number must not be empty.");
+            }
+            addRoute(rowLine);
+        }
+
+        return RouteGraph.fromArrays(tracks.toArray(), Arrays.copyOf(routeOrigins, routeCount), Arrays.copyOf(routeDestinations, routeCount), Arrays.copyOf(routeLayouts, routeCount), Arrays.copyOf(routeNumbers, routeCount), layoutIds.size());
+    }
+
+    /**
+     * Adds the route in the current row, unless a route with the same origin and destination has already been added.
+     * Track names are interned in the same order as {@code RouteGraph.fromRoutes(List)}, so that the track IDs match.
+     */
+    private void addRoute(int rowLine) throws RouteFormatException {
+        int originHash = origin.hash();
+        int destinationHash = destination.hash();
+        int originId = tracks.find(origin, originHash);
+        int destinationId = tracks.find(destination, destinationHash);
+        if (originId != NONE && destinationId != NONE && seenRoutes.contains(originId, destinationId)) {
+            return;
+        }
+        if (originId == NONE) {
+            originId = addTrack(origin, originHash, rowLine);
+        }
+        if (destinationId == NONE) {
+            destinationId = origin.matches(destination) ? originId : addTrack(destination, destinationHash, rowLine);
+        }
+        seenRoutes.add(originId, destinationId);
+
+        Integer layout = layoutIds.get(number.charAt(0));
+        if (layout == null) {
+            layout = layoutIds.size();
+            if (layout >= Integer.SIZE) {
+                throw new RouteFormatException(rowLine, "A track cannot have more than " + Integer.SIZE + " layouts.");
+            }
+            layoutIds.put(number.charAt(0), layout);
+        }
+
+        if (routeCount == routeOrigins.length) {
+            int capacity = routeCount * 2;
+            routeOrigins = Arrays.copyOf(routeOrigins, capacity);
+            routeDestinations = Arrays.copyOf(routeDestinations, capacity);
+            routeLayouts = Arrays.copyOf(routeLayouts, capacity);
+            routeNumbers = Arrays.copyOf(routeNumbers, capacity);
+        }
+        int numberHash = number.hash();
+        int numberId = numbers.find(number, numberHash);
+        routeOrigins[routeCount] = originId;
+        routeDestinations[routeCount] = destinationId;
+        routeLayouts[routeCount] = layout;
+        routeNumbers[routeCount] = numbers.getName(numberId == NONE ? numbers.add(number, numberHash) : numberId);
+        routeCount++;
+    }
+
+    /**
+     * Adds a track that has not been seen before.
+     * @param name The name of the track
+     * @param hash The hash of the name, from {@code Field.hash()}
+     * @param rowLine The line the row naming the track starts on
+     * @return The ID of the track.
+     * @throws RouteFormatException If the routes file already names {@code RouteGraph.MAX_TRACKS} tracks.
+     */
+    private int addTrack(Field name, int hash, int rowLine) throws RouteFormatException {
+        int id = tracks.add(name, hash);
+        if (id >= RouteGraph.MAX_TRACKS) {
+            throw new RouteFormatException(rowLine, "A routes file may have at most " + RouteGraph.MAX_TRACKS + " tracks, but " + name + " is track " + (id + 1) + ".");
+        }
+        return id;
+    }
+
+    /**
+     * Reads one row, keeping the Origin, Destination and Route Number fields. If this is the header row, the columns are found instead.
+     * @param header Whether this is the header row
+     * @return The number of fields in the row, or 0 if the row was blank.
+     */
+    private int readRow(boolean header) throws IOException {
+        int rowLine = lineNumber;
+        origin.clear();
+        destination.clear();
+        number.clear();
+        int column = 0;
+        while (true) {
+            Field target = header ? field : column == originColumn ? origin : column == destinationColumn ? destination : column == numberColumn ? number : null;
+            if (target != null) {
+                target.clear();
+            }
+            int end = readField(target, rowLine);
+            if (column == 0 && end != ',' && lastFieldLength == 0 && !lastFieldQuoted) {
+                return 0;
+            }
+            if (header) {
+                findColumn(column);
+            }
+            column++;
+            if (end != ',') {
+                return column;
+            }
+        }
+    }
+
+    /**
+     * Reads one field into the target, which may be {@code null} if the field is not needed.
+     * Unquoted text is copied into the target in runs straight from the buffer, rather than one character at a time.
+     * @return The character that ended the field: a comma, {@code '\n'} for the end of a line, or -1 for the end of the file.
+     */
+    private int readField(Field target, int rowLine) throws IOException {
+        lastFieldLength = 0;
+        lastFieldQuoted = fill() && buffer[position] == '"';
+        if (lastFieldQuoted) {
+            position++;
+            readQuoted(target, rowLine);
+        }
+        while (fill()) {
+            int start = position;
+            char[] chars = buffer;
+            int end = limit;
+            int index = start;
+            while (index < end && chars[index] != ',' && chars[index] != '\n' && chars[index] != '\r') {
+                index++;
+            }
+            if (index > start) {
+                if (lastFieldQuoted) {
+                    throw new RouteFormatException(rowLine, "Unexpected text after a closing quote.");
+                }
+                lastFieldLength += index - start;
+                if (target != null) {
+                    target.append(chars, start, index - start);
+                }
+            }
+            position = index;
+            if (index == end) {
+                continue;
+            }
+            char c = chars[position++];
+            if (c == ',') {
+                return ',';
+            }
+            if (c == '\r' && fill() && buffer[position] == '\n') {
+                position++;
+            }
+            lineNumber++;
+            return '\n';
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the rest of a quoted field, up to and including its closing quote.
+     */
+    private void readQuoted(Field target, int rowLine) throws IOException {
+        while (true) {
+            if (!fill()) {
+                throw new RouteFormatException(rowLine, "A quoted field is never closed.");
+            }
+            char c = buffer[position++];
+            if (c == '"') {
+                if (fill() && buffer[position] == '"') {
+                    position++;
+                } else {
+                    return;
+                }
+            } else if (c == '\n' || (c == '\r' && !(fill() && buffer[position] == '\n'))) {
+                lineNumber++;
+            }
+            lastFieldLength++;
+            if (target != null) {
+                target.append(c);
+            }
+        }
+    }
+
+    /**
+     * Records which column the header field just read names, if any.
+     */
+    private void findColumn(int column) {
+        switch (field.toString().trim().toLowerCase()) {
+            case "origin" -> originColumn = column;
+            case "destination" -> destinationColumn = column;
+            case "route number", "routenumber", "number", "num", "#" -> numberColumn = column;
+        }
+    }
+
+    /**
+     * Makes sure there is at least one character left in the buffer, refilling it from the reader if needed.
+     * @return {@code false} if the end of the file has been reached.
+     */
+    private boolean fill() throws IOException {
+        while (position == limit) {
+            if (limit < 0) {
+                return false;
+            }
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit < 0) {
+                position = limit;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isFinished() throws IOException {
+        return !fill();
+    }
+
+    /**
+     * A reusable buffer holding the text of one field.
+     */
+    private static final class Field {
+        private char[] chars = new char[64];
+        private int length;
+
+        void clear() {
+            length = 0;
+        }
+
+        void append(char c) {
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, length * 2);
+            }
+            chars[length++] = c;
+        }
+
+        void append(char[] source, int offset, int count) {
+            if (length + count > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(length + count, length * 2));
+            }
+            System.arraycopy(source, offset, chars, length, count);
+            length += count;
+        }
+
+        boolean isEmpty() {
+            return length == 0;
+        }
+
+        char charAt(int index) {
+            return chars[index];
+        }
+
+        /**
+         * Hashes the text the same way as {@code String.hashCode()}, then spreads the bits so that nearby hashes do not cluster.
+         */
+        int hash() {
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        boolean matches(String text) {
+            if (text.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (text.charAt(i) != chars[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(Field other) {
+            return other.length == length && Arrays.equals(chars, 0, length, other.chars, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    /**
+     * An open-addressing table that interns names straight from a {@code Field}, only creating a String the first time each name is seen.
+     */
+    private static final class NameTable {
+        private String[] names = new String[64];
+        private int[] hashes = new int[64];
+        private int[] slots = newSlots(128);
+        private int size;
+
+        private static int[] newSlots(int capacity) {
+            int[] slots = new int[capacity];
+            Arrays.fill(slots, NONE);
+            return slots;
+        }
+
+        /**
+         * Finds the ID of a name without adding it.
+         * @param name The name
+         * @param hash The hash of the name, from {@code Field.hash()}
+         * @return The ID, or {@code NONE} if the name has not been added.
+         */
+        int find(Field name, int hash) {
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; slots[slot] != NONE; slot = (slot + 1) & mask) {
+                int id = slots[slot];
+                if (hashes[id] == hash && name.matches(names[id])) {
+                    return id;
+                }
+            }
+            return NONE;
+        }
+
+        /**
+         * Adds a name that {@code find()} did not find. IDs are given out in the order names are added.
+         * @param name The name
+         * @param hash The hash of the name, from {@code Field.hash()}
+         * @return The ID of the name.
+         */
+        int add(Field name, int hash) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            names[size] = name.toString();
+            hashes[size] = hash;
+            if ((size + 1) * 2 > slots.length) {
+                slots = newSlots(slots.length * 2);
+                for (int id = 0; id < size; id++) {
+                    insert(id);
+                }
+            }
+            insert(size);
+            return size++;
+        }
+
+        private void insert(int id) {
+            int mask = slots.length - 1;
+            int slot = hashes[id] & mask;
+            while (slots[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+
+        String getName(int id) {
+            return names[id];
+        }
+
+        String[] toArray() {
+            return Arrays.copyOf(names, size);
+        }
+    }
+
+    /**
+     * An open-addressing set of origin and destination pairs, so that checking for a duplicate route does not box a key for every row.
+     */
+    private static final class PairSet {
+        private static final long EMPTY = -1;
+
+        private long[] pairs = newPairs(1024);
+        private int size;
+
+        private static long[] newPairs(int capacity) {
+            long[] pairs = new long[capacity];
+            Arrays.fill(pairs, EMPTY);
+            return pairs;
+        }
+
+        boolean contains(int origin, int destination) {
+            long pair = pair(origin, destination);
+            int mask = pairs.length - 1;
+            for (int slot = spread(pair) & mask; pairs[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (pairs[slot] == pair) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds a pair that is not already in the set.
+         */
+        void add(int origin, int destination) {
+            if ((size + 1) * 2 > pairs.length) {
+                long[] old = pairs;
+                pairs = newPairs(old.length * 2);
+                for (long pair : old) {
+                    if (pair != EMPTY) {
+                        insert(pair);
+                    }
+                }
+            }
+            insert(pair(origin, destination));
+            size++;
+        }
+
+        private void insert(long pair) {
+            int mask = pairs.length - 1;
+            int slot = spread(pair) & mask;
+            while (pairs[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            pairs[slot] = pair;
+        }
+
+        private static long pair(int origin, int destination) {
+            return ((long) origin << 32) | destination;
+        }
+
+        private static int spread(long pair) {
+            long hash = pair * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
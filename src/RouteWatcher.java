@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a routes file for changes and keeps an engine built from its latest valid contents, so that a long-running server or pool picks up new routes without being restarted.
+ * <p>
+ * The routes file is watched with a {@code WatchService} on a background thread. Editors often save a file in several steps, so once the file changes, the watcher waits until it has been left alone for {@code SETTLE_MILLIS} before reloading it.
+ * The file is then loaded, validated and built into a new engine on the watcher's thread, and swapped in with a single volatile write. Nothing waits on the reload: {@code getEngine()} keeps returning the old engine until the new one is ready.
+ * A caller should take the engine once per request, so that a set of cups being created when the swap happens finishes on the graph it started with.
+ * <p>
+ * An edit that leaves the file malformed, breaks the engine's rules, e.g. by removing Rainbow Road or Peach Stadium, or allows no set of cups to be found is rejected, and the last good engine is kept until the file is fixed.
+ * An edit that leaves the route graph's fingerprint unchanged keeps the current engine, as it would create the same sets of cups.
+ * Each new engine records into the metrics of the engine it replaces, and chooses its sets in the same way under the same rules.
+ */
+public final class RouteWatcher implements AutoCloseable {
+    public static final long SETTLE_MILLIS = 200;
+
+    private final Path routesPath;
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile RandomiserEngine engine;
+    private volatile long reloads;
+    private volatile long rejections;
+
+    /**
+     * Creates a new watcher and starts watching the routes file in the background.
+     * @param routesPath The path of the routes file
+     * @param engine The engine built from the routes file as it is now, which is returned by {@code getEngine()} until the file changes
+     * @throws IOException If the folder holding the routes file cannot be watched.
+     */
+    public RouteWatcher(Path routesPath, RandomiserEngine engine) throws IOException {
+        this.routesPath = routesPath.toAbsolutePath();
+        this.engine = engine;
+        watchService = this.routesPath.getFileSystem().newWatchService();
+        try {
+            // A folder is watched rather than the file, so that a file replaced by a rename is still seen.
+            this.routesPath.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        thread = new Thread(this::watch, "RouteWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the engine built from the latest valid contents of the routes file.
+     * @return The engine.
+     */
+    public RandomiserEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the path of the routes file being watched.
+     * @return The path.
+     */
+    public Path getRoutesPath() {
+        return routesPath;
+    }
+
+    /**
+     * Returns the number of times a changed routes file has been swapped in.
+     * @return The number of reloads.
+     */
+    public long getReloadCount() {
+        return reloads;
+    }
+
+    /**
+     * Returns the number of times a changed routes file has been rejected, leaving the last good engine in place.
+     * @return The number of rejections.
+     */
+    public long getRejectionCount() {
+        return rejections;
+    }
+
+    /**
+     * Waits for the routes file to change and reloads it, until the watcher is closed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                if (!isRoutesChange(watchService.take())) {
+                    continue;
+                }
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isRoutesChange(key);
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The watcher has been closed.
+        }
+    }
+
+    /**
+     * Takes the events from a watch key and resets it.
+     * @param key The watch key
+     * @return {@code true} if any of the events may have changed the routes file.
+     */
+    private boolean isRoutesChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // An overflow means that events were lost, so any of them could have been for the routes file.
+            if (event.kind() == OVERFLOW || routesPath.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Loads the routes file and swaps in a new engine built from it, unless it is rejected or its route graph is unchanged.
+     * This is done by the watcher's thread whenever the file changes, but can also be called directly.
+     * @return {@code true} if a new engine was swapped in.
+     */
+    public synchronized boolean reload() {
+        RandomiserEngine current = engine;
+        RouteGraph routeGraph;
+        try {
+            routeGraph = Randomiser.GetRouteGraph(routesPath);
+        } catch (IOException e) {
+            // The problem has already been printed by GetRouteGraph().
+            reject();
+            return false;
+        }
+        if (routeGraph.getFingerprint() == current.getRouteGraph().getFingerprint()) {
+            return false;
+        }
+        RandomiserEngine replacement;
+        try {
+            replacement = new RandomiserEngine(routeGraph, current.getMetrics(), current.getSampling(), current.getRules());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            reject();
+            return false;
+        }
+        engine = replacement;
+        reloads++;
+        System.out.println("Reloaded " + routesPath.getFileName() + " with " + routeGraph.getRouteCount() + " routes.");
+        return true;
+    }
+
+    /**
+     * Counts a rejected routes file and explains that the last good one is still in use.
+     */
+    private void reject() {
+        rejections++;
+        System.out.println("The changes to " + routesPath.getFileName() + " were rejected, and the last valid routes are still being used.");
+    }
+
+    /**
+     * Stops watching the routes file. The engine last swapped in can still be used.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return "Routes: " + engine.getRouteGraph().getRouteCount() + " routes from " + routesPath.getFileName() + " (reloaded " + reloads + ", rejected " + rejections + ")" + System.lineSeparator();
+    }
+}
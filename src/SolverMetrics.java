@@ -0,0 +1,407 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe counters describing how the randomiser spends its time: how many attempts it makes, why they fail, and how long each phase takes.
+ * <p>
+ * A {@code CupSolver} counts its failures in plain fields while it searches and only adds them here once each attempt is over, so sharing one instance between many solvers adds almost nothing to the cost of the search.
+ * Call {@code snapshot()} to read the counters.
+ */
+public final class SolverMetrics {
+    /**
+     * How a single attempt ended.
+     */
+    public enum Outcome {
+        /**
+         * Every cup was filled.
+         */
+        SUCCESS,
+        /**
+         * The attempt visited too many search nodes and was abandoned.
+         */
+        NODE_BUDGET,
+        /**
+         * Another search found a set of cups first, so the attempt was abandoned.
+         */
+        CANCELLED,
+        /**
+         * Every option was tried without filling every cup.
+         */
+        EXHAUSTED
+    }
+
+    /**
+     * The reasons the search backs out of a cup.
+     */
+    public enum FailureReason {
+        /**
+         * Peach Stadium and Rainbow Road could not be placed at the end of the Special Cup.
+         */
+        SPECIAL_CUP,
+        /**
+         * An open end of a partly filled cup had no track that could be placed next to it.
+         */
+        NO_CANDIDATES,
+        /**
+         * An unused track no longer had a route into it that leads to an unused layout, so it could never be placed.
+         */
+        UNREACHABLE_TRACK,
+        /**
+         * Every cup was filled but some tracks were never used.
+         */
+        UNUSED_TRACKS,
+        /**
+         * The attempt visited too many search nodes while filling the cup.
+         */
+        NODE_BUDGET,
+        /**
+         * The attempt was cancelled while filling the cup.
+         */
+        CANCELLED
+    }
+
+    /**
+     * The phases whose latencies are recorded.
+     */
+    public enum Phase {
+        /**
+         * Reading the routes file and building a route graph from it.
+         */
+        LOAD_ROUTES,
+        /**
+         * A single attempt by a {@code CupSolver}, whether or not it succeeds.
+         */
+        ATTEMPT,
+        /**
+         * Creating the {@code CupSet} for a successful attempt.
+         */
+        CUP_SET,
+        /**
+         * A whole call to {@code RandomiserEngine.randomise()}, from the seed to the finished set of cups.
+         */
+        RANDOMISE,
+        /**
+         * A request handled by a {@code CupServer}, from reading the request to sending the response.
+         */
+        REQUEST
+    }
+
+    /**
+     * The number of latency buckets. Bucket {@code b} holds latencies of at least {@code 2^b} nanoseconds and less than {@code 2^(b+1)}, except bucket 0, which also holds latencies of 0.
+     */
+    public static final int LATENCY_BUCKETS = 64;
+
+    private static final int OUTCOMES = Outcome.values().length;
+    private static final int REASONS = FailureReason.values().length;
+    private static final int PHASES = Phase.values().length;
+
+    private final LongAdder[] outcomes = newAdders(OUTCOMES);
+    private final LongAdder[] failures = newAdders(REASONS * CupRules.MAX_CUP_COUNT);
+    private final LongAccumulator cupCount = new LongAccumulator(Math::max, 0);
+    private final ConcurrentHashMap<String, LongAdder> trackFailures = new ConcurrentHashMap<>();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder[] latencies = newAdders(PHASES * LATENCY_BUCKETS);
+    private final LongAdder[] latencyTotals = newAdders(PHASES);
+    private final LongAccumulator[] latencyMaximums = new LongAccumulator[PHASES];
+
+    /**
+     * Creates a new set of metrics with every counter at zero.
+     */
+    public SolverMetrics() {
+        for (int phase = 0; phase < PHASES; phase++) {
+            latencyMaximums[phase] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Records the end of a single attempt.
+     * @param routeGraph The route graph the attempt searched, used to name the tracks
+     * @param outcome How the attempt ended
+     * @param attemptNodes The number of search nodes the attempt visited
+     * @param durationNanos How long the attempt took, in nanoseconds
+     * @param failureCounts The number of times the attempt backed out of each cup for each reason, indexed by {@code reason * cupCount + cup}, where {@code cupCount} is the number of cups in the set
+     * @param trackFailureCounts The number of times each track was involved in a failure, indexed by track ID
+     */
+    void recordAttempt(RouteGraph routeGraph, Outcome outcome, long attemptNodes, long durationNanos, int[] failureCounts, int[] trackFailureCounts) {
+        outcomes[outcome.ordinal()].increment();
+        nodes.add(attemptNodes);
+        int cups = failureCounts.length / REASONS;
+        cupCount.accumulate(cups);
+        for (int i = 0; i < failureCounts.length; i++) {
+            if (failureCounts[i] != 0) {
+                failures[i / cups * CupRules.MAX_CUP_COUNT + i % cups].add(failureCounts[i]);
+            }
+        }
+        for (int track = 0; track < trackFailureCounts.length; track++) {
+            if (trackFailureCounts[track] != 0) {
+                trackFailures.computeIfAbsent(routeGraph.getTrackName(track), name -> new LongAdder()).add(trackFailureCounts[track]);
+            }
+        }
+        recordLatency(Phase.ATTEMPT, durationNanos);
+    }
+
+    /**
+     * Records how long a phase took.
+     * @param phase The phase
+     * @param durationNanos How long it took, in nanoseconds
+     */
+    public void recordLatency(Phase phase, long durationNanos) {
+        long duration = Math.max(durationNanos, 0);
+        int bucket = duration == 0 ? 0 : 63 - Long.numberOfLeadingZeros(duration);
+        latencies[phase.ordinal() * LATENCY_BUCKETS + bucket].increment();
+        latencyTotals[phase.ordinal()].add(duration);
+        latencyMaximums[phase.ordinal()].accumulate(duration);
+    }
+
+    /**
+     * Resets every counter to zero. Updates made while this runs may be lost.
+     */
+    public void reset() {
+        for (LongAdder[] adders : List.of(outcomes, failures, latencies, latencyTotals)) {
+            for (LongAdder adder : adders) {
+                adder.reset();
+            }
+        }
+        for (LongAccumulator maximum : latencyMaximums) {
+            maximum.reset();
+        }
+        nodes.reset();
+        cupCount.reset();
+        trackFailures.clear();
+    }
+
+    /**
+     * Reads every counter into an immutable snapshot. Updates made while this runs may or may not be included.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * An immutable copy of the counters in a {@code SolverMetrics}.
+     */
+    public static final class Snapshot {
+        private final long[] outcomes = new long[OUTCOMES];
+        private final long[] failures = new long[REASONS * CupRules.MAX_CUP_COUNT];
+        private final int cupCount;
+        private final Map<String, Long> trackFailures;
+        private final long nodes;
+        private final long[] latencies = new long[PHASES * LATENCY_BUCKETS];
+        private final long[] latencyCounts = new long[PHASES];
+        private final long[] latencyTotals = new long[PHASES];
+        private final long[] latencyMaximums = new long[PHASES];
+
+        private Snapshot(SolverMetrics metrics) {
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = metrics.outcomes[i].sum();
+            }
+            for (int i = 0; i < failures.length; i++) {
+                failures[i] = metrics.failures[i].sum();
+            }
+            cupCount = (int) metrics.cupCount.get();
+            TreeMap<String, Long> tracks = new TreeMap<>();
+            metrics.trackFailures.forEach((track, count) -> tracks.put(track, count.sum()));
+            trackFailures = Collections.unmodifiableMap(tracks);
+            nodes = metrics.nodes.sum();
+            for (int phase = 0; phase < PHASES; phase++) {
+                for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+                    long count = metrics.latencies[phase * LATENCY_BUCKETS + bucket].sum();
+                    latencies[phase * LATENCY_BUCKETS + bucket] = count;
+                    latencyCounts[phase] += count;
+                }
+                latencyTotals[phase] = metrics.latencyTotals[phase].sum();
+                latencyMaximums[phase] = metrics.latencyMaximums[phase].get();
+            }
+        }
+
+        /**
+         * Returns the total number of attempts.
+         * @return The number of attempts.
+         */
+        public long getAttempts() {
+            long attempts = 0;
+            for (long count : outcomes) {
+                attempts += count;
+            }
+            return attempts;
+        }
+
+        /**
+         * Returns the number of attempts that ended in a particular way.
+         * @param outcome How the attempts ended
+         * @return The number of attempts.
+         */
+        public long getAttempts(Outcome outcome) {
+            return outcomes[outcome.ordinal()];
+        }
+
+        /**
+         * Returns the total number of search nodes visited.
+         * @return The number of search nodes.
+         */
+        public long getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Returns the number of cups in the sets that were searched for, or the most cups if sets of several shapes were.
+         * @return The number of cups, or 0 if no attempts have been recorded.
+         */
+        public int getCupCount() {
+            return cupCount;
+        }
+
+        /**
+         * Returns the number of times the search backed out of a cup for a particular reason.
+         * @param reason The reason
+         * @param cup The cup, as numbered by {@code CupSolver}: the Special Cup, which is the last cup, is filled first, then cups 0 onwards.
+         * @return The number of failures.
+         */
+        public long getFailures(FailureReason reason, int cup) {
+            return failures[reason.ordinal() * CupRules.MAX_CUP_COUNT + cup];
+        }
+
+        /**
+         * Returns the number of times the search backed out of any cup for a particular reason.
+         * @param reason The reason
+         * @return The number of failures.
+         */
+        public long getFailures(FailureReason reason) {
+            long total = 0;
+            for (int cup = 0; cup < CupRules.MAX_CUP_COUNT; cup++) {
+                total += getFailures(reason, cup);
+            }
+            return total;
+        }
+
+        /**
+         * Returns the number of failures that each track was involved in, such as being the track with no candidates next to it, or the track that could no longer be reached.
+         * @return An unmodifiable map of track names to failure counts, sorted by name.
+         */
+        public Map<String, Long> getTrackFailures() {
+            return trackFailures;
+        }
+
+        /**
+         * Returns the number of latencies recorded for a phase.
+         * @param phase The phase
+         * @return The number of latencies.
+         */
+        public long getLatencyCount(Phase phase) {
+            return latencyCounts[phase.ordinal()];
+        }
+
+        /**
+         * Returns the number of latencies for a phase in a single histogram bucket.
+         * @param phase The phase
+         * @param bucket The bucket, as described by {@code LATENCY_BUCKETS}
+         * @return The number of latencies in the bucket.
+         */
+        public long getLatencyBucket(Phase phase, int bucket) {
+            return latencies[phase.ordinal() * LATENCY_BUCKETS + bucket];
+        }
+
+        /**
+         * Returns the mean latency of a phase.
+         * @param phase The phase
+         * @return The mean latency in nanoseconds, or 0 if none have been recorded.
+         */
+        public long getMeanLatency(Phase phase) {
+            long count = getLatencyCount(phase);
+            return count == 0 ? 0 : latencyTotals[phase.ordinal()] / count;
+        }
+
+        /**
+         * Returns the highest latency recorded for a phase.
+         * @param phase The phase
+         * @return The highest latency in nanoseconds, or 0 if none have been recorded.
+         */
+        public long getMaxLatency(Phase phase) {
+            return latencyMaximums[phase.ordinal()];
+        }
+
+        /**
+         * Estimates a percentile of the latencies of a phase from the histogram. The estimate is the upper bound of the bucket the percentile falls in, so it is at most twice the true value.
+         * @param phase The phase
+         * @param percentile The percentile, from 0 to 100
+         * @return The estimated latency in nanoseconds, or 0 if none have been recorded.
+         */
+        public long getLatencyPercentile(Phase phase, double percentile) {
+            long count = getLatencyCount(phase);
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100), 1);
+            long seen = 0;
+            for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+                seen += getLatencyBucket(phase, bucket);
+                if (seen >= rank) {
+                    return Math.min(bucket == 63 ? Long.MAX_VALUE : (2L << bucket) - 1, getMaxLatency(phase));
+                }
+            }
+            return getMaxLatency(phase);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            long attempts = getAttempts();
+            long successes = getAttempts(Outcome.SUCCESS);
+            builder.append("Attempts: ").append(attempts).append(" (");
+            for (Outcome outcome : Outcome.values()) {
+                if (outcome.ordinal() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(outcome).append(' ').append(getAttempts(outcome));
+            }
+            builder.append(')').append(System.lineSeparator());
+            if (successes > 0) {
+                builder.append(String.format("Attempts per success: %.3f", (double) attempts / successes)).append(System.lineSeparator());
+            }
+            builder.append("Search nodes: ").append(nodes).append(System.lineSeparator());
+
+            builder.append("Failures by cup (in the order filled):").append(System.lineSeparator());
+            for (FailureReason reason : FailureReason.values()) {
+                if (getFailures(reason) == 0) {
+                    continue;
+                }
+                builder.append("  ").append(reason).append(':');
+                builder.append(" Special ").append(getFailures(reason, cupCount - 1));
+                for (int cup = 0; cup < cupCount - 1; cup++) {
+                    builder.append(", ").append(cup).append(' ').append(getFailures(reason, cup));
+                }
+                builder.append(System.lineSeparator());
+            }
+
+            if (!trackFailures.isEmpty()) {
+                builder.append("Failures by track:").append(System.lineSeparator());
+                trackFailures.entrySet().stream()
+                        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                        .forEach(entry -> builder.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append(System.lineSeparator()));
+            }
+
+            builder.append("Latencies (microseconds):").append(System.lineSeparator());
+            for (Phase phase : Phase.values()) {
+                if (getLatencyCount(phase) == 0) {
+                    continue;
+                }
+                builder.append(String.format("  %s: count %d, mean %.1f, p50 %.1f, p99 %.1f, max %.1f",
+                        phase, getLatencyCount(phase), getMeanLatency(phase) / 1000.0,
+                        getLatencyPercentile(phase, 50) / 1000.0, getLatencyPercentile(phase, 99) / 1000.0,
+                        getMaxLatency(phase) / 1000.0)).append(System.lineSeparator());
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Creates sets of cups uniformly at random, so that every valid set of cups is equally likely, unlike {@code CupSolver}, whose choices favour some sets over others.
+ * <p>
+ * There are far too many sets to count them all while a user waits, so sets are drawn by rejection sampling.
+ * Each proposal walks down the tree of states counted by {@code CupSetEnumerator}, picking uniformly at each step until only {@code COUNTED_CUPS} cups are left, and then in proportion to the number of sets below each choice.
+ * The chance of drawing each set is known exactly, and each proposal is accepted with a chance inversely proportional to it, which leaves every set equally likely.
+ * <p>
+ * The acceptance chance is scaled by a bound on the weight of a proposal. No useful bound can be worked out in advance, so it is measured when the sampler is created by drawing {@code CALIBRATION_PROPOSALS} proposals from a fixed seed and taking the largest weight with some headroom.
+ * Every set no heavier than the bound is exactly as likely as every other. A proposal heavier than the bound is never accepted: it shows that the bound was too low, so the bound is raised above it and the draw is started again from its first proposal under the new bound.
+ * The bound only ever grows, towards the largest weight of any set, so the only sets that can be created less often than they should be are those heavier than any proposal seen so far. Raises are counted by {@code getOverweightCount()}.
+ * Weights are spread very widely, so each raise makes later sets slower to create, and with the standard routes each set takes from a few thousand to tens of thousands of proposals, or from a quarter of a second to a few seconds of processor time.
+ * <p>
+ * Most proposals are rejected, so proposals are raced across threads in the same way as {@code RandomiserEngine} races searches: proposal {@code n} always draws from the {@code n}th stream split from the seed, and the lowest-numbered proposal that is accepted wins.
+ * The same seed therefore always gives the same set of cups, no matter the parallelism, as long as the bound has not been raised in between.
+ */
+public final class UniformSampler {
+    /**
+     * The number of cups at the end of each set that are drawn by counting the sets below each choice.
+     */
+    public static final int COUNTED_CUPS = 3;
+
+    /**
+     * The number of proposals drawn to measure the bound on their weights.
+     */
+    public static final int CALIBRATION_PROPOSALS = 4096;
+
+    private static final long CALIBRATION_SEED = 0x5EED;
+    private static final double BOUND_HEADROOM = Math.log(4);
+    private static final int MEMO_CAPACITY = 1 << 20;
+
+    private final CupSetEnumerator enumerator;
+    private volatile double logBound;
+    private final LongAdder proposals = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder overweight = new LongAdder();
+
+    /**
+     * Creates a new sampler for the given route graph and measures the bound on the weights of its proposals in the common {@code ForkJoinPool}, which takes around a second of processor time.
+     * @param routeGraph The route graph to build cups from
+     * @throws IllegalArgumentException If the route graph cannot be counted by a {@code CupSetEnumerator}, or allows no set of cups at all.
+     */
+    public UniformSampler(RouteGraph routeGraph) {
+        enumerator = new CupSetEnumerator(routeGraph, MEMO_CAPACITY);
+        SplittableRandom seedRandom = new SplittableRandom(CALIBRATION_SEED);
+        SplittableRandom[] randoms = new SplittableRandom[CALIBRATION_PROPOSALS];
+        for (int i = 0; i < randoms.length; i++) {
+            randoms[i] = seedRandom.split();
+        }
+        ThreadLocal<CupSetEnumerator.Proposer> proposers = ThreadLocal.withInitial(enumerator::newProposer);
+        double largest = IntStream.range(0, randoms.length).parallel().mapToDouble(i -> {
+            CupSetEnumerator.Proposer proposer = proposers.get();
+            return proposer.propose(randoms[i], COUNTED_CUPS) ? proposer.getLogWeight() : Double.NEGATIVE_INFINITY;
+        }).max().getAsDouble();
+        if (largest == Double.NEGATIVE_INFINITY) {
+            throw new IllegalArgumentException("No valid set of cups was found in " + CALIBRATION_PROPOSALS + " proposals.");
+        }
+        logBound = largest + BOUND_HEADROOM;
+    }
+
+    /**
+     * Returns the route graph that this sampler builds cups from.
+     * @return The route graph.
+     */
+    public RouteGraph getRouteGraph() {
+        return enumerator.getRouteGraph();
+    }
+
+    /**
+     * Creates a uniformly random set of cups from the given seed on the calling thread.
+     * @param seed The seed to create the cups from
+     * @return The cups that were created, which are always the same for the same seed while the bound is unchanged.
+     */
+    public CupSet sample(long seed) {
+        return sampleInParallel(seed, 1);
+    }
+
+    /**
+     * Creates a uniformly random set of cups from the given seed by racing proposals across several threads.
+     * The calling thread draws proposals too, and the rest are drawn in the common {@code ForkJoinPool}.
+     * @param seed The seed to create the cups from
+     * @param parallelism The number of threads to draw proposals on. A value of 1 or less draws every proposal on the calling thread.
+     * @return The cups that were created, which are always the same for the same seed while the bound is unchanged.
+     */
+    public CupSet sampleInParallel(long seed, int parallelism) {
+        Race race;
+        do {
+            race = new Race(seed, logBound);
+            Race current = race;
+            ForkJoinTask<?>[] workers = new ForkJoinTask<?>[Math.max(parallelism - 1, 0)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = ForkJoinPool.commonPool().submit(() -> race(current));
+            }
+            race(race);
+            for (ForkJoinTask<?> worker : workers) {
+                worker.join();
+            }
+            if (race.winner == null) {
+                raiseBound(race.overweightLogWeight);
+            }
+        } while (race.winner == null);
+        samples.increment();
+        return race.winner;
+    }
+
+    /**
+     * Draws proposals from a race until one that has yet to be beaten is accepted or is heavier than the race's bound, or every remaining proposal has been beaten.
+     * An overweight proposal ends the race in the same way as an accepted one, so whether a draw has to be started again does not depend on the parallelism.
+     * @param race The race to take proposals from
+     */
+    private void race(Race race) {
+        CupSetEnumerator.Proposer proposer = enumerator.newProposer();
+        while (true) {
+            long proposal;
+            SplittableRandom random;
+            synchronized (race) {
+                if (race.nextProposal > race.winningProposal) {
+                    return;
+                }
+                proposal = race.nextProposal++;
+                random = race.seedRandom.split();
+            }
+            proposals.increment();
+            if (proposer.propose(random, COUNTED_CUPS)) {
+                double logAcceptance = proposer.getLogWeight() - race.logBound;
+                if (logAcceptance > 0) {
+                    race.offer(proposal, null, proposer.getLogWeight());
+                    return;
+                }
+                if (Math.log(random.nextDouble()) < logAcceptance) {
+                    race.offer(proposal, proposer.getCupSet(random), 0);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Raises the bound above the weight of an overweight proposal, with the same headroom as when it was measured.
+     * @param logWeight The log of the proposal's weight
+     */
+    private synchronized void raiseBound(double logWeight) {
+        overweight.increment();
+        logBound = Math.max(logBound, logWeight + BOUND_HEADROOM);
+    }
+
+    /**
+     * Returns the natural log of the bound on the weight of a proposal, which is raised whenever a heavier proposal is drawn.
+     * @return The log of the bound.
+     */
+    public double getLogBound() {
+        return logBound;
+    }
+
+    /**
+     * Returns the number of proposals drawn so far, including those drawn by threads that lost a race.
+     * @return The number of proposals.
+     */
+    public long getProposalCount() {
+        return proposals.sum();
+    }
+
+    /**
+     * Returns the number of sets of cups created so far.
+     * @return The number of sets.
+     */
+    public long getSampleCount() {
+        return samples.sum();
+    }
+
+    /**
+     * Returns the number of proposals so far whose weight was above the bound. Each of these raised the bound and restarted the draw it was part of, rather than being accepted.
+     * @return The number of overweight proposals.
+     */
+    public long getOverweightCount() {
+        return overweight.sum();
+    }
+
+    /**
+     * The shared state of the threads racing to create one set of cups.
+     */
+    private static final class Race {
+        private final SplittableRandom seedRandom;
+        private final double logBound;
+        private long nextProposal;
+        private volatile long winningProposal = Long.MAX_VALUE;
+        private CupSet winner;
+        private double overweightLogWeight;
+
+        private Race(long seed, double logBound) {
+            seedRandom = new SplittableRandom(seed);
+            this.logBound = logBound;
+        }
+
+        /**
+         * Ends the race at a proposal, unless a lower-numbered proposal has already ended it.
+         * @param proposal The number of the proposal
+         * @param cups The set it proposed if it was accepted, or {@code null} if it was heavier than the bound
+         * @param logWeight The log of its weight if it was heavier than the bound
+         */
+        private synchronized void offer(long proposal, CupSet cups, double logWeight) {
+            if (proposal < winningProposal) {
+                winningProposal = proposal;
+                winner = cups;
+                overweightLogWeight = logWeight;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests that packed sets of cups unpack to the sets they were packed from.
+ */
+class CupCodecTest {
+    private static RandomiserEngine engine;
+    private static CupCodec codec;
+
+    @BeforeAll
+    static void load() throws IOException {
+        engine = new RandomiserEngine(RouteLoader.load(Randomiser.ROUTES_PATH));
+        codec = new CupCodec(engine.getRouteGraph());
+    }
+
+    @Test
+    void decodeReversesEncode() {
+        for (long seed = 0; seed < 50; seed++) {
+            CupSet cups = engine.randomise(seed);
+            long[] words = codec.encode(cups);
+            assertEquals(codec.getWordCount(cups.getCupCount(), cups.getCupLength()), words.length);
+            assertEquals(cups, codec.decode(words, 0, cups.getCupCount(), cups.getCupLength()), "Seed " + seed);
+        }
+    }
+
+    @Test
+    void readerReturnsWrittenSetsAndSeeds() throws IOException {
+        CupSet first = engine.randomise(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        codec.writeHeader(output, first.getCupCount(), first.getCupLength());
+        for (long seed = 1; seed <= 10; seed++) {
+            codec.write(output, seed, engine.randomise(seed));
+        }
+        output.flush();
+
+        try (CupCodec.Reader reader = new CupCodec.Reader(new ByteArrayInputStream(bytes.toByteArray()), engine.getRouteGraph())) {
+            for (long seed = 1; seed <= 10; seed++) {
+                assertEquals(new CupCodec.Entry(seed, engine.randomise(seed)), reader.read());
+            }
+            assertNull(reader.read());
+        }
+    }
+}
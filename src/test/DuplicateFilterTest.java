@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that a filter recognises a set of cups it has seen, whichever order its regular cups are in.
+ */
+class DuplicateFilterTest {
+    private static RandomiserEngine engine;
+
+    @BeforeAll
+    static void load() throws IOException {
+        engine = new RandomiserEngine(RouteLoader.load(Randomiser.ROUTES_PATH));
+    }
+
+    @Test
+    void rejectsSameSet() {
+        DuplicateFilter filter = new DuplicateFilter(engine.getRouteGraph());
+        assertTrue(filter.add(engine.randomise(1)));
+        assertFalse(filter.add(engine.randomise(1)));
+        assertEquals(1, filter.size());
+        assertEquals(1, filter.getDuplicateCount());
+    }
+
+    @Test
+    void rejectsReorderedRegularCups() {
+        DuplicateFilter filter = new DuplicateFilter(engine.getRouteGraph());
+        CupSet cups = engine.randomise(1);
+        CupSet reordered = reverseRegularCups(cups);
+        assertNotEquals(cups, reordered);
+        assertTrue(filter.add(cups));
+        assertFalse(filter.add(reordered));
+    }
+
+    @Test
+    void acceptsDifferentSets() {
+        DuplicateFilter filter = new DuplicateFilter(engine.getRouteGraph());
+        CupSet first = engine.randomise(1);
+        CupSet second = engine.randomise(2);
+        assertNotEquals(first, second);
+        assertTrue(filter.add(first));
+        assertTrue(filter.add(second));
+        assertEquals(2, filter.size());
+    }
+
+    /**
+     * Returns the same set with its regular cups in reverse order. The Special Cup stays last.
+     */
+    private static CupSet reverseRegularCups(CupSet cups) {
+        int cupCount = cups.getCupCount();
+        int[][] slotRoutes = new int[cupCount][cups.getCupLength()];
+        for (int cup = 0; cup < cupCount; cup++) {
+            int source = cup == cupCount - 1 ? cup : cupCount - 2 - cup;
+            for (int position = 0; position < cups.getCupLength(); position++) {
+                slotRoutes[cup][position] = cups.getRoute(source, position);
+            }
+        }
+        return new CupSet(cups.getRouteGraph(), slotRoutes);
+    }
+}
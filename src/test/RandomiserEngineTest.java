@@ -0,0 +1,35 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that a seed decides its set of cups, however many threads search for it.
+ */
+class RandomiserEngineTest {
+    private static RandomiserEngine engine;
+
+    @BeforeAll
+    static void load() throws IOException {
+        engine = new RandomiserEngine(RouteLoader.load(Randomiser.ROUTES_PATH));
+    }
+
+    @Test
+    void sameSeedGivesSameCups() {
+        for (long seed = 0; seed < 20; seed++) {
+            assertEquals(engine.randomise(seed), engine.randomise(seed), "Seed " + seed);
+        }
+    }
+
+    @Test
+    void parallelismDoesNotChangeCups() {
+        for (long seed = 0; seed < 20; seed++) {
+            CupSet expected = engine.randomise(seed);
+            for (int parallelism : new int[]{1, 2, 4}) {
+                assertEquals(expected, engine.randomiseInParallel(seed, parallelism), "Seed " + seed + " with parallelism " + parallelism);
+            }
+        }
+    }
+}
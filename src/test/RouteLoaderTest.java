@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that errors in a routes file are reported on the line they are found on.
+ */
+class RouteLoaderTest {
+    private static final String HEADER = "Destination,Origin,Route Number\n";
+
+    @Test
+    void loadsValidRoutes() throws IOException {
+        RouteGraph routeGraph = RouteLoader.load(new StringReader(HEADER + "A,A,1a\nB,A,1b\nA,B,2a\n"));
+        assertEquals(2, routeGraph.getTrackCount());
+        assertEquals(3, routeGraph.getRouteCount());
+    }
+
+    @Test
+    void reportsMissingHeaderColumn() {
+        assertLineNumber(1, "Destination,Origin\nA,A\n");
+    }
+
+    @Test
+    void reportsShortRow() {
+        assertLineNumber(3, HEADER + "A,A,1a\nB,A\n");
+    }
+
+    @Test
+    void reportsEmptyField() {
+        assertLineNumber(4, HEADER + "A,A,1a\nB,A,1b\n,B,2a\n");
+    }
+
+    @Test
+    void countsBlankLines() {
+        assertLineNumber(5, HEADER + "A,A,1a\n\n\nB,A\n");
+    }
+
+    @Test
+    void countsLineBreaksInQuotedFields() {
+        assertLineNumber(5, HEADER + "\"A\nA\",\"A\nA\",1a\nB,A\n");
+    }
+
+    @Test
+    void reportsRowWhereUnclosedQuoteStarts() {
+        assertLineNumber(3, HEADER + "A,A,1a\n\"B,A,1b\nA,B,2a\n");
+    }
+
+    @Test
+    void countsCarriageReturnLineEndings() {
+        assertLineNumber(3, "Destination,Origin,Route Number\r\nA,A,1a\r\nB,A\r\n");
+        assertLineNumber(3, "Destination,Origin,Route Number\rA,A,1a\rB,A\r");
+    }
+
+    private static void assertLineNumber(int expected, String routes) {
+        RouteFormatException e = assertThrows(RouteFormatException.class, () -> RouteLoader.load(new StringReader(routes)));
+        assertEquals(expected, e.getLineNumber(), e.getMessage());
+    }
+}